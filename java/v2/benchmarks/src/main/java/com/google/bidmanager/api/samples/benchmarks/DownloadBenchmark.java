@@ -0,0 +1,110 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.benchmarks;
+
+import com.google.bidmanager.api.samples.utils.DownloadUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link DownloadUtils#downloadFileFromCloudStorage(String, String, int)} downloading a
+ * synthetic report from a local server to a file.
+ *
+ * <p>Each invocation downloads the whole report. The {@code bytes} counter reports the number of
+ * bytes downloaded per second, and sample time mode reports the latency percentiles of a download.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+  /** Size of the report. Ranges from 1 MB to 5 GB. */
+  @Param({"1048576", "67108864", "1073741824", "5368709120"})
+  public long reportSizeInBytes;
+
+  /** Number of connections the report is downloaded with. */
+  @Param({"1", "4"})
+  public int connections;
+
+  /** Delay before every response of the server. */
+  @Param({"0", "50"})
+  public long latencyMillis;
+
+  /** Bandwidth of a single connection to the server, or 0 for no limit. */
+  @Param({"0"})
+  public long bandwidthBytesPerSecond;
+
+  private StubReportServer server;
+  private String reportUrl;
+  private long actualSizeInBytes;
+  private Path outputFile;
+
+  @Setup(Level.Trial)
+  public void startServer() throws IOException {
+    server = new StubReportServer(latencyMillis, bandwidthBytesPerSecond, 0);
+    reportUrl = server.getReportFileUrl(reportSizeInBytes);
+    actualSizeInBytes = new SyntheticReport(reportSizeInBytes).getSizeInBytes();
+    outputFile = Files.createTempFile("download-benchmark", ".csv");
+  }
+
+  @TearDown(Level.Trial)
+  public void stopServer() throws IOException {
+    server.close();
+    Files.deleteIfExists(outputFile);
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteOutputFile() throws IOException {
+    // Start every download from an empty file, so no download is resumed from a checkpoint.
+    Files.deleteIfExists(outputFile);
+  }
+
+  @Benchmark
+  public void download(DownloadCounters counters) throws Exception {
+    DownloadUtils.downloadFileFromCloudStorage(reportUrl, outputFile.toString(), connections);
+    counters.bytes += actualSizeInBytes;
+  }
+
+  /** Counts the bytes downloaded by the benchmark. */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class DownloadCounters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.benchmarks;
+
+import com.google.api.client.googleapis.util.Utils;
+import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.api.services.doubleclickbidmanager.model.ReportKey;
+import com.google.api.services.doubleclickbidmanager.model.ReportMetadata;
+import com.google.api.services.doubleclickbidmanager.model.ReportStatus;
+import com.google.bidmanager.api.samples.utils.ReportPoller;
+import com.google.bidmanager.api.samples.utils.SharedHttpTransport;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures polling a report with {@link ReportPoller}, as done by {@code pollReportUntilFinished}
+ * in the CreateAndRunQuery example, against a local server that reports the report as DONE after
+ * a configured number of polls.
+ *
+ * <p>The backoff intervals are scaled down from those of the example, so the results reflect the
+ * overhead of polling rather than the time spent waiting between polls.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PollBenchmark {
+
+  /** Number of polls for which the report is still running. */
+  @Param({"0", "5"})
+  public int pollsUntilDone;
+
+  /** Delay before every response of the server. */
+  @Param({"0", "50"})
+  public long latencyMillis;
+
+  /** Minimum amount of time between polling requests for a report. */
+  @Param({"1"})
+  public int initialIntervalMillis;
+
+  private final AtomicLong nextReportId = new AtomicLong();
+  private StubReportServer server;
+  private ReportPoller poller;
+
+  @Setup(Level.Trial)
+  public void startServer() throws IOException {
+    server = new StubReportServer(latencyMillis, 0, pollsUntilDone);
+    DoubleClickBidManager service =
+        new DoubleClickBidManager.Builder(
+                SharedHttpTransport.get(), Utils.getDefaultJsonFactory(), null)
+            .setApplicationName("dbm-cmdline-sample-benchmarks")
+            .setRootUrl(server.getRootUrl())
+            .build();
+    poller =
+        new ReportPoller(
+            service, 4, initialIntervalMillis, initialIntervalMillis * 60, Integer.MAX_VALUE);
+  }
+
+  @TearDown(Level.Trial)
+  public void stopServer() {
+    poller.close();
+    server.close();
+  }
+
+  @Benchmark
+  public Report poll() throws Exception {
+    // Poll a new report every time, as the server counts polls per report.
+    Report report =
+        new Report()
+            .setKey(new ReportKey().setQueryId(1L).setReportId(nextReportId.incrementAndGet()))
+            .setMetadata(new ReportMetadata().setStatus(new ReportStatus().setState("RUNNING")));
+    return poller.poll(report).get();
+  }
+}
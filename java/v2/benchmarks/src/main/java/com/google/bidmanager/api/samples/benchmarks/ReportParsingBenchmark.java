@@ -0,0 +1,202 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.bidmanager.api.samples.utils.ColumnarReportReader;
+import com.google.bidmanager.api.samples.utils.ColumnarReportReader.ColumnChunk;
+import com.google.bidmanager.api.samples.utils.ColumnarReportWriter;
+import com.google.bidmanager.api.samples.utils.ConcurrentReportRowHandler;
+import com.google.bidmanager.api.samples.utils.CsvParser;
+import com.google.bidmanager.api.samples.utils.DownloadUtils;
+import com.google.bidmanager.api.samples.utils.ParallelReportReader;
+import com.google.bidmanager.api.samples.utils.ReportRowHandler;
+import com.google.bidmanager.api.samples.utils.ReportSchema;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing the rows of a synthetic report.
+ *
+ * <ul>
+ *   <li>{@code parse} parses a report held in memory with {@link CsvParser}, which isolates the
+ *       cost of parsing.
+ *   <li>{@code streamReportRows} parses a report with {@link DownloadUtils#streamReportRows} while
+ *       it is downloaded from a local server, handing the rows to a handler on another thread.
+ *   <li>{@code readParallel} parses a report file with {@link ParallelReportReader}, using one
+ *       thread per core.
+ *   <li>{@code scanColumnar} sums the impressions of the report after it was converted with {@link
+ *       ColumnarReportWriter}, which reads the values without parsing text.
+ * </ul>
+ *
+ * <p>The {@code rows} counter reports the number of rows parsed per second.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportParsingBenchmark {
+
+  /** Size of the report. Reports are kept in memory by the {@code parse} benchmark. */
+  @Param({"1048576", "67108864"})
+  public long reportSizeInBytes;
+
+  /** Maximum number of parsed rows waiting for the handler of {@code streamReportRows}. */
+  @Param({"1024"})
+  public int maxBufferedRows;
+
+  private byte[] reportContent;
+  private StubReportServer server;
+  private String reportUrl;
+  private ReportSchema schema;
+  private Path csvFile;
+  private Path columnarFile;
+
+  @Setup(Level.Trial)
+  public void generateReport() throws Exception {
+    SyntheticReport report = new SyntheticReport(reportSizeInBytes);
+    ByteArrayOutputStream content = new ByteArrayOutputStream((int) report.getSizeInBytes());
+    report.write(content, 0, report.getSizeInBytes() - 1, new SyntheticReport.Throttle(0));
+    reportContent = content.toByteArray();
+
+    server = new StubReportServer(0, 0, 0);
+    reportUrl = server.getReportFileUrl(reportSizeInBytes);
+    schema = new ReportSchema(SyntheticReport.DIMENSIONS, SyntheticReport.METRICS);
+
+    csvFile = Files.createTempFile("report", ".csv");
+    Files.write(csvFile, reportContent);
+    columnarFile = Files.createTempFile("report", ".dbmc");
+    ColumnarReportWriter.convert(csvFile.toString(), schema, columnarFile.toString());
+  }
+
+  @TearDown(Level.Trial)
+  public void stopServer() throws IOException {
+    server.close();
+    Files.deleteIfExists(csvFile);
+    Files.deleteIfExists(columnarFile);
+  }
+
+  @Benchmark
+  public void parse(ParsingCounters counters, Blackhole blackhole) throws IOException {
+    try (CsvParser parser =
+        new CsvParser(new InputStreamReader(new ByteArrayInputStream(reportContent), UTF_8))) {
+      String[] row;
+      while ((row = parser.readRecord()) != null) {
+        blackhole.consume(row);
+        counters.rows++;
+      }
+    }
+  }
+
+  @Benchmark
+  public void streamReportRows(final ParsingCounters counters, final Blackhole blackhole)
+      throws Exception {
+    DownloadUtils.streamReportRows(
+        reportUrl,
+        schema,
+        new ReportRowHandler() {
+          @Override
+          public void handleHeader(String[] header) {
+            blackhole.consume(header);
+          }
+
+          @Override
+          public void handleRow(String[] row) {
+            blackhole.consume(row);
+            counters.rows++;
+          }
+
+          @Override
+          public void handleEnd() {}
+        },
+        maxBufferedRows);
+  }
+
+  @Benchmark
+  public void readParallel(ParsingCounters counters, final Blackhole blackhole) throws Exception {
+    final AtomicLong rows = new AtomicLong();
+    ParallelReportReader.read(
+        csvFile.toString(),
+        schema,
+        new ConcurrentReportRowHandler() {
+          @Override
+          public void handleHeader(String[] header) {
+            blackhole.consume(header);
+          }
+
+          @Override
+          public void handleRow(String[] row) {
+            blackhole.consume(row);
+            rows.incrementAndGet();
+          }
+
+          @Override
+          public void handleEnd() {}
+        });
+    counters.rows += rows.get();
+  }
+
+  @Benchmark
+  public long scanColumnar(ParsingCounters counters) throws IOException {
+    long impressions = 0;
+    try (ColumnarReportReader reader = new ColumnarReportReader(columnarFile.toString())) {
+      int column = reader.indexOf("METRIC_IMPRESSIONS");
+      for (int chunk = 0; chunk < reader.getChunkCount(); chunk++) {
+        ColumnChunk values = reader.readColumn(chunk, column);
+        for (int row = 0; row < values.getRowCount(); row++) {
+          impressions += values.getLong(row);
+        }
+        counters.rows += values.getRowCount();
+      }
+    }
+    return impressions;
+  }
+
+  /** Counts the rows parsed by the benchmark. */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class ParsingCounters {
+    public long rows;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      rows = 0;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local HTTP server standing in for Google Cloud Storage and the reports.get method of the Bid
+ * Manager API, for benchmarking.
+ *
+ * <ul>
+ *   <li>{@code GET /reports/<sizeInBytes>.csv} serves a {@link SyntheticReport} of the given size,
+ *       honoring Range requests.
+ *   <li>{@code GET /v2/queries/<queryId>/reports/<reportId>} returns a report that is RUNNING for
+ *       a configured number of requests and DONE afterwards.
+ * </ul>
+ *
+ * <p>Every response is delayed by a configured latency, and report files are served no faster
+ * than a configured bandwidth per connection.
+ */
+final class StubReportServer implements AutoCloseable {
+
+  private static final Pattern REPORT_FILE_PATH = Pattern.compile("/reports/(\\d+)\\.csv");
+  private static final Pattern REPORT_PATH =
+      Pattern.compile("/v2/queries/(\\d+)/reports/(\\d+)");
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+  private final long bandwidthBytesPerSecond;
+  private final int pollsUntilDone;
+  private final ConcurrentMap<String, AtomicInteger> pollCounts =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+  /**
+   * Starts a server on a free loopback port.
+   *
+   * @param latencyMillis The delay before every response.
+   * @param bandwidthBytesPerSecond The maximum rate at which a report file is served to a single
+   *     connection, or 0 for no limit.
+   * @param pollsUntilDone The number of reports.get requests for which a report stays RUNNING.
+   */
+  StubReportServer(long latencyMillis, long bandwidthBytesPerSecond, int pollsUntilDone)
+      throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    this.pollsUntilDone = pollsUntilDone;
+
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(
+        "/",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              StubReportServer.this.handle(exchange);
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** Returns the URL of the server, ending with a slash. */
+  String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  /** Returns the URL of a synthetic report file of about the given size. */
+  String getReportFileUrl(long sizeInBytes) {
+    return getRootUrl() + "reports/" + sizeInBytes + ".csv";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    sleep(latencyMillis);
+
+    String path = exchange.getRequestURI().getPath();
+    Matcher reportFile = REPORT_FILE_PATH.matcher(path);
+    if (reportFile.matches()) {
+      serveReportFile(exchange, new SyntheticReport(Long.parseLong(reportFile.group(1))));
+      return;
+    }
+    Matcher report = REPORT_PATH.matcher(path);
+    if (report.matches()) {
+      serveReport(exchange, report.group(1), report.group(2));
+      return;
+    }
+    exchange.sendResponseHeaders(404, -1);
+  }
+
+  private void serveReportFile(HttpExchange exchange, SyntheticReport report) throws IOException {
+    long size = report.getSizeInBytes();
+    long firstByte = 0;
+    long lastByte = size - 1;
+
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null && range.startsWith("bytes=")) {
+      String[] bounds = range.substring("bytes=".length()).split("-", 2);
+      firstByte = Long.parseLong(bounds[0]);
+      if (!bounds[1].isEmpty()) {
+        lastByte = Math.min(Long.parseLong(bounds[1]), size - 1);
+      }
+      if (firstByte >= size) {
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      exchange
+          .getResponseHeaders()
+          .set("Content-Range", String.format("bytes %s-%s/%s", firstByte, lastByte, size));
+      exchange.sendResponseHeaders(206, lastByte - firstByte + 1);
+    } else {
+      exchange.sendResponseHeaders(200, size);
+    }
+
+    try (OutputStream output = exchange.getResponseBody()) {
+      report.write(
+          output, firstByte, lastByte, new SyntheticReport.Throttle(bandwidthBytesPerSecond));
+    }
+  }
+
+  private void serveReport(HttpExchange exchange, String queryId, String reportId)
+      throws IOException {
+    String key = queryId + "/" + reportId;
+    pollCounts.putIfAbsent(key, new AtomicInteger());
+    boolean done = pollCounts.get(key).incrementAndGet() > pollsUntilDone;
+
+    String json =
+        String.format(
+            "{\"key\": {\"queryId\": \"%s\", \"reportId\": \"%s\"},"
+                + " \"metadata\": {\"status\": {\"state\": \"%s\"},"
+                + " \"googleCloudStoragePath\": \"%s\"}}",
+            queryId, reportId, done ? "DONE" : "RUNNING", getReportFileUrl(1024 * 1024));
+    byte[] body = json.getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(body);
+    }
+  }
+
+  private static void sleep(long millis) throws IOException {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while simulating latency.", e);
+    }
+  }
+}
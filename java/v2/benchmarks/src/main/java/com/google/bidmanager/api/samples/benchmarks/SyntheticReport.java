@@ -0,0 +1,213 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.benchmarks;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates the content of a CSV report with the columns of the CreateAndRunQuery example.
+ *
+ * <p>Every row has the same length, so any byte range of a report of any size can be generated on
+ * the fly without keeping the report in memory.
+ */
+final class SyntheticReport {
+
+  /** The group-by dimensions of the report, in column order. */
+  static final List<String> DIMENSIONS =
+      Arrays.asList(
+          "FILTER_ADVERTISER_NAME",
+          "FILTER_ADVERTISER",
+          "FILTER_ADVERTISER_CURRENCY",
+          "FILTER_INSERTION_ORDER_NAME",
+          "FILTER_INSERTION_ORDER",
+          "FILTER_LINE_ITEM_NAME",
+          "FILTER_LINE_ITEM");
+
+  /** The metrics of the report, in column order. */
+  static final List<String> METRICS =
+      Arrays.asList(
+          "METRIC_IMPRESSIONS",
+          "METRIC_BILLABLE_IMPRESSIONS",
+          "METRIC_CLICKS",
+          "METRIC_CTR",
+          "METRIC_TOTAL_CONVERSIONS",
+          "METRIC_LAST_CLICKS",
+          "METRIC_LAST_IMPRESSIONS",
+          "METRIC_REVENUE_ADVERTISER",
+          "METRIC_MEDIA_COST_ADVERTISER");
+
+  private static final byte[] HEADER =
+      ("Advertiser,Advertiser ID,Advertiser Currency,Insertion Order,Insertion Order ID,"
+              + "Line Item,Line Item ID,Impressions,Billable Impressions,Clicks,"
+              + "Click Rate (CTR),Total Conversions,Post-Click Conversions,"
+              + "Post-View Conversions,Revenue (Adv Currency),"
+              + "Media Cost (Advertiser Currency)\n")
+          .getBytes(US_ASCII);
+
+  /**
+   * Template of a row. Runs of '0' are overwritten with the digits of the row's values; the
+   * trailing comments name the value written to each run.
+   */
+  private static final byte[] ROW_TEMPLATE =
+      ("Advertiser 000000,000000,USD," // advertiser
+              + "Insertion Order 00000000,00000000," // insertion order
+              + "Line Item 0000000000,0000000000," // line item
+              + "0000000000,0000000000,00000000," // impressions, billable impressions, clicks
+              + "0.0000,000000,000000,000000," // CTR, conversions
+              + "00000000.00,00000000.00\n") // revenue, media cost
+          .getBytes(US_ASCII);
+
+  /** Length of every row, including its line break. */
+  static final int ROW_LENGTH = ROW_TEMPLATE.length;
+
+  private final long rowCount;
+
+  /**
+   * Creates a report.
+   *
+   * @param approximateSizeInBytes The size of the report, rounded down to a whole number of rows.
+   */
+  SyntheticReport(long approximateSizeInBytes) {
+    this.rowCount = Math.max(0, (approximateSizeInBytes - HEADER.length) / ROW_LENGTH);
+  }
+
+  /** Returns the exact size of the report. */
+  long getSizeInBytes() {
+    return HEADER.length + rowCount * ROW_LENGTH;
+  }
+
+  /** Returns the number of data rows in the report. */
+  long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Writes a range of bytes of the report.
+   *
+   * @param output The stream to write to.
+   * @param firstByte The first byte of the range.
+   * @param lastByte The last byte of the range, inclusive.
+   * @param throttle Limits the rate at which the bytes are written.
+   */
+  void write(OutputStream output, long firstByte, long lastByte, Throttle throttle)
+      throws IOException {
+    int rowsPerChunk = 1024;
+    byte[] chunk = new byte[rowsPerChunk * ROW_LENGTH];
+
+    long position = firstByte;
+    if (position < HEADER.length) {
+      int length = (int) Math.min(HEADER.length - position, lastByte - position + 1);
+      output.write(HEADER, (int) position, length);
+      throttle.consume(length);
+      position += length;
+    }
+
+    while (position <= lastByte) {
+      // Generate the chunk of rows containing the current position.
+      long row = (position - HEADER.length) / ROW_LENGTH;
+      long chunkStart = HEADER.length + row * ROW_LENGTH;
+      int rows = (int) Math.min(rowsPerChunk, rowCount - row);
+      for (int i = 0; i < rows; i++) {
+        fillRow(row + i, chunk, i * ROW_LENGTH);
+      }
+
+      int offset = (int) (position - chunkStart);
+      int length = (int) Math.min(rows * ROW_LENGTH - offset, lastByte - position + 1);
+      output.write(chunk, offset, length);
+      throttle.consume(length);
+      position += length;
+    }
+  }
+
+  /** Fills the bytes of a row from deterministic values derived from its index. */
+  private static void fillRow(long row, byte[] buffer, int offset) {
+    System.arraycopy(ROW_TEMPLATE, 0, buffer, offset, ROW_LENGTH);
+
+    long lineItem = row + 1;
+    long insertionOrder = row / 10 + 1;
+    long advertiser = row / 1000 + 1;
+    long hash = (row + 1) * 0x9E3779B97F4A7C15L;
+    long impressions = (hash >>> 40) % 10_000_000;
+    long clicks = impressions / 100;
+
+    int position = offset + "Advertiser ".length();
+    position = fillDigits(buffer, position, 6, advertiser) + 1;
+    position = fillDigits(buffer, position, 6, advertiser) + 1 + "USD,".length();
+    position += "Insertion Order ".length();
+    position = fillDigits(buffer, position, 8, insertionOrder) + 1;
+    position = fillDigits(buffer, position, 8, insertionOrder) + 1 + "Line Item ".length();
+    position = fillDigits(buffer, position, 10, lineItem) + 1;
+    position = fillDigits(buffer, position, 10, lineItem) + 1;
+    position = fillDigits(buffer, position, 10, impressions) + 1;
+    position = fillDigits(buffer, position, 10, impressions - impressions / 50) + 1;
+    position = fillDigits(buffer, position, 8, clicks) + 1 + "0.".length();
+    position = fillDigits(buffer, position, 4, (hash >>> 20) % 10_000) + 1;
+    position = fillDigits(buffer, position, 6, clicks / 20) + 1;
+    position = fillDigits(buffer, position, 6, clicks / 30) + 1;
+    position = fillDigits(buffer, position, 6, clicks / 60) + 1;
+    position = fillDigits(buffer, position, 8, impressions / 400) + 1;
+    position = fillDigits(buffer, position, 2, hash & 0x3F) + 1;
+    position = fillDigits(buffer, position, 8, impressions / 500) + 1;
+    fillDigits(buffer, position, 2, (hash >>> 8) & 0x3F);
+  }
+
+  /**
+   * Writes a value as zero-padded decimal digits.
+   *
+   * @return The position following the digits.
+   */
+  private static int fillDigits(byte[] buffer, int position, int width, long value) {
+    for (int i = position + width - 1; i >= position; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return position + width;
+  }
+
+  /** Limits the rate at which bytes are written to a configured bandwidth. */
+  static final class Throttle {
+    private final long bytesPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long bytesConsumed;
+
+    /** Creates a throttle, or one that never waits if {@code bytesPerSecond} is 0. */
+    Throttle(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Records that bytes were written, sleeping until they fit within the bandwidth. */
+    void consume(long bytes) throws IOException {
+      if (bytesPerSecond <= 0) {
+        return;
+      }
+      bytesConsumed += bytes;
+      long dueNanos = startNanos + bytesConsumed * 1_000_000_000L / bytesPerSecond;
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        try {
+          Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while throttling.", e);
+        }
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@ package com.google.bidmanager.api.samples;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
@@ -23,24 +24,30 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.util.Utils;
-import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.util.Strings;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
 import com.google.api.services.doubleclickbidmanager.DoubleClickBidManagerScopes;
+import com.google.bidmanager.api.samples.utils.ReadRetryPolicy;
+import com.google.bidmanager.api.samples.utils.RequestMetrics;
+import com.google.bidmanager.api.samples.utils.RequestRateLimiter;
+import com.google.bidmanager.api.samples.utils.SharedHttpTransport;
 import java.io.Console;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Reader;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Factory for BidManager clients that handles OAuth and service creation for all Bid Manager API
@@ -73,9 +80,12 @@ public final class BidManagerFactory {
    */
   private static final String APPLICATION_NAME = "";
 
-  private static final HttpTransport HTTP_TRANSPORT = Utils.getDefaultTransport();
   private static final JsonFactory JSON_FACTORY = Utils.getDefaultJsonFactory();
 
+  /** Service objects already created, keyed by the credentials they were authorized with. */
+  private static final Map<String, DoubleClickBidManager> SERVICES =
+      new HashMap<String, DoubleClickBidManager>();
+
   /**
    * Authorizes the installed application to access user's protected data.
    *
@@ -162,7 +172,10 @@ public final class BidManagerFactory {
     // Set up the authorization code flow.
     GoogleAuthorizationCodeFlow flow =
         new GoogleAuthorizationCodeFlow.Builder(
-                HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, buildScopesList(additionalScopes))
+                SharedHttpTransport.get(),
+                JSON_FACTORY,
+                clientSecrets,
+                buildScopesList(additionalScopes))
             .setDataStoreFactory(dataStoreFactory)
             .build();
 
@@ -226,19 +239,40 @@ public final class BidManagerFactory {
   }
 
   /**
-   * Adjusts HTTP timeout values used by the provided request initializer.
+   * Adds retries, instrumentation and rate limiting to the requests initialized by the provided
+   * credential.
    *
-   * @param requestInitializer The {@link HttpRequestInitializer} used to authorize requests.
-   * @return An {@link HttpRequestInitializer} with modified HTTP timeout values.
+   * @param credential The {@link Credential} used to authorize requests, or {@code null} to send
+   *     requests without credentials.
+   * @return An {@link HttpRequestInitializer} that also retries read requests according to {@link
+   *     ReadRetryPolicy}, records the requests in {@link RequestMetrics} and holds them back to
+   *     stay within the limits of {@link RequestRateLimiter}.
+   */
+  private static HttpRequestInitializer instrumentRequests(Credential credential) {
+    return RequestRateLimiter.get()
+        .limit(
+            RequestMetrics.get().instrument(ReadRetryPolicy.get().retryReads(credential)),
+            getProject(credential));
+  }
+
+  /**
+   * Identifies the project whose quotas the requests authorized by a credential count towards:
+   * the project of a service account, or else the OAuth client, which belongs to a single project.
    */
-  private static HttpRequestInitializer setHttpTimeout(
-      final HttpRequestInitializer requestInitializer) {
-    return new HttpRequestInitializer() {
-      @Override
-      public void initialize(HttpRequest httpRequest) throws IOException {
-        requestInitializer.initialize(httpRequest);
+  private static String getProject(Credential credential) {
+    if (credential == null) {
+      return "default";
+    }
+    if (credential instanceof GoogleCredential) {
+      String projectId = ((GoogleCredential) credential).getServiceAccountProjectId();
+      if (!Strings.isNullOrEmpty(projectId)) {
+        return projectId;
       }
-    };
+    }
+    if (credential.getClientAuthentication() instanceof ClientParametersAuthentication) {
+      return ((ClientParametersAuthentication) credential.getClientAuthentication()).getClientId();
+    }
+    return "default";
   }
 
   /**
@@ -256,6 +290,14 @@ public final class BidManagerFactory {
     return scopes;
   }
 
+  /**
+   * Returns whether a root URL points to a server on the loopback interface, such as a {@link
+   * FakeBidManagerServer}, which does not need credentials.
+   */
+  private static boolean isLoopback(String rootUrl) throws IOException {
+    return InetAddress.getByName(new GenericUrl(rootUrl).getHost()).isLoopbackAddress();
+  }
+
   /**
    * Performs all necessary setup steps for running requests against the API.
    *
@@ -271,10 +313,48 @@ public final class BidManagerFactory {
       String serviceAccountKeyFile,
       List<String> additionalScopes)
       throws Exception {
+    return getInstance(
+        clientSecretsFile, useServiceAccount, serviceAccountKeyFile, additionalScopes, null);
+  }
+
+  /**
+   * Performs all necessary setup steps for running requests against the API.
+   *
+   * <p>Service objects are reused: calling this method again with the same credential settings
+   * returns the service object created the first time, without authorizing again. All service
+   * objects share the connection pool of {@link SharedHttpTransport}.
+   *
+   * @param clientSecretsFile The path to the file containing client secrets.
+   * @param useServiceAccount Whether or not to authenticate with a service account.
+   * @param serviceAccountKeyFile The path to the file containing the service account key.
+   * @param additionalScopes Scopes to authenticate in addition to default scope.
+   * @param rootUrl The root URL of the API to send requests to, or {@code null} for the Bid
+   *     Manager API. Requests to a server on the loopback interface, such as a {@link
+   *     FakeBidManagerServer}, are sent without credentials, so tests can run offline.
+   * @return An initialized {@link DoubleClickBidManager} service object.
+   */
+  public static synchronized DoubleClickBidManager getInstance(
+      String clientSecretsFile,
+      boolean useServiceAccount,
+      String serviceAccountKeyFile,
+      List<String> additionalScopes,
+      String rootUrl)
+      throws Exception {
+
+    // Reuse the service object previously created for the same credentials and root URL.
+    String credentialKey =
+        useServiceAccount ? "serviceAccount:" + serviceAccountKeyFile : "user:" + clientSecretsFile;
+    credentialKey += ":" + buildScopesList(additionalScopes) + ":" + rootUrl;
+    DoubleClickBidManager bidManager = SERVICES.get(credentialKey);
+    if (bidManager != null) {
+      return bidManager;
+    }
 
     // Authorize with either a user or service account.
     Credential credential;
-    if (!useServiceAccount) {
+    if (rootUrl != null && isLoopback(rootUrl)) {
+      credential = null;
+    } else if (!useServiceAccount) {
       credential = authorize(clientSecretsFile, additionalScopes);
     } else {
       credential = authorizeWithServiceAccount(serviceAccountKeyFile, additionalScopes);
@@ -286,11 +366,16 @@ public final class BidManagerFactory {
     }
 
     // Create DoubleClickBidManager service object.
-    DoubleClickBidManager bidManager =
-        new DoubleClickBidManager.Builder(HTTP_TRANSPORT, JSON_FACTORY, setHttpTimeout(credential))
-            .setApplicationName(modifiedApplicationName)
-            .build();
+    DoubleClickBidManager.Builder builder =
+        new DoubleClickBidManager.Builder(
+                SharedHttpTransport.get(), JSON_FACTORY, instrumentRequests(credential))
+            .setApplicationName(modifiedApplicationName);
+    if (rootUrl != null) {
+      builder.setRootUrl(rootUrl);
+    }
+    bidManager = builder.build();
 
+    SERVICES.put(credentialKey, bidManager);
     return bidManager;
   }
 }
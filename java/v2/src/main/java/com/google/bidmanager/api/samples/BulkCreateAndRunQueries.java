@@ -0,0 +1,373 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples;
+
+import com.beust.jcommander.Parameter;
+import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
+import com.google.api.services.doubleclickbidmanager.model.Query;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.bidmanager.api.samples.utils.ArgumentNames;
+import com.google.bidmanager.api.samples.utils.CodeSampleParams;
+import com.google.bidmanager.api.samples.utils.QueryJobManifest;
+import com.google.bidmanager.api.samples.utils.QueryJobManifest.QueryJob;
+import com.google.bidmanager.api.samples.utils.ReadRetryPolicy;
+import com.google.bidmanager.api.samples.utils.ReportGenerationHistory;
+import com.google.bidmanager.api.samples.utils.ReportPoller;
+import com.google.bidmanager.api.samples.utils.RequestHedger;
+import com.google.bidmanager.api.samples.utils.RequestMetrics;
+import com.google.bidmanager.api.samples.utils.RequestRateLimiter;
+import com.google.bidmanager.api.samples.utils.SharedHttpTransport;
+import com.google.bidmanager.api.samples.utils.VirtualThreads;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This example creates, runs and downloads a basic query for every job listed in a manifest file.
+ * Jobs are processed concurrently and share a single service object.
+ */
+public class BulkCreateAndRunQueries {
+  /** Number of threads shared by all jobs to check the status of their reports. */
+  private static final int POLLING_THREADS = 2;
+
+  private static class BulkCreateAndRunQueriesParams extends CodeSampleParams {
+
+    @Parameter(
+        names = ArgumentNames.MANIFEST_FILE,
+        description = "The path to a JSON manifest listing the queries to create and download.",
+        required = true)
+    public String manifestFile;
+
+    @Parameter(
+        names = ArgumentNames.MAX_CONCURRENT_JOBS,
+        description = "The maximum number of queries to create and run at the same time.")
+    public int maxConcurrentJobs = 10;
+
+    @Parameter(
+        names = ArgumentNames.MAX_CONCURRENT_DOWNLOADS,
+        description = "The maximum number of report files to download at the same time.")
+    public int maxConcurrentDownloads = 4;
+
+    @Parameter(
+        names = ArgumentNames.DOWNLOAD_CONNECTIONS,
+        description = "The number of parallel connections used to download the report file.")
+    public int downloadConnections = 1;
+
+    @Parameter(
+        names = ArgumentNames.MAX_CONNECTIONS_PER_ROUTE,
+        description =
+            "The maximum number of pooled HTTP connections to a single host. Defaults to enough"
+                + " connections for all concurrent jobs and downloads.")
+    public Integer maxConnectionsPerRoute;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_HISTORY_FILE,
+        description =
+            "Optional. The path of a file recording how long reports took to generate, so"
+                + " reports are polled around their expected completion time, for example"
+                + " ~/.store/dbm_sample/report_generation_history.properties. This saves status"
+                + " requests and notices finished reports sooner. By default, reports are polled"
+                + " with exponential backoff.")
+    public String reportHistoryFile = null;
+
+    @Parameter(
+        names = ArgumentNames.USE_VIRTUAL_THREADS,
+        description =
+            "Whether to run every job on its own virtual thread. Requires Java 21 or later.")
+    public boolean useVirtualThreads = false;
+  }
+
+  public static void main(String[] args) throws Exception {
+    BulkCreateAndRunQueriesParams params = new BulkCreateAndRunQueriesParams();
+    if (!params.parseArguments(args)) {
+      // Either pass the required parameters for this example on the command line, or insert them
+      // into the code here. See the parameter class definition above for descriptions.
+      params.manifestFile = "INSERT_MANIFEST_FILE_HERE";
+    }
+
+    // Size the shared connection pool so concurrent jobs and downloads do not wait for a
+    // connection.
+    int maxConnectionsPerRoute =
+        params.maxConnectionsPerRoute != null
+            ? params.maxConnectionsPerRoute
+            : params.maxConcurrentJobs
+                + POLLING_THREADS
+                + params.maxConcurrentDownloads * params.downloadConnections;
+    SharedHttpTransport.configure(
+        maxConnectionsPerRoute,
+        SharedHttpTransport.DEFAULT_MAX_CONNECTIONS_TOTAL,
+        SharedHttpTransport.DEFAULT_IDLE_TIMEOUT_IN_MILLIS,
+        SharedHttpTransport.DEFAULT_KEEP_ALIVE_IN_MILLIS);
+
+    RequestRateLimiter.get().setLimits(params.requestRateLimits);
+    ReadRetryPolicy.get().setMaxRetries(params.maxReadRetries);
+    RequestHedger.get().setEnabled(params.hedgeReads);
+
+    DoubleClickBidManager service =
+        BidManagerFactory.getInstance(
+            params.clientSecretsFile,
+            params.useServiceAccount,
+            params.serviceAccountKeyFile,
+            params.additionalScopes,
+            params.rootUrl);
+
+    ReportGenerationHistory history = null;
+    if (!Strings.isNullOrEmpty(params.reportHistoryFile)) {
+      history = new ReportGenerationHistory(params.reportHistoryFile);
+    }
+
+    try {
+      runExample(
+          service,
+          params.manifestFile,
+          params.maxConcurrentJobs,
+          params.maxConcurrentDownloads,
+          params.downloadConnections,
+          history,
+          params.useVirtualThreads);
+    } finally {
+      if (params.metricsFile != null) {
+        RequestMetrics.get().writeTo(params.metricsFile);
+      }
+    }
+  }
+
+  public static void runExample(
+      final DoubleClickBidManager service,
+      String manifestFile,
+      int maxConcurrentJobs,
+      int maxConcurrentDownloads,
+      final int downloadConnections,
+      ReportGenerationHistory history,
+      boolean useVirtualThreads)
+      throws Exception {
+
+    // Load the jobs to process.
+    List<QueryJob> jobs = QueryJobManifest.load(manifestFile).getJobs();
+    System.out.printf("Loaded %s jobs from %s.%n", jobs.size(), manifestFile);
+
+    ListeningExecutorService jobExecutor;
+    ListeningExecutorService downloadExecutor;
+    ReportPoller poller;
+    Semaphore apiPermits;
+    Semaphore downloadPermits;
+    if (useVirtualThreads) {
+      // Every job runs from start to finish on its own virtual thread, which releases its carrier
+      // thread whenever it waits for a response or for its report. Status checks also run on
+      // virtual threads, so they do not queue up behind each other.
+      jobExecutor = MoreExecutors.listeningDecorator(VirtualThreads.newThreadPerTaskExecutor());
+      downloadExecutor = jobExecutor;
+      poller =
+          new ReportPoller(
+              service,
+              POLLING_THREADS,
+              CreateAndRunQuery.MIN_RETRY_INTERVAL_IN_MILLIS,
+              CreateAndRunQuery.MAX_RETRY_INTERVAL_IN_MILLIS,
+              CreateAndRunQuery.MAX_RETRY_ELAPSED_TIME_IN_MILLIS,
+              history,
+              jobExecutor);
+
+      // Limits the number of jobs calling the API or downloading at once, as the number of
+      // virtual threads is not bounded.
+      apiPermits = new Semaphore(maxConcurrentJobs);
+      downloadPermits = new Semaphore(maxConcurrentDownloads);
+    } else {
+      // Queries are created and run on one bounded pool, and finished reports are downloaded on
+      // another. While a report is generating, it is tracked by the shared poller and holds no
+      // thread from either pool.
+      jobExecutor =
+          MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(maxConcurrentJobs));
+      downloadExecutor =
+          MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(maxConcurrentDownloads));
+      poller =
+          new ReportPoller(
+              service,
+              POLLING_THREADS,
+              CreateAndRunQuery.MIN_RETRY_INTERVAL_IN_MILLIS,
+              CreateAndRunQuery.MAX_RETRY_INTERVAL_IN_MILLIS,
+              CreateAndRunQuery.MAX_RETRY_ELAPSED_TIME_IN_MILLIS,
+              history);
+
+      // The pools bound the number of jobs calling the API or downloading at once.
+      apiPermits = null;
+      downloadPermits = null;
+    }
+
+    List<ListenableFuture<Boolean>> results = new ArrayList<ListenableFuture<Boolean>>();
+    try {
+      for (QueryJob job : jobs) {
+        if (useVirtualThreads) {
+          results.add(
+              jobExecutor.submit(
+                  newBlockingJob(
+                      service, job, poller, apiPermits, downloadPermits, downloadConnections)));
+        } else {
+          results.add(
+              submitPipelinedJob(
+                  service, job, poller, jobExecutor, downloadExecutor, downloadConnections));
+        }
+      }
+
+      // Wait for all jobs to finish, reporting failures without interrupting other jobs.
+      int succeeded = 0;
+      for (int i = 0; i < jobs.size(); i++) {
+        try {
+          if (results.get(i).get()) {
+            succeeded++;
+          }
+        } catch (ExecutionException e) {
+          System.out.printf("Job \"%s\" failed: %s%n", jobs.get(i).title, e.getCause());
+        }
+      }
+
+      System.out.printf("%s of %s jobs completed successfully.%n", succeeded, jobs.size());
+    } finally {
+      poller.close();
+      jobExecutor.shutdownNow();
+      downloadExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Submits a job as a pipeline of stages, each running on the executor of its stage.
+   *
+   * @return A future completed with whether the report for the job was generated and downloaded.
+   */
+  private static ListenableFuture<Boolean> submitPipelinedJob(
+      final DoubleClickBidManager service,
+      final QueryJob job,
+      final ReportPoller poller,
+      ListeningExecutorService jobExecutor,
+      ListeningExecutorService downloadExecutor,
+      final int downloadConnections) {
+    // Create and run the query.
+    ListenableFuture<Report> runningReport =
+        jobExecutor.submit(
+            new Callable<Report>() {
+              @Override
+              public Report call() throws Exception {
+                return createAndRunQuery(service, job);
+              }
+            });
+
+    // Poll report, waiting for it to be finished.
+    ListenableFuture<Report> finishedReport =
+        Futures.transformAsync(
+            runningReport,
+            new AsyncFunction<Report, Report>() {
+              @Override
+              public ListenableFuture<Report> apply(Report report) {
+                return poller.poll(report);
+              }
+            },
+            MoreExecutors.directExecutor());
+
+    // Download report file.
+    return Futures.transformAsync(
+        finishedReport,
+        new AsyncFunction<Report, Boolean>() {
+          @Override
+          public ListenableFuture<Boolean> apply(Report report) throws Exception {
+            return Futures.immediateFuture(downloadIfDone(job, report, downloadConnections));
+          }
+        },
+        downloadExecutor);
+  }
+
+  /**
+   * Creates a task processing a job from start to finish with blocking calls, meant to run on its
+   * own virtual thread.
+   *
+   * @return A task returning whether the report for the job was generated and downloaded.
+   */
+  private static Callable<Boolean> newBlockingJob(
+      final DoubleClickBidManager service,
+      final QueryJob job,
+      final ReportPoller poller,
+      final Semaphore apiPermits,
+      final Semaphore downloadPermits,
+      final int downloadConnections) {
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        // Create and run the query.
+        Report runningReport;
+        apiPermits.acquire();
+        try {
+          runningReport = createAndRunQuery(service, job);
+        } finally {
+          apiPermits.release();
+        }
+
+        // Poll report, waiting for it to be finished.
+        Report finishedReport;
+        try {
+          finishedReport = poller.poll(runningReport).get();
+        } catch (ExecutionException e) {
+          Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+          throw e;
+        }
+
+        // Download report file.
+        downloadPermits.acquire();
+        try {
+          return downloadIfDone(job, finishedReport, downloadConnections);
+        } finally {
+          downloadPermits.release();
+        }
+      }
+    };
+  }
+
+  /** Creates and runs the query of a job, returning the report being generated. */
+  private static Report createAndRunQuery(DoubleClickBidManager service, QueryJob job)
+      throws Exception {
+    Query query =
+        CreateAndRunQuery.buildQuery(job.title, job.advertiserIdFilter, job.campaignIdFilters);
+    return CreateAndRunQuery.createAndRunQuery(service, query);
+  }
+
+  /**
+   * Downloads the report of a single job if it finished generating successfully.
+   *
+   * @return Whether the report for the job was generated and downloaded.
+   */
+  private static boolean downloadIfDone(
+      QueryJob job, Report finishedReport, int downloadConnections) throws Exception {
+    if (finishedReport == null) {
+      System.out.printf("Abandoning report polling for job \"%s\".%n", job.title);
+      return false;
+    }
+    if (!finishedReport.getMetadata().getStatus().getState().equals("DONE")) {
+      System.out.printf(
+          "Report %s for job \"%s\" failed to generate.%n",
+          finishedReport.getKey().getReportId(), job.title);
+      return false;
+    }
+
+    CreateAndRunQuery.downloadReport(finishedReport, job.outputFile, downloadConnections);
+    return true;
+  }
+}
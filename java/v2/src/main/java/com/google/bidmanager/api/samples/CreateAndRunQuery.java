@@ -14,39 +14,89 @@
 
 package com.google.bidmanager.api.samples;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.beust.jcommander.Parameter;
-import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.util.DateTime;
 import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
-import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager.Queries.Reports;
 import com.google.api.services.doubleclickbidmanager.model.DataRange;
 import com.google.api.services.doubleclickbidmanager.model.FilterPair;
+import com.google.api.services.doubleclickbidmanager.model.ListReportsResponse;
 import com.google.api.services.doubleclickbidmanager.model.Parameters;
 import com.google.api.services.doubleclickbidmanager.model.Query;
 import com.google.api.services.doubleclickbidmanager.model.QueryMetadata;
 import com.google.api.services.doubleclickbidmanager.model.QuerySchedule;
 import com.google.api.services.doubleclickbidmanager.model.Report;
 import com.google.api.services.doubleclickbidmanager.model.RunQueryRequest;
+import com.google.bidmanager.api.samples.utils.ApiEndpoint;
 import com.google.bidmanager.api.samples.utils.ArgumentNames;
 import com.google.bidmanager.api.samples.utils.CodeSampleParams;
+import com.google.bidmanager.api.samples.utils.ColumnarReportWriter;
 import com.google.bidmanager.api.samples.utils.DownloadUtils;
+import com.google.bidmanager.api.samples.utils.QueryIndex;
+import com.google.bidmanager.api.samples.utils.ReadRetryPolicy;
+import com.google.bidmanager.api.samples.utils.ReportAggregator;
+import com.google.bidmanager.api.samples.utils.ReportGenerationHistory;
+import com.google.bidmanager.api.samples.utils.ReportPoller;
+import com.google.bidmanager.api.samples.utils.ReportSchema;
+import com.google.bidmanager.api.samples.utils.ReportSink;
+import com.google.bidmanager.api.samples.utils.ReportSinks;
+import com.google.bidmanager.api.samples.utils.RequestHedger;
+import com.google.bidmanager.api.samples.utils.RequestMetrics;
+import com.google.bidmanager.api.samples.utils.RequestRateLimiter;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This example creates a new basic query, runs the query, and downloads the report once finished.
+ *
+ * <p>If a query with the same definition already exists, it is run instead of creating a new one,
+ * and a recent report of it is downloaded without running it at all.
  */
 public class CreateAndRunQuery {
   /** Minimum amount of time between polling requests. Defaults to 5 seconds. */
-  private static final int MIN_RETRY_INTERVAL_IN_MILLIS = 5_000;
+  static final int MIN_RETRY_INTERVAL_IN_MILLIS = 5_000;
 
   /** Maximum amount of time between polling requests. Defaults to 5 minutes. */
-  private static final int MAX_RETRY_INTERVAL_IN_MILLIS = 5 * 60_000;
+  static final int MAX_RETRY_INTERVAL_IN_MILLIS = 5 * 60_000;
 
   /** Maximum amount of time to spend polling. Defaults to 5 hours. */
-  private static final int MAX_RETRY_ELAPSED_TIME_IN_MILLIS = 5 * 60 * 60_000;
+  static final int MAX_RETRY_ELAPSED_TIME_IN_MILLIS = 5 * 60 * 60_000;
+
+  /** Dimensions the metrics of the report are rolled up by. */
+  private static final List<String> ROLLUP_GROUP_BYS =
+      Arrays.asList("FILTER_LINE_ITEM", "FILTER_INSERTION_ORDER", "FILTER_ADVERTISER");
+
+  /** Metrics summed for every line item, insertion order and advertiser. */
+  private static final List<String> ROLLUP_METRICS =
+      Arrays.asList(
+          "METRIC_IMPRESSIONS",
+          "METRIC_CLICKS",
+          "METRIC_REVENUE_ADVERTISER",
+          "METRIC_MEDIA_COST_ADVERTISER");
+
+  /** Maximum number of IDs kept for each rolled up dimension. */
+  private static final int MAX_ROLLUP_GROUPS = 1_000_000;
 
-  private static class CreateAndRunQueryParams extends CodeSampleParams {
+  /** Minimum amount of time between listings of all queries to find one with a definition. */
+  private static final long MIN_QUERY_INDEX_REFRESH_INTERVAL_IN_MILLIS = 60 * 60_000;
+
+  /** Number of the most recent reports of a reused query checked for a report to reuse. */
+  private static final int REUSABLE_REPORTS_PAGE_SIZE = 10;
+
+  static class CreateAndRunQueryParams extends CodeSampleParams {
 
     @Parameter(
         names = ArgumentNames.TITLE,
@@ -70,6 +120,90 @@ public class CreateAndRunQuery {
         description = "The path to download the resulting report to.",
         required = true)
     public String outputFile;
+
+    @Parameter(
+        names = ArgumentNames.DOWNLOAD_CONNECTIONS,
+        description = "The number of parallel connections used to download the report file.")
+    public int downloadConnections = 1;
+
+    @Parameter(
+        names = ArgumentNames.ADDITIONAL_OUTPUTS,
+        description =
+            "Outputs the report is streamed to while it is downloaded, along with the output file:"
+                + " stdout, file:PATH, gzip:PATH or split:PREFIX:MEGABYTES. Downloads streamed to"
+                + " additional outputs are not resumed if they fail.")
+    public List<String> additionalOutputs;
+
+    @Parameter(
+        names = ArgumentNames.COLUMNAR_OUTPUT_FILE,
+        description =
+            "The path to write a columnar copy of the report to, which is smaller and faster to"
+                + " scan than the CSV report. Disabled if not set.")
+    public String columnarOutputFile;
+
+    @Parameter(
+        names = ArgumentNames.ROLLUP_OUTPUT_FILE,
+        description =
+            "The path to write the impressions, clicks, revenue and media cost of every line item,"
+                + " insertion order and advertiser in the report to. Disabled if not set.")
+    public String rollupOutputFile;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_HISTORY_FILE,
+        description =
+            "Optional. The path of a file recording how long reports took to generate, so"
+                + " reports are polled around their expected completion time, for example"
+                + " ~/.store/dbm_sample/report_generation_history.properties. This saves status"
+                + " requests and notices finished reports sooner. By default, reports are polled"
+                + " with exponential backoff.")
+    public String reportHistoryFile = null;
+
+    @Parameter(
+        names = ArgumentNames.QUERY_INDEX_FILE,
+        description =
+            "Optional. The path of a file indexing existing queries by their definition, so a"
+                + " query with the same definition is reused instead of creating a new one, for"
+                + " example ~/.store/dbm_sample/query_index.properties. This saves creating a"
+                + " query on every run, but reused queries keep the settings they were created"
+                + " with. By default, a new query is always created.")
+    public String queryIndexFile = null;
+
+    @Parameter(
+        names = ArgumentNames.MAX_REUSED_REPORT_AGE_MINUTES,
+        description =
+            "Optional. The maximum age of a finished report of a reused query that is"
+                + " downloaded instead of running the query again. This saves waiting for a new"
+                + " report when a recent one will do, and only applies with "
+                + ArgumentNames.QUERY_INDEX_FILE
+                + ". By default, the query is always run.")
+    public long maxReusedReportAgeMinutes = 0;
+  }
+
+  /** The optional stages of the example, which are all disabled by default. */
+  public static class Options {
+    /** The number of parallel connections used to download the report file. */
+    public int downloadConnections = 1;
+
+    /**
+     * The specs of the outputs the report is streamed to while it is downloaded, see {@link
+     * ReportSinks#parse}, or {@code null}.
+     */
+    public List<String> additionalOutputs;
+
+    /** The path to write a columnar copy of the report to, or {@code null}. */
+    public String columnarOutputFile;
+
+    /** The path to write the rollups of the report to, or {@code null}. */
+    public String rollupOutputFile;
+
+    /** The history used to poll reports around their expected completion time, or {@code null}. */
+    public ReportGenerationHistory history;
+
+    /** The index used to reuse queries with the same definition, or {@code null}. */
+    public QueryIndex queryIndex;
+
+    /** The maximum age of a finished report of a reused query that is downloaded instead. */
+    public long maxReusedReportAgeMillis;
   }
 
   public static void main(String[] args) throws Exception {
@@ -83,29 +217,136 @@ public class CreateAndRunQuery {
       params.outputFile = "INSERT_OUTPUT_FILE_HERE";
     }
 
+    RequestRateLimiter.get().setLimits(params.requestRateLimits);
+    ReadRetryPolicy.get().setMaxRetries(params.maxReadRetries);
+    RequestHedger.get().setEnabled(params.hedgeReads);
+    if (params.additionalOutputs != null && params.additionalOutputs.contains("stdout")) {
+      // Keep the messages printed by the sample out of the report written to standard output.
+      System.setOut(System.err);
+    }
+
     DoubleClickBidManager service =
         BidManagerFactory.getInstance(
             params.clientSecretsFile,
             params.useServiceAccount,
             params.serviceAccountKeyFile,
-            params.additionalScopes);
+            params.additionalScopes,
+            params.rootUrl);
+
+    try {
+      runExample(
+          service,
+          params.title,
+          params.advertiserIdFilter,
+          params.campaignIdFilters,
+          params.outputFile,
+          newOptions(params));
+    } finally {
+      if (params.metricsFile != null) {
+        RequestMetrics.get().writeTo(params.metricsFile);
+      }
+    }
+  }
 
-    runExample(
-        service,
-        params.title,
-        params.advertiserIdFilter,
-        params.campaignIdFilters,
-        params.outputFile);
+  /**
+   * Builds the options of the example from its command line arguments, opening the report history
+   * and query index files they name.
+   */
+  static Options newOptions(CreateAndRunQueryParams params) throws IOException {
+    Options options = new Options();
+    options.downloadConnections = params.downloadConnections;
+    options.additionalOutputs = params.additionalOutputs;
+    options.columnarOutputFile = params.columnarOutputFile;
+    options.rollupOutputFile = params.rollupOutputFile;
+    if (!Strings.isNullOrEmpty(params.reportHistoryFile)) {
+      options.history = new ReportGenerationHistory(params.reportHistoryFile);
+    }
+    if (!Strings.isNullOrEmpty(params.queryIndexFile)) {
+      options.queryIndex = new QueryIndex(params.queryIndexFile);
+    }
+    options.maxReusedReportAgeMillis = TimeUnit.MINUTES.toMillis(params.maxReusedReportAgeMinutes);
+    return options;
   }
 
-  public static void runExample(
+  /**
+   * Creates and runs a query, and downloads the report once finished.
+   *
+   * @return The finished report, or {@code null} if no report could be generated.
+   */
+  public static Report runExample(
       DoubleClickBidManager service,
       String title,
       String advertiserIdFilter,
       List<String> campaignIdFilters,
       String outputFile)
       throws Exception {
+    return runExample(
+        service, title, advertiserIdFilter, campaignIdFilters, outputFile, new Options());
+  }
 
+  /**
+   * Creates and runs a query, or reuses an existing one, downloads the report once finished, and
+   * writes the optional outputs enabled in the options.
+   *
+   * @return The finished report, or {@code null} if no report could be generated.
+   */
+  public static Report runExample(
+      DoubleClickBidManager service,
+      String title,
+      String advertiserIdFilter,
+      List<String> campaignIdFilters,
+      String outputFile,
+      Options options)
+      throws Exception {
+
+    // Build the query structure.
+    Query query = buildQuery(title, advertiserIdFilter, campaignIdFilters);
+
+    // Create and run the query, or reuse an existing query with the same definition.
+    Report reportResponse =
+        options.queryIndex == null
+            ? createAndRunQuery(service, query)
+            : reuseOrCreateAndRunQuery(
+                service, query, options.queryIndex, options.maxReusedReportAgeMillis);
+
+    // Poll report, waiting for it to be finished, unless an already finished report is reused.
+    Report finishedReport =
+        isDone(reportResponse)
+            ? reportResponse
+            : pollReportUntilFinished(service, reportResponse, options.history);
+
+    if (finishedReport != null) {
+      if (finishedReport.getMetadata().getStatus().getState().equals("DONE")) {
+        System.out.printf(
+            "Report %s generated successfully.%n", finishedReport.getKey().getReportId());
+      } else {
+        System.out.printf(
+            "Report %s failed to generate. Exiting.%n", finishedReport.getKey().getReportId());
+        return null;
+      }
+    } else {
+      System.out.println("Abandoning report polling. Exiting.");
+      return null;
+    }
+
+    // Download report file.
+    downloadReport(
+        finishedReport, outputFile, options.downloadConnections, options.additionalOutputs);
+
+    // Write the outputs derived from the report file.
+    writeDerivedOutputs(finishedReport, outputFile, options);
+    return finishedReport;
+  }
+
+  /**
+   * Builds the structure of the basic query used by this example.
+   *
+   * @param title The title of the query.
+   * @param advertiserIdFilter The advertiser ID to assign as a filter for the query.
+   * @param campaignIdFilters The campaign IDs to assign as filters for the query, or {@code null}.
+   * @return The {@link Query} to be created.
+   */
+  static Query buildQuery(String title, String advertiserIdFilter, List<String> campaignIdFilters) {
     // Create the query structure.
     Query query = new Query();
 
@@ -166,6 +407,17 @@ public class CreateAndRunQuery {
     schedule.setFrequency("ONE_TIME");
     query.setSchedule(schedule);
 
+    return query;
+  }
+
+  /**
+   * Creates the given query and runs it asynchronously.
+   *
+   * @param service The Bid Manager API service object.
+   * @param query The query to create.
+   * @return The {@link Report} that is being generated by the query run.
+   */
+  static Report createAndRunQuery(DoubleClickBidManager service, Query query) throws Exception {
     // Create the query.
     Query queryResponse = service.queries().create(query).execute();
 
@@ -185,67 +437,232 @@ public class CreateAndRunQuery {
         "Query %s is running, report %s has been created and is currently being generated.%n",
         reportResponse.getKey().getQueryId(), reportResponse.getKey().getReportId());
 
-    // Poll report, waiting for it to be finished.
-    Report finishedReport = pollReportUntilFinished(service, reportResponse);
+    return reportResponse;
+  }
 
-    if (finishedReport != null) {
-      if (finishedReport.getMetadata().getStatus().getState().equals("DONE")) {
-        System.out.printf(
-            "Report %s generated successfully.%n", finishedReport.getKey().getReportId());
-      } else {
+  /**
+   * Runs an existing query with the same definition as the given query, or creates and runs the
+   * query if there is none. If the existing query has a report that finished recently enough, that
+   * report is returned instead of running the query again.
+   *
+   * <p>Queries are looked up in a local index. If the index has no query with the definition, it
+   * is refreshed by listing all queries, at most once per hour, so queries created elsewhere are
+   * found too.
+   *
+   * @param service The Bid Manager API service object.
+   * @param query The query to create.
+   * @param queryIndex The index of existing queries by definition.
+   * @param maxReusedReportAgeMillis The maximum time since a reusable report finished.
+   * @return The {@link Report} that is being generated by the query run, or a finished report.
+   */
+  static Report reuseOrCreateAndRunQuery(
+      DoubleClickBidManager service,
+      Query query,
+      QueryIndex queryIndex,
+      long maxReusedReportAgeMillis)
+      throws Exception {
+    String fingerprint = QueryIndex.getFingerprint(query);
+    Long queryId = queryIndex.findQueryId(fingerprint);
+    if (queryId == null
+        && System.currentTimeMillis() - queryIndex.getRefreshTimeMillis()
+            >= MIN_QUERY_INDEX_REFRESH_INTERVAL_IN_MILLIS) {
+      queryIndex.refresh(service);
+      queryId = queryIndex.findQueryId(fingerprint);
+    }
+
+    if (queryId != null) {
+      try {
+        Report recentReport = findRecentDoneReport(service, queryId, maxReusedReportAgeMillis);
+        if (recentReport != null) {
+          System.out.printf(
+              "Query %s has the same definition, reusing its report %s finished at %s.%n",
+              queryId,
+              recentReport.getKey().getReportId(),
+              recentReport.getMetadata().getStatus().getFinishTime());
+          return recentReport;
+        }
+
+        Report reportResponse =
+            service
+                .queries()
+                .run(queryId, new RunQueryRequest())
+                .setSynchronous(false)
+                .execute();
         System.out.printf(
-            "Report %s failed to generate. Exiting.%n", finishedReport.getKey().getReportId());
-        return;
+            "Query %s has the same definition and is running, report %s has been created and is"
+                + " currently being generated.%n",
+            queryId, reportResponse.getKey().getReportId());
+        return reportResponse;
+      } catch (GoogleJsonResponseException e) {
+        if (e.getStatusCode() != 404) {
+          throw e;
+        }
+        System.out.printf("Query %s no longer exists, creating a new query.%n", queryId);
+        queryIndex.remove(fingerprint);
       }
-    } else {
-      System.out.println("Abandoning report polling. Exiting.");
-      return;
     }
 
-    // Download report file.
+    Report reportResponse = createAndRunQuery(service, query);
+    queryIndex.put(fingerprint, reportResponse.getKey().getQueryId());
+    return reportResponse;
+  }
+
+  /**
+   * Finds the newest report of a query that is DONE and finished recently enough.
+   *
+   * @return The report, or {@code null} if the latest reports are older or not done.
+   */
+  private static Report findRecentDoneReport(
+      final DoubleClickBidManager service, final long queryId, long maxReportAgeMillis)
+      throws Exception {
+    if (maxReportAgeMillis <= 0) {
+      return null;
+    }
+
+    ListReportsResponse response =
+        RequestHedger.get()
+            .execute(
+                ApiEndpoint.REPORTS_LIST,
+                new Callable<ListReportsResponse>() {
+                  @Override
+                  public ListReportsResponse call() throws Exception {
+                    return service
+                        .queries()
+                        .reports()
+                        .list(queryId)
+                        .setOrderBy("key.reportId desc")
+                        .setPageSize(REUSABLE_REPORTS_PAGE_SIZE)
+                        .execute();
+                  }
+                });
+    if (response.getReports() == null) {
+      return null;
+    }
+    for (Report report : response.getReports()) {
+      String finishTime = report.getMetadata().getStatus().getFinishTime();
+      if (isDone(report) && finishTime != null) {
+        long ageMillis = System.currentTimeMillis() - DateTime.parseRfc3339(finishTime).getValue();
+        return ageMillis <= maxReportAgeMillis ? report : null;
+      }
+    }
+    return null;
+  }
+
+  static boolean isDone(Report report) {
+    return "DONE".equals(report.getMetadata().getStatus().getState());
+  }
+
+  /**
+   * Downloads the file of a finished report.
+   *
+   * @param finishedReport The report to download, which must be in the DONE state.
+   * @param outputFile The path to download the report to.
+   * @param connections The number of parallel connections to download the report with.
+   */
+  static void downloadReport(Report finishedReport, String outputFile, int connections)
+      throws Exception {
+    downloadReport(finishedReport, outputFile, connections, Collections.<String>emptyList());
+  }
+
+  /**
+   * Downloads the file of a finished report, streaming it to additional outputs at the same time.
+   *
+   * @param finishedReport The report to download, which must be in the DONE state.
+   * @param outputFile The path to download the report to.
+   * @param connections The number of parallel connections to download the report with.
+   * @param additionalOutputs The specs of the outputs to stream the report to, see {@link
+   *     ReportSinks#parse}. If empty, the report is downloaded to the output file only, and the
+   *     download is resumed if it is interrupted.
+   */
+  static void downloadReport(
+      Report finishedReport, String outputFile, int connections, List<String> additionalOutputs)
+      throws Exception {
     System.out.println("Downloading report file.");
-    DownloadUtils.downloadFileFromCloudStorage(
-        finishedReport.getMetadata().getGoogleCloudStoragePath(), outputFile);
+    String cloudStoragePath = finishedReport.getMetadata().getGoogleCloudStoragePath();
+    if (additionalOutputs == null || additionalOutputs.isEmpty()) {
+      DownloadUtils.downloadFileFromCloudStorage(cloudStoragePath, outputFile, connections);
+    } else {
+      try (ReportSink sink = ReportSinks.forOutputs(outputFile, additionalOutputs)) {
+        DownloadUtils.downloadToSink(cloudStoragePath, sink, connections);
+      }
+    }
     System.out.printf(
         "Report %s successfully downloaded at %s.%n",
         finishedReport.getKey().getReportId(), outputFile);
   }
 
-  private static Report pollReportUntilFinished(DoubleClickBidManager service, Report report)
+  /**
+   * Writes the columnar copy and the rollups of a downloaded report file, if enabled.
+   *
+   * @param report The report the file was downloaded from.
+   * @param reportFile The path of the downloaded CSV report.
+   * @param options The options naming the outputs to write.
+   */
+  static void writeDerivedOutputs(Report report, String reportFile, Options options)
       throws Exception {
-    // Configure reports.get request.
-    Reports.Get reportGetRequest =
-        service
-            .queries()
-            .reports()
-            .get(report.getKey().getQueryId(), report.getKey().getReportId());
-
-    // Configure exponential backoff for checking the status of our report.
-    ExponentialBackOff backOff =
-        new ExponentialBackOff.Builder()
-            .setInitialIntervalMillis(MIN_RETRY_INTERVAL_IN_MILLIS) // setting initial interval
-            .setMaxIntervalMillis(MAX_RETRY_INTERVAL_IN_MILLIS) // setting max interval
-            .setMaxElapsedTimeMillis(MAX_RETRY_ELAPSED_TIME_IN_MILLIS) // setting max elapsed time
-            .build();
-
-    while (!report.getMetadata().getStatus().getState().equals("DONE")
-        && !report.getMetadata().getStatus().getState().equals("FAILED")) {
-      long backoffMillis = backOff.nextBackOffMillis();
-      if (backoffMillis == ExponentialBackOff.STOP) {
-        System.out.printf(
-            "The report has taken more than %s minutes to generate.%n",
-            MAX_RETRY_ELAPSED_TIME_IN_MILLIS / 60_000);
-        return null;
-      }
-      System.out.printf(
-          "The report has not yet completed. Waiting %s seconds before polling report again.%n",
-          backoffMillis / 1000);
-      Thread.sleep(backoffMillis);
+    if (options.columnarOutputFile != null) {
+      convertToColumnar(report, reportFile, options.columnarOutputFile);
+    }
+    if (options.rollupOutputFile != null) {
+      writeRollups(report, reportFile, options.rollupOutputFile);
+    }
+  }
+
+  /**
+   * Converts a downloaded report file into a columnar file.
+   *
+   * @param report The report the file was downloaded from.
+   * @param reportFile The path of the downloaded CSV report.
+   * @param columnarOutputFile The path to write the columnar file to.
+   */
+  static void convertToColumnar(Report report, String reportFile, String columnarOutputFile)
+      throws Exception {
+    ReportSchema schema = ReportSchema.fromParameters(report.getParams());
+    ColumnarReportWriter.convert(reportFile, schema, columnarOutputFile);
+    System.out.printf(
+        "Report %s converted to columnar file %s.%n",
+        report.getKey().getReportId(), columnarOutputFile);
+  }
 
-      // Get current status of operation.
-      report = reportGetRequest.execute();
+  /**
+   * Sums the metrics of a downloaded report by line item, insertion order and advertiser.
+   *
+   * @param report The report the file was downloaded from.
+   * @param reportFile The path of the downloaded CSV report.
+   * @param rollupOutputFile The path to write the sums to, as CSV.
+   */
+  static void writeRollups(Report report, String reportFile, String rollupOutputFile)
+      throws Exception {
+    ReportSchema schema = ReportSchema.fromParameters(report.getParams());
+    ReportAggregator aggregator =
+        new ReportAggregator(schema, ROLLUP_GROUP_BYS, ROLLUP_METRICS, MAX_ROLLUP_GROUPS);
+    ReportAggregator.aggregate(reportFile, schema, aggregator);
+    try (Writer writer = Files.newBufferedWriter(Paths.get(rollupOutputFile), UTF_8)) {
+      aggregator.writeCsv(writer);
     }
+    System.out.printf(
+        "Metrics of report %s rolled up to %s.%n",
+        report.getKey().getReportId(), rollupOutputFile);
+  }
 
-    return report;
+  static Report pollReportUntilFinished(
+      DoubleClickBidManager service, Report report, ReportGenerationHistory history)
+      throws Exception {
+    // Check the status of the report with backoff until it finishes, polling around the expected
+    // completion time if similar reports were generated before.
+    try (ReportPoller poller =
+        new ReportPoller(
+            service,
+            1,
+            MIN_RETRY_INTERVAL_IN_MILLIS,
+            MAX_RETRY_INTERVAL_IN_MILLIS,
+            MAX_RETRY_ELAPSED_TIME_IN_MILLIS,
+            history)) {
+      return poller.poll(report).get();
+    } catch (ExecutionException e) {
+      // Surface the error raised while checking the report status.
+      Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+      throw e;
+    }
   }
 }
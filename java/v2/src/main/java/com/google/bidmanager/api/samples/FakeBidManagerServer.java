@@ -0,0 +1,726 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.beust.jcommander.Parameter;
+import com.google.api.client.googleapis.util.Utils;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.doubleclickbidmanager.model.ListQueriesResponse;
+import com.google.api.services.doubleclickbidmanager.model.ListReportsResponse;
+import com.google.api.services.doubleclickbidmanager.model.Parameters;
+import com.google.api.services.doubleclickbidmanager.model.Query;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.api.services.doubleclickbidmanager.model.ReportKey;
+import com.google.api.services.doubleclickbidmanager.model.ReportMetadata;
+import com.google.api.services.doubleclickbidmanager.model.ReportStatus;
+import com.google.bidmanager.api.samples.utils.ArgumentNames;
+import com.google.bidmanager.api.samples.utils.CodeSampleParams;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This example runs a local stand-in for the Bid Manager API and the Cloud Storage bucket holding
+ * report files, so the other samples can be load tested offline without spending API quota. Run
+ * them with {@code --rootUrl} set to the URL printed on start.
+ *
+ * <p>The server keeps queries and reports in memory and serves {@code queries.create}, {@code
+ * queries.delete}, {@code queries.get}, {@code queries.list}, {@code queries.run}, {@code
+ * reports.get} and {@code reports.list}, also as the calls of batch requests. Reports are RUNNING
+ * for a configured time after their query is run, and then DONE, or FAILED for a configured share
+ * of them. The report file of a DONE report is a synthetic CSV file of a configured size, with the
+ * columns of its query, served with support for Range requests.
+ *
+ * <p>Every response is delayed by a configured latency, and a configured share of requests fail
+ * with a 503 status code, as the real API and Cloud Storage occasionally do.
+ */
+public class FakeBidManagerServer implements AutoCloseable {
+  /** Default port the server listens on. */
+  private static final int DEFAULT_PORT = 8766;
+
+  /** System property setting whether the HTTP server disables Nagle's algorithm. */
+  private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+  private static final Pattern QUERIES_PATH = Pattern.compile(".*/queries");
+  private static final Pattern QUERY_PATH = Pattern.compile(".*/queries/(\\d+)");
+  private static final Pattern RUN_QUERY_PATH = Pattern.compile(".*/queries/(\\d+)(:|%3A)run");
+  private static final Pattern REPORTS_PATH = Pattern.compile(".*/queries/(\\d+)/reports");
+  private static final Pattern REPORT_PATH = Pattern.compile(".*/queries/(\\d+)/reports/(\\d+)");
+  private static final Pattern BATCH_PATH = Pattern.compile(".*/batch(/.*)?");
+  private static final Pattern REPORT_FILE_PATH =
+      Pattern.compile("/storage/(\\d+)/(\\d+)\\.csv");
+  private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+
+  /** The header of the synthetic report files of queries without dimensions or metrics. */
+  private static final List<String> DEFAULT_COLUMNS =
+      Arrays.asList("FILTER_ADVERTISER", "METRIC_IMPRESSIONS");
+
+  /** Width of every value in the synthetic report files, so any row can be found by offset. */
+  private static final int VALUE_WIDTH = 10;
+
+  private static final byte[] REPORT_FILE_FOOTER =
+      "\nReport Time:,Generated by FakeBidManagerServer\n".getBytes(UTF_8);
+
+  private static final JsonFactory JSON_FACTORY = Utils.getDefaultJsonFactory();
+
+  private static class FakeBidManagerServerParams extends CodeSampleParams {
+
+    @Parameter(names = ArgumentNames.PORT, description = "The port to listen on.")
+    public int port = DEFAULT_PORT;
+
+    @Parameter(
+        names = ArgumentNames.LATENCY_MILLIS,
+        description = "The delay before every response, in milliseconds.")
+    public long latencyMillis = 50;
+
+    @Parameter(
+        names = ArgumentNames.ERROR_RATE,
+        description = "The share of requests, between 0 and 1, that fail with a 503 status code.")
+    public double errorRate = 0;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_GENERATION_MILLIS,
+        description =
+            "The time a report takes to generate after its query is run, in milliseconds.")
+    public long reportGenerationMillis = 30_000;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_FAILURE_RATE,
+        description = "The share of reports, between 0 and 1, that fail to generate.")
+    public double reportFailureRate = 0;
+
+    @Parameter(
+        names = ArgumentNames.PAGE_SIZE,
+        description = "The maximum number of queries or reports in a page of a list response.")
+    public int pageSize = 100;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_SIZE_IN_BYTES,
+        description = "The approximate size of every report file, in bytes.")
+    public long reportSizeInBytes = 1024 * 1024;
+  }
+
+  public static void main(String[] args) throws Exception {
+    FakeBidManagerServerParams params = new FakeBidManagerServerParams();
+    params.parseArguments(args);
+
+    runExample(
+        params.port,
+        params.latencyMillis,
+        params.errorRate,
+        params.reportGenerationMillis,
+        params.reportFailureRate,
+        params.pageSize,
+        params.reportSizeInBytes);
+  }
+
+  /** Serves the fake API until the process is stopped. */
+  public static void runExample(
+      int port,
+      long latencyMillis,
+      double errorRate,
+      long reportGenerationMillis,
+      double reportFailureRate,
+      int pageSize,
+      long reportSizeInBytes)
+      throws Exception {
+    final FakeBidManagerServer server =
+        new FakeBidManagerServer(
+            port,
+            latencyMillis,
+            errorRate,
+            reportGenerationMillis,
+            reportFailureRate,
+            pageSize,
+            reportSizeInBytes);
+    System.out.printf(
+        "Serving a fake Bid Manager API. Run the samples with --rootUrl %s%n",
+        server.getRootUrl());
+
+    final CountDownLatch stopped = new CountDownLatch(1);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread() {
+              @Override
+              public void run() {
+                server.close();
+                stopped.countDown();
+              }
+            });
+    stopped.await();
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+  private final double errorRate;
+  private final long reportGenerationMillis;
+  private final double reportFailureRate;
+  private final int pageSize;
+  private final long reportSizeInBytes;
+
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final ConcurrentSkipListMap<Long, Query> queries =
+      new ConcurrentSkipListMap<Long, Query>();
+  private final ConcurrentMap<Long, ConcurrentSkipListMap<Long, FakeReport>> reports =
+      new ConcurrentHashMap<Long, ConcurrentSkipListMap<Long, FakeReport>>();
+
+  /**
+   * Starts a server on the loopback interface.
+   *
+   * @param port The port to listen on, or 0 to pick a free port.
+   * @param latencyMillis The delay before every response.
+   * @param errorRate The share of requests, and of the calls of batch requests, that fail with a
+   *     503 status code.
+   * @param reportGenerationMillis The time a report is RUNNING after its query is run.
+   * @param reportFailureRate The share of reports that are FAILED instead of DONE once generated.
+   * @param pageSize The maximum number of queries or reports in a page of a list response.
+   * @param reportSizeInBytes The approximate size of every report file.
+   */
+  public FakeBidManagerServer(
+      int port,
+      long latencyMillis,
+      double errorRate,
+      long reportGenerationMillis,
+      double reportFailureRate,
+      int pageSize,
+      long reportSizeInBytes)
+      throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.errorRate = errorRate;
+    this.reportGenerationMillis = reportGenerationMillis;
+    this.reportFailureRate = reportFailureRate;
+    this.pageSize = pageSize;
+    this.reportSizeInBytes = reportSizeInBytes;
+
+    // Send responses without waiting for the client to acknowledge the headers, which otherwise
+    // adds up to 40 ms to every request. Only read when the first server is created.
+    if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+      System.setProperty(NO_DELAY_PROPERTY, "true");
+    }
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(
+        "/",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              FakeBidManagerServer.this.handle(exchange);
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+    executor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("fake-api-%d").setDaemon(true).build());
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** Returns the root URL of the fake API, ending with a slash. */
+  public String getRootUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    sleep(latencyMillis);
+
+    String method = exchange.getRequestMethod();
+    URI uri = exchange.getRequestURI();
+    Matcher reportFile = REPORT_FILE_PATH.matcher(uri.getRawPath());
+    if (reportFile.matches()) {
+      if (shouldFail(errorRate)) {
+        send(exchange, unavailable());
+        return;
+      }
+      serveReportFile(
+          exchange, Long.parseLong(reportFile.group(1)), Long.parseLong(reportFile.group(2)));
+      return;
+    }
+
+    byte[] body;
+    try (InputStream input = exchange.getRequestBody()) {
+      body = ByteStreams.toByteArray(input);
+    }
+    if (BATCH_PATH.matcher(uri.getRawPath()).matches()) {
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      send(exchange, handleBatch(contentType, body));
+    } else {
+      send(exchange, handleCall(method, uri, body));
+    }
+  }
+
+  /** Handles a single API call, returning its response. */
+  private Response handleCall(String method, URI uri, byte[] body) throws IOException {
+    if (shouldFail(errorRate)) {
+      return unavailable();
+    }
+
+    String path = uri.getRawPath();
+    Map<String, String> parameters = parseQueryString(uri.getRawQuery());
+    Matcher matcher;
+    if ((matcher = REPORT_PATH.matcher(path)).matches() && method.equals("GET")) {
+      FakeReport report = findReport(Long.parseLong(matcher.group(1)), matcher.group(2));
+      return report == null ? notFound() : json(200, report.toReport());
+    }
+    if ((matcher = REPORTS_PATH.matcher(path)).matches() && method.equals("GET")) {
+      return listReports(Long.parseLong(matcher.group(1)), parameters);
+    }
+    if ((matcher = RUN_QUERY_PATH.matcher(path)).matches() && method.equals("POST")) {
+      return runQuery(Long.parseLong(matcher.group(1)));
+    }
+    if ((matcher = QUERY_PATH.matcher(path)).matches()) {
+      long queryId = Long.parseLong(matcher.group(1));
+      if (method.equals("GET")) {
+        Query query = queries.get(queryId);
+        return query == null ? notFound() : json(200, query);
+      }
+      if (method.equals("DELETE")) {
+        reports.remove(queryId);
+        return queries.remove(queryId) == null ? notFound() : json(200, new GenericJson());
+      }
+    }
+    if (QUERIES_PATH.matcher(path).matches()) {
+      if (method.equals("POST")) {
+        return createQuery(body);
+      }
+      if (method.equals("GET")) {
+        return listQueries(parameters);
+      }
+    }
+    return error(404, "NOT_FOUND", "Unknown method: " + method + " " + path);
+  }
+
+  private Response createQuery(byte[] body) throws IOException {
+    Query query =
+        JSON_FACTORY.createJsonParser(new String(body, UTF_8)).parseAndClose(Query.class);
+    query.setQueryId(nextId.getAndIncrement());
+    queries.put(query.getQueryId(), query);
+    return json(200, query);
+  }
+
+  private Response listQueries(Map<String, String> parameters) throws IOException {
+    List<Query> page = new ArrayList<Query>();
+    NavigableMap<Long, Query> remaining = queries;
+    String pageToken = parameters.get("pageToken");
+    if (!Strings.isNullOrEmpty(pageToken)) {
+      remaining = queries.tailMap(Long.parseLong(pageToken), false);
+    }
+    int size = getPageSize(parameters);
+    Long lastQueryId = null;
+    for (Query query : remaining.values()) {
+      if (page.size() == size) {
+        break;
+      }
+      page.add(query);
+      lastQueryId = query.getQueryId();
+    }
+    ListQueriesResponse response = new ListQueriesResponse().setQueries(page);
+    if (lastQueryId != null && remaining.higherKey(lastQueryId) != null) {
+      response.setNextPageToken(lastQueryId.toString());
+    }
+    return json(200, response);
+  }
+
+  private Response runQuery(long queryId) throws IOException {
+    Query query = queries.get(queryId);
+    if (query == null) {
+      return notFound();
+    }
+    FakeReport report =
+        new FakeReport(
+            queryId,
+            nextId.getAndIncrement(),
+            query.getParams(),
+            System.currentTimeMillis() + reportGenerationMillis,
+            shouldFail(reportFailureRate));
+    reports.putIfAbsent(queryId, new ConcurrentSkipListMap<Long, FakeReport>());
+    reports.get(queryId).put(report.reportId, report);
+    return json(200, report.toReport());
+  }
+
+  private Response listReports(long queryId, Map<String, String> parameters) throws IOException {
+    if (!queries.containsKey(queryId)) {
+      return notFound();
+    }
+    NavigableMap<Long, FakeReport> remaining = reports.get(queryId);
+    if (remaining == null) {
+      remaining = new ConcurrentSkipListMap<Long, FakeReport>();
+    }
+    String orderBy = parameters.get("orderBy");
+    if (orderBy != null && orderBy.endsWith("desc")) {
+      remaining = remaining.descendingMap();
+    }
+    String pageToken = parameters.get("pageToken");
+    if (!Strings.isNullOrEmpty(pageToken)) {
+      remaining = remaining.tailMap(Long.parseLong(pageToken), false);
+    }
+    int size = getPageSize(parameters);
+    List<Report> page = new ArrayList<Report>();
+    Long lastReportId = null;
+    for (FakeReport report : remaining.values()) {
+      if (page.size() == size) {
+        break;
+      }
+      page.add(report.toReport());
+      lastReportId = report.reportId;
+    }
+    ListReportsResponse response = new ListReportsResponse().setReports(page);
+    if (lastReportId != null && remaining.higherKey(lastReportId) != null) {
+      response.setNextPageToken(lastReportId.toString());
+    }
+    return json(200, response);
+  }
+
+  private int getPageSize(Map<String, String> parameters) {
+    String requestedPageSize = parameters.get("pageSize");
+    return Strings.isNullOrEmpty(requestedPageSize)
+        ? pageSize
+        : Math.min(pageSize, Integer.parseInt(requestedPageSize));
+  }
+
+  private FakeReport findReport(long queryId, String reportId) {
+    Map<Long, FakeReport> queryReports = reports.get(queryId);
+    return queryReports == null ? null : queryReports.get(Long.parseLong(reportId));
+  }
+
+  /**
+   * Handles a batch request, whose body holds one HTTP request per part, and returns one HTTP
+   * response per part in the same order.
+   */
+  private Response handleBatch(String contentType, byte[] body) throws IOException {
+    Matcher boundaryMatcher = BOUNDARY.matcher(Strings.nullToEmpty(contentType));
+    if (!boundaryMatcher.find()) {
+      return error(400, "INVALID_ARGUMENT", "Batch requests must be multipart.");
+    }
+    String boundary = boundaryMatcher.group(1);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    String responseBoundary = "batch_" + nextId.getAndIncrement();
+    for (String part : Splitter.on("--" + boundary).split(new String(body, UTF_8))) {
+      // Skip the preamble and the end of the last part.
+      int requestStart = part.indexOf("\r\n\r\n");
+      if (requestStart < 0) {
+        continue;
+      }
+      String contentId = getHeader(part.substring(0, requestStart), "Content-ID");
+      String request = part.substring(requestStart + 4);
+      int requestBodyStart = request.indexOf("\r\n\r\n");
+      String requestBody =
+          requestBodyStart < 0 ? "" : request.substring(requestBodyStart + 4).trim();
+      String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+
+      Response response =
+          handleCall(requestLine[0], URI.create(requestLine[1]), requestBody.getBytes(UTF_8));
+      StringBuilder responsePart = new StringBuilder();
+      responsePart.append("--").append(responseBoundary).append("\r\n");
+      responsePart.append("Content-Type: application/http\r\n");
+      if (contentId != null) {
+        responsePart.append("Content-ID: response-").append(contentId).append("\r\n");
+      }
+      responsePart.append("\r\n");
+      responsePart.append("HTTP/1.1 ").append(response.statusCode).append(' ');
+      responsePart.append(response.statusCode < 400 ? "OK" : "Error").append("\r\n");
+      responsePart.append("Content-Type: ").append(response.contentType).append("\r\n");
+      responsePart.append("Content-Length: ").append(response.body.length).append("\r\n\r\n");
+      output.write(responsePart.toString().getBytes(UTF_8));
+      output.write(response.body);
+      output.write("\r\n".getBytes(UTF_8));
+    }
+    output.write(("--" + responseBoundary + "--\r\n").getBytes(UTF_8));
+    return new Response(
+        200, "multipart/mixed; boundary=" + responseBoundary, output.toByteArray());
+  }
+
+  /** Serves the synthetic report file of a DONE report, or the requested range of it. */
+  private void serveReportFile(HttpExchange exchange, long queryId, long reportId)
+      throws IOException {
+    FakeReport report = findReport(queryId, Long.toString(reportId));
+    if (report == null || !report.getState().equals("DONE")) {
+      send(exchange, error(404, "NOT_FOUND", "No such report file."));
+      return;
+    }
+    ReportFile file = new ReportFile(report.params, reportSizeInBytes);
+    long size = file.getSizeInBytes();
+    long firstByte = 0;
+    long lastByte = size - 1;
+
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null && range.startsWith("bytes=")) {
+      String[] bounds = range.substring("bytes=".length()).split("-", 2);
+      firstByte = Long.parseLong(bounds[0]);
+      if (!bounds[1].isEmpty()) {
+        lastByte = Math.min(Long.parseLong(bounds[1]), size - 1);
+      }
+      if (firstByte >= size) {
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      exchange
+          .getResponseHeaders()
+          .set("Content-Range", String.format("bytes %s-%s/%s", firstByte, lastByte, size));
+      exchange.sendResponseHeaders(206, lastByte - firstByte + 1);
+    } else {
+      exchange.sendResponseHeaders(200, size);
+    }
+
+    try (OutputStream output = exchange.getResponseBody()) {
+      file.write(output, firstByte, lastByte);
+    }
+  }
+
+  private static Response json(int statusCode, GenericJson content) throws IOException {
+    byte[] body = JSON_FACTORY.toString(content).getBytes(UTF_8);
+    return new Response(statusCode, "application/json; charset=UTF-8", body);
+  }
+
+  private static Response notFound() throws IOException {
+    return error(404, "NOT_FOUND", "Requested entity was not found.");
+  }
+
+  private static Response unavailable() throws IOException {
+    return error(503, "UNAVAILABLE", "The service is currently unavailable.");
+  }
+
+  /** Builds an error response in the format of Google APIs. */
+  private static Response error(int statusCode, String status, String message) throws IOException {
+    GenericJson error = new GenericJson();
+    error.set("code", statusCode);
+    error.set("message", message);
+    error.set("status", status);
+    GenericJson content = new GenericJson();
+    content.set("error", error);
+    return json(statusCode, content);
+  }
+
+  private static void send(HttpExchange exchange, Response response) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", response.contentType);
+    exchange.sendResponseHeaders(response.statusCode, response.body.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(response.body);
+    }
+  }
+
+  private static String getHeader(String headers, String name) {
+    for (String header : Splitter.on("\r\n").split(headers)) {
+      int separator = header.indexOf(':');
+      if (separator > 0 && header.substring(0, separator).trim().equalsIgnoreCase(name)) {
+        return header.substring(separator + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  private static Map<String, String> parseQueryString(String query) throws IOException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    if (query == null) {
+      return parameters;
+    }
+    for (String parameter : Splitter.on('&').omitEmptyStrings().split(query)) {
+      int separator = parameter.indexOf('=');
+      if (separator > 0) {
+        parameters.put(
+            URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+            URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+      }
+    }
+    return parameters;
+  }
+
+  private static boolean shouldFail(double rate) {
+    return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
+  private static void sleep(long millis) throws IOException {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while simulating latency.", e);
+    }
+  }
+
+  /** A response to an API call. */
+  private static final class Response {
+    final int statusCode;
+    final String contentType;
+    final byte[] body;
+
+    Response(int statusCode, String contentType, byte[] body) {
+      this.statusCode = statusCode;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  /** A report generated for a query, whose state follows from the time it finishes. */
+  private final class FakeReport {
+    final long queryId;
+    final long reportId;
+    final Parameters params;
+    final long finishTimeMillis;
+    final boolean fails;
+
+    FakeReport(
+        long queryId, long reportId, Parameters params, long finishTimeMillis, boolean fails) {
+      this.queryId = queryId;
+      this.reportId = reportId;
+      this.params = params;
+      this.finishTimeMillis = finishTimeMillis;
+      this.fails = fails;
+    }
+
+    String getState() {
+      if (System.currentTimeMillis() < finishTimeMillis) {
+        return "RUNNING";
+      }
+      return fails ? "FAILED" : "DONE";
+    }
+
+    Report toReport() {
+      String state = getState();
+      ReportStatus status = new ReportStatus().setState(state).setFormat("CSV");
+      ReportMetadata metadata = new ReportMetadata().setStatus(status);
+      if (!state.equals("RUNNING")) {
+        status.setFinishTime(new DateTime(finishTimeMillis).toStringRfc3339());
+      }
+      if (state.equals("DONE")) {
+        metadata.setGoogleCloudStoragePath(
+            getRootUrl() + "storage/" + queryId + "/" + reportId + ".csv");
+      }
+      return new Report()
+          .setKey(new ReportKey().setQueryId(queryId).setReportId(reportId))
+          .setMetadata(metadata)
+          .setParams(params);
+    }
+  }
+
+  /**
+   * A synthetic CSV report file with the columns of a query. All values have the same width, so
+   * any byte range of the file is generated without generating the rows before it. Every row has
+   * its own dimension values, so rows can be told apart.
+   */
+  private static final class ReportFile {
+    private final byte[] header;
+    private final int columnCount;
+    private final int rowLength;
+    private final long rowCount;
+
+    ReportFile(Parameters params, long sizeInBytes) {
+      List<String> columns = new ArrayList<String>();
+      if (params != null && params.getGroupBys() != null) {
+        columns.addAll(params.getGroupBys());
+      }
+      if (params != null && params.getMetrics() != null) {
+        columns.addAll(params.getMetrics());
+      }
+      if (columns.isEmpty()) {
+        columns = DEFAULT_COLUMNS;
+      }
+      StringBuilder headerLine = new StringBuilder();
+      for (String column : columns) {
+        headerLine.append(headerLine.length() == 0 ? "" : ",").append(column);
+      }
+      header = headerLine.append('\n').toString().getBytes(UTF_8);
+      columnCount = columns.size();
+      rowLength = columnCount * (VALUE_WIDTH + 1);
+      rowCount =
+          Math.max(0, (sizeInBytes - header.length - REPORT_FILE_FOOTER.length) / rowLength);
+    }
+
+    long getSizeInBytes() {
+      return header.length + rowCount * rowLength + REPORT_FILE_FOOTER.length;
+    }
+
+    /** Writes the bytes of the file from {@code firstByte} to {@code lastByte}, inclusive. */
+    void write(OutputStream output, long firstByte, long lastByte) throws IOException {
+      long position = firstByte;
+      long rowsEnd = header.length + rowCount * rowLength;
+      if (position < header.length) {
+        int end = (int) Math.min(header.length, lastByte + 1);
+        output.write(header, (int) position, end - (int) position);
+        position = end;
+      }
+      byte[] row = new byte[rowLength];
+      while (position <= lastByte && position < rowsEnd) {
+        long rowIndex = (position - header.length) / rowLength;
+        int offset = (int) ((position - header.length) % rowLength);
+        fillRow(row, rowIndex);
+        int length = (int) Math.min(rowLength - offset, lastByte + 1 - position);
+        output.write(row, offset, length);
+        position += length;
+      }
+      if (position <= lastByte) {
+        int offset = (int) (position - rowsEnd);
+        output.write(REPORT_FILE_FOOTER, offset, (int) (lastByte + 1 - position));
+      }
+    }
+
+    private void fillRow(byte[] row, long rowIndex) {
+      for (int column = 0; column < columnCount; column++) {
+        // The first column numbers the rows, and the others hold values derived from the row.
+        long value = column == 0 ? rowIndex : (rowIndex * 31 + column * 7919) % 1_000_000_000L;
+        int end = (column + 1) * (VALUE_WIDTH + 1) - 1;
+        for (int i = end - 1; i >= end - VALUE_WIDTH; i--) {
+          row[i] = (byte) ('0' + value % 10);
+          value /= 10;
+        }
+        row[end] = (byte) (column == columnCount - 1 ? '\n' : ',');
+      }
+    }
+  }
+}
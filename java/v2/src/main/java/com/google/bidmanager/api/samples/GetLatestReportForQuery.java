@@ -15,17 +15,37 @@
 package com.google.bidmanager.api.samples;
 
 import com.beust.jcommander.Parameter;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
 import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager.Queries.Reports;
 import com.google.api.services.doubleclickbidmanager.model.ListReportsResponse;
 import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.bidmanager.api.samples.utils.ApiEndpoint;
 import com.google.bidmanager.api.samples.utils.ArgumentNames;
 import com.google.bidmanager.api.samples.utils.CodeSampleParams;
+import com.google.bidmanager.api.samples.utils.CompressionUtils;
 import com.google.bidmanager.api.samples.utils.DownloadUtils;
+import com.google.bidmanager.api.samples.utils.ReadRetryPolicy;
+import com.google.bidmanager.api.samples.utils.ReportCache;
+import com.google.bidmanager.api.samples.utils.ReportDelta;
+import com.google.bidmanager.api.samples.utils.ReportIndex;
+import com.google.bidmanager.api.samples.utils.ReportSchema;
+import com.google.bidmanager.api.samples.utils.ReportSink;
+import com.google.bidmanager.api.samples.utils.ReportSinks;
+import com.google.bidmanager.api.samples.utils.RequestHedger;
+import com.google.bidmanager.api.samples.utils.RequestMetrics;
+import com.google.bidmanager.api.samples.utils.RequestRateLimiter;
 import com.google.common.base.Strings;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 /** This example downloads the most recent finished report under a query. */
 public class GetLatestReportForQuery {
+  /** Default maximum size of the report cache. Defaults to 10 GB. */
+  static final long DEFAULT_REPORT_CACHE_MAX_BYTES = 10L * 1024 * 1024 * 1024;
 
   private static class GetLatestReportForQueryParams extends CodeSampleParams {
 
@@ -40,6 +60,53 @@ public class GetLatestReportForQuery {
         description = "The path to download the resulting report to.",
         required = true)
     public String outputFile;
+
+    @Parameter(
+        names = ArgumentNames.DOWNLOAD_CONNECTIONS,
+        description = "The number of parallel connections used to download the report file.")
+    public int downloadConnections = 1;
+
+    @Parameter(
+        names = ArgumentNames.ADDITIONAL_OUTPUTS,
+        description =
+            "Outputs the report is streamed to while it is downloaded, along with the output file:"
+                + " stdout, file:PATH, gzip:PATH or split:PREFIX:MEGABYTES. Downloads streamed to"
+                + " additional outputs are not resumed if they fail.")
+    public List<String> additionalOutputs;
+
+    @Parameter(
+        names = ArgumentNames.COLUMNAR_OUTPUT_FILE,
+        description =
+            "The path to write a columnar copy of the report to, which is smaller and faster to"
+                + " scan than the CSV report. Disabled if not set.")
+    public String columnarOutputFile;
+
+    @Parameter(
+        names = ArgumentNames.DELTA_OUTPUT_FILE,
+        description =
+            "The path to write the rows inserted, updated and deleted since the previous report of"
+                + " the query to. Disabled if not set.")
+    public String deltaOutputFile;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_CACHE_DIRECTORY,
+        description = "A directory to cache downloaded report files in. Disabled if not set.")
+    public String reportCacheDirectory;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_CACHE_MAX_BYTES,
+        description = "The maximum total size of the report files kept in the cache.")
+    public long reportCacheMaxBytes = DEFAULT_REPORT_CACHE_MAX_BYTES;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_INDEX_FILE,
+        description =
+            "Optional. The path of a file indexing the reports seen under each query, so later"
+                + " runs only list reports newer than those already seen, for example"
+                + " ~/.store/dbm_sample/report_index.properties. This saves listing every page of"
+                + " reports of long-lived queries. By default, no file is written and all pages"
+                + " are listed until a DONE report is found.")
+    public String reportIndexFile = null;
   }
 
   public static void main(String[] args) throws Exception {
@@ -51,63 +118,334 @@ public class GetLatestReportForQuery {
       params.outputFile = "INSERT_OUTPUT_FILE_HERE";
     }
 
+    RequestRateLimiter.get().setLimits(params.requestRateLimits);
+    ReadRetryPolicy.get().setMaxRetries(params.maxReadRetries);
+    RequestHedger.get().setEnabled(params.hedgeReads);
+    if (params.additionalOutputs != null && params.additionalOutputs.contains("stdout")) {
+      // Keep the messages printed by the sample out of the report written to standard output.
+      System.setOut(System.err);
+    }
+
     DoubleClickBidManager service =
         BidManagerFactory.getInstance(
             params.clientSecretsFile,
             params.useServiceAccount,
             params.serviceAccountKeyFile,
-            params.additionalScopes);
+            params.additionalScopes,
+            params.rootUrl);
 
-    runExample(service, params.queryId, params.outputFile);
+    ReportCache reportCache = null;
+    if (params.reportCacheDirectory != null) {
+      reportCache = new ReportCache(params.reportCacheDirectory, params.reportCacheMaxBytes);
+    }
+
+    ReportIndex reportIndex = null;
+    if (!Strings.isNullOrEmpty(params.reportIndexFile)) {
+      reportIndex = new ReportIndex(params.reportIndexFile);
+    }
+
+    try {
+      runExample(
+          service,
+          params.queryId,
+          params.outputFile,
+          params.downloadConnections,
+          params.additionalOutputs,
+          params.columnarOutputFile,
+          params.deltaOutputFile,
+          reportCache,
+          reportIndex);
+    } finally {
+      if (params.metricsFile != null) {
+        RequestMetrics.get().writeTo(params.metricsFile);
+      }
+    }
   }
 
-  public static void runExample(DoubleClickBidManager service, long queryId, String outputFile)
+  /**
+   * Downloads the most recent DONE report of a query.
+   *
+   * @return The downloaded report, or {@code null} if the query has no DONE report.
+   */
+  public static Report runExample(
+      DoubleClickBidManager service,
+      long queryId,
+      String outputFile,
+      int downloadConnections,
+      List<String> additionalOutputs,
+      String columnarOutputFile,
+      String deltaOutputFile,
+      ReportCache reportCache,
+      ReportIndex reportIndex)
       throws Exception {
 
-    Report mostRecentReport = null;
+    Report mostRecentReport = findMostRecentReport(service, queryId, reportIndex);
+
+    if (mostRecentReport == null) {
+      System.out.printf(
+          "No reports have been successfully generated for query %s. Exiting.%n", queryId);
+      return null;
+    }
+
+    long reportId = mostRecentReport.getKey().getReportId();
+
+    // Serve the report file from the cache if it was downloaded before.
+    if (reportCache != null && reportCache.copyTo(queryId, reportId, outputFile)) {
+      System.out.printf("Report %s copied from the report cache to %s.%n", reportId, outputFile);
+
+      // The cached file may have been downloaded to a file compressed differently.
+      CompressionUtils.setCompressed(
+          outputFile, outputFile.endsWith(CompressionUtils.GZIP_SUFFIX));
+
+      if (additionalOutputs != null && !additionalOutputs.isEmpty()) {
+        try (ReportSink sink = ReportSinks.forOutputs(null, additionalOutputs)) {
+          ReportSinks.copyFile(outputFile, sink);
+        }
+      }
+    } else {
+      // Download report file.
+      System.out.printf("Downloading report %s.%n", reportId);
+
+      String cloudStoragePath = mostRecentReport.getMetadata().getGoogleCloudStoragePath();
+      if (additionalOutputs == null || additionalOutputs.isEmpty()) {
+        DownloadUtils.downloadFileFromCloudStorage(
+            cloudStoragePath, outputFile, downloadConnections);
+      } else {
+        // Stream the report to the output file and the additional outputs in a single pass.
+        try (ReportSink sink = ReportSinks.forOutputs(outputFile, additionalOutputs)) {
+          DownloadUtils.downloadToSink(cloudStoragePath, sink, downloadConnections);
+        }
+      }
+      System.out.printf(
+          "Report %s successfully downloaded to %s.%n",
+          mostRecentReport.getKey().getReportId(), outputFile);
+
+      if (reportCache != null) {
+        reportCache.put(queryId, reportId, outputFile);
+      }
+    }
 
-    // Build the queries.reports.list request
-    Reports.List reportListRequest = service.queries().reports().list(queryId);
+    if (columnarOutputFile != null) {
+      CreateAndRunQuery.convertToColumnar(mostRecentReport, outputFile, columnarOutputFile);
+    }
 
-    // Order reports by descending report ID to retrieve newest reports first.
-    reportListRequest = reportListRequest.setOrderBy("key.reportId desc");
+    if (deltaOutputFile != null) {
+      writeDelta(
+          service, mostRecentReport, outputFile, deltaOutputFile, downloadConnections, reportCache);
+    }
+    return mostRecentReport;
+  }
 
-    // Create the response and nextPageToken variables.
-    ListReportsResponse response;
-    String nextPageToken = null;
+  /**
+   * Writes the rows that changed since the previous DONE report under the query of a report. The
+   * previous report file is copied from the report cache if it is there, and downloaded
+   * otherwise, into a temporary file next to the output file.
+   */
+  private static void writeDelta(
+      DoubleClickBidManager service,
+      Report report,
+      String reportFile,
+      String deltaOutputFile,
+      int downloadConnections,
+      ReportCache reportCache)
+      throws Exception {
+    long queryId = report.getKey().getQueryId();
+    Report previousReport = findPreviousReport(service, queryId, report.getKey().getReportId());
+    if (previousReport == null) {
+      System.out.printf(
+          "No earlier report has been successfully generated for query %s, so no delta was"
+              + " written.%n",
+          queryId);
+      return;
+    }
+
+    long previousReportId = previousReport.getKey().getReportId();
+    Path directory = Paths.get(deltaOutputFile).toAbsolutePath().getParent();
+    Path previousReportFile = Files.createTempFile(directory, "report", ".tmp");
+    try {
+      if (reportCache == null
+          || !reportCache.copyTo(queryId, previousReportId, previousReportFile.toString())) {
+        System.out.printf("Downloading previous report %s.%n", previousReportId);
+        DownloadUtils.downloadFileFromCloudStorage(
+            previousReport.getMetadata().getGoogleCloudStoragePath(),
+            previousReportFile.toString(),
+            downloadConnections,
+            true);
+      }
+
+      ReportDelta delta =
+          ReportDelta.write(
+              previousReportFile.toString(),
+              reportFile,
+              ReportSchema.fromParameters(report.getParams()),
+              deltaOutputFile);
+      System.out.printf(
+          "Changes since report %s written to %s: %s rows inserted, %s updated, %s deleted and %s"
+              + " unchanged.%n",
+          previousReportId,
+          deltaOutputFile,
+          delta.getInsertedRows(),
+          delta.getUpdatedRows(),
+          delta.getDeletedRows(),
+          delta.getUnchangedRows());
+    } finally {
+      Files.deleteIfExists(previousReportFile);
+    }
+  }
+
+  /**
+   * Finds the most recent report in the DONE state under a query that is older than a report.
+   *
+   * @return The previous DONE report, or {@code null} if there is none.
+   */
+  private static Report findPreviousReport(
+      DoubleClickBidManager service, long queryId, long reportId) throws Exception {
+    String pageToken = null;
+    do {
+      ListReportsResponse response = listReports(service, queryId, pageToken);
+      if (!response.isEmpty()) {
+        for (Report report : response.getReports()) {
+          if (report.getKey().getReportId() < reportId
+              && report.getMetadata().getStatus().getState().equals("DONE")) {
+            return report;
+          }
+        }
+      }
+      pageToken = response.getNextPageToken();
+    } while (!Strings.isNullOrEmpty(pageToken));
+    return null;
+  }
+
+  /**
+   * Finds the most recent report in the DONE state under a query.
+   *
+   * <p>Reports are listed from newest to oldest, and the next page of reports is only requested
+   * if the current page has no DONE report. If an index is given, listing stops at the newest
+   * report seen by an earlier run, and the index is updated with the reports seen by this one. If
+   * the latest DONE report known from the index no longer exists, the entry of the query is
+   * removed from the index and all its reports are listed again.
+   *
+   * @return The most recent DONE report, or {@code null} if there is none.
+   */
+  private static Report findMostRecentReport(
+      final DoubleClickBidManager service, final long queryId, ReportIndex reportIndex)
+      throws Exception {
+    long watermark = ReportIndex.UNKNOWN;
+    long knownLatestDoneReportId = ReportIndex.UNKNOWN;
+    if (reportIndex != null) {
+      watermark = reportIndex.getWatermark(queryId);
+      knownLatestDoneReportId = reportIndex.getLatestDoneReportId(queryId);
+    }
+
+    Report mostRecentReport = null;
+    boolean reachedWatermark = false;
+    long newestSeenReportId = ReportIndex.UNKNOWN;
+    long oldestUnfinishedReportId = Long.MAX_VALUE;
 
     // Retrieve consecutive pages of reports under the query until you find one that is done.
+    String pageToken = null;
     do {
-      // Create and execute the list request.
-      response = reportListRequest.setPageToken(nextPageToken).execute();
+      ListReportsResponse response = listReports(service, queryId, pageToken);
+      pageToken = response.getNextPageToken();
 
       // Check if response is empty.
       if (!response.isEmpty()) {
         for (Report report : response.getReports()) {
-          if (report.getMetadata().getStatus().getState().equals("DONE")) {
+          long reportId = report.getKey().getReportId();
+          if (reportId <= watermark) {
+            // Older reports are already known from the index, so only the latest DONE report
+            // known from the index is still of interest.
+            reachedWatermark = true;
+            if (reportId == knownLatestDoneReportId) {
+              mostRecentReport = report;
+            }
+            if (reportId <= knownLatestDoneReportId
+                || knownLatestDoneReportId == ReportIndex.UNKNOWN) {
+              break;
+            }
+            continue;
+          }
+          newestSeenReportId = Math.max(newestSeenReportId, reportId);
+
+          String state = report.getMetadata().getStatus().getState();
+          if (state.equals("DONE")) {
             mostRecentReport = report;
             break;
           }
+          if (!state.equals("FAILED")) {
+            oldestUnfinishedReportId = Math.min(oldestUnfinishedReportId, reportId);
+          }
         }
       }
+    } while (mostRecentReport == null && !reachedWatermark && !Strings.isNullOrEmpty(pageToken));
 
-      // Update the next page token.
-      nextPageToken = response.getNextPageToken();
-    } while (mostRecentReport == null && !Strings.isNullOrEmpty(nextPageToken));
+    if (reportIndex == null) {
+      return mostRecentReport;
+    }
 
-    if (mostRecentReport == null) {
-      System.out.printf(
-          "No reports have been successfully generated for query %s. Exiting.%n", queryId);
-      return;
+    long latestDoneReportId;
+    if (mostRecentReport != null) {
+      latestDoneReportId = mostRecentReport.getKey().getReportId();
+    } else if (reachedWatermark) {
+      // No newer report is done, so the latest DONE report is the one known from the index.
+      latestDoneReportId = knownLatestDoneReportId;
+      if (latestDoneReportId != ReportIndex.UNKNOWN) {
+        System.out.printf(
+            "No reports newer than report %s are done, retrieving it from the API.%n",
+            latestDoneReportId);
+        final long reportId = latestDoneReportId;
+        try {
+          mostRecentReport =
+              RequestHedger.get()
+                  .execute(
+                      ApiEndpoint.REPORTS_GET,
+                      new Callable<Report>() {
+                        @Override
+                        public Report call() throws Exception {
+                          return service.queries().reports().get(queryId, reportId).execute();
+                        }
+                      });
+        } catch (GoogleJsonResponseException e) {
+          if (e.getStatusCode() != 404) {
+            throw e;
+          }
+          // The report was deleted, so the index entry can no longer be trusted.
+          System.out.printf(
+              "Report %s no longer exists, listing all reports of query %s.%n",
+              reportId, queryId);
+          reportIndex.remove(queryId);
+          return findMostRecentReport(service, queryId, reportIndex);
+        }
+      }
+    } else {
+      latestDoneReportId = ReportIndex.UNKNOWN;
     }
 
-    // Download report file.
-    System.out.printf("Downloading report %s.%n", mostRecentReport.getKey().getReportId());
+    // Every report seen below the oldest unfinished one has finished and cannot change anymore.
+    long newWatermark =
+        Math.max(watermark, Math.min(newestSeenReportId, oldestUnfinishedReportId - 1));
+    reportIndex.update(queryId, latestDoneReportId, newWatermark);
+    return mostRecentReport;
+  }
+
+  /** Lists a page of the reports under a query, newest first. */
+  private static ListReportsResponse listReports(
+      final DoubleClickBidManager service, final long queryId, final String pageToken)
+      throws Exception {
+    return RequestHedger.get()
+        .execute(
+            ApiEndpoint.REPORTS_LIST,
+            new Callable<ListReportsResponse>() {
+              @Override
+              public ListReportsResponse call() throws Exception {
+                // Build the queries.reports.list request
+                Reports.List reportListRequest = service.queries().reports().list(queryId);
+
+                // Order reports by descending report ID to retrieve newest reports first.
+                reportListRequest = reportListRequest.setOrderBy("key.reportId desc");
 
-    DownloadUtils.downloadFileFromCloudStorage(
-        mostRecentReport.getMetadata().getGoogleCloudStoragePath(), outputFile);
-    System.out.printf(
-        "Report %s successfully downloaded to %s.%n",
-        mostRecentReport.getKey().getReportId(), outputFile);
+                return reportListRequest.setPageToken(pageToken).execute();
+              }
+            });
   }
 }
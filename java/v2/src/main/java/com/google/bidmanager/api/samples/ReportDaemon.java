@@ -0,0 +1,836 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.beust.jcommander.Parameter;
+import com.google.api.client.googleapis.util.Utils;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.bidmanager.api.samples.utils.ArgumentNames;
+import com.google.bidmanager.api.samples.utils.CodeSampleParams;
+import com.google.bidmanager.api.samples.utils.QueryIndex;
+import com.google.bidmanager.api.samples.utils.ReadRetryPolicy;
+import com.google.bidmanager.api.samples.utils.ReportCache;
+import com.google.bidmanager.api.samples.utils.ReportGenerationHistory;
+import com.google.bidmanager.api.samples.utils.ReportIndex;
+import com.google.bidmanager.api.samples.utils.ReportSinks;
+import com.google.bidmanager.api.samples.utils.RequestHedger;
+import com.google.bidmanager.api.samples.utils.RequestMetrics;
+import com.google.bidmanager.api.samples.utils.RequestRateLimiter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This example runs as a long-lived daemon that creates, runs and downloads queries, and downloads
+ * the latest reports of queries, on request of other processes on the same machine.
+ *
+ * <p>The daemon authorizes once and keeps its service object, pooled connections and the indexes
+ * of the other samples in memory, so a job starts calling the API within milliseconds instead of
+ * paying for a JVM start and authorization every time. Jobs are submitted as JSON over HTTP on the
+ * loopback interface:
+ *
+ * <pre>
+ * POST /jobs/createAndRunQuery
+ * {"title": "Advertiser 1 report", "advertiserIdFilter": "1234567", "outputFile": "a.csv"}
+ *
+ * POST /jobs/getLatestReport
+ * {"queryId": 1234, "outputFile": "latest.csv"}
+ *
+ * GET /jobs/{jobId}
+ * </pre>
+ *
+ * <p>Submitting a job responds with its ID and state right away, or once the job finished if the
+ * {@code wait=true} query parameter is set.
+ *
+ * <p>Every request must carry the token written to the token file at startup, which only the user
+ * running the daemon can read, in an {@code Authorization: Bearer} header. Requests must also be
+ * addressed to the loopback host, so that web pages cannot reach the daemon through the browser,
+ * and jobs must be sent as {@code application/json}. Jobs can only write files inside the output
+ * directory of the daemon.
+ */
+public class ReportDaemon {
+  /** Default loopback port the daemon listens on. */
+  private static final int DEFAULT_PORT = 8765;
+
+  /** Maximum number of finished jobs whose state is kept for status requests. */
+  private static final int MAX_FINISHED_JOBS = 10_000;
+
+  /** Time given to running jobs to finish when the daemon is stopped. */
+  private static final long SHUTDOWN_TIMEOUT_IN_SECONDS = 30;
+
+  /** Default location of the file the token of the daemon is written to. */
+  private static final String DEFAULT_TOKEN_FILE =
+      System.getProperty("user.home") + "/.store/dbm_sample/report_daemon.token";
+
+  /** Number of random bytes in the token of the daemon. */
+  private static final int TOKEN_SIZE_IN_BYTES = 32;
+
+  /** System property setting whether the HTTP server disables Nagle's algorithm. */
+  private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+  private static final String JOBS_PATH = "/jobs/";
+  private static final String CREATE_AND_RUN_QUERY_JOB = "createAndRunQuery";
+  private static final String GET_LATEST_REPORT_JOB = "getLatestReport";
+
+  private static final String JSON_MEDIA_TYPE = "application/json";
+  private static final String BEARER_PREFIX = "Bearer ";
+
+  private static final JsonFactory JSON_FACTORY = Utils.getDefaultJsonFactory();
+
+  private static class ReportDaemonParams extends CodeSampleParams {
+
+    @Parameter(
+        names = ArgumentNames.PORT,
+        description = "The port to listen for jobs on, on the loopback interface.")
+    public int port = DEFAULT_PORT;
+
+    @Parameter(
+        names = ArgumentNames.TOKEN_FILE,
+        description =
+            "The path of the file the daemon writes its token to at startup, readable only by the"
+                + " current user. Requests must send the token as a bearer token.")
+    public String tokenFile = DEFAULT_TOKEN_FILE;
+
+    @Parameter(
+        names = ArgumentNames.OUTPUT_DIRECTORY,
+        description =
+            "The directory jobs write their output files to. Relative paths in jobs are resolved"
+                + " against it, and paths outside of it are rejected.",
+        required = true)
+    public String outputDirectory;
+
+    @Parameter(
+        names = ArgumentNames.MAX_CONCURRENT_JOBS,
+        description = "The maximum number of jobs to run at the same time.")
+    public int maxConcurrentJobs = 10;
+
+    @Parameter(
+        names = ArgumentNames.DOWNLOAD_CONNECTIONS,
+        description = "The number of parallel connections used to download each report file.")
+    public int downloadConnections = 1;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_HISTORY_FILE,
+        description =
+            "Optional. The path of a file recording how long reports took to generate, so"
+                + " reports are polled around their expected completion time, for example"
+                + " ~/.store/dbm_sample/report_generation_history.properties. This saves status"
+                + " requests and notices finished reports sooner. By default, reports are polled"
+                + " with exponential backoff.")
+    public String reportHistoryFile = null;
+
+    @Parameter(
+        names = ArgumentNames.QUERY_INDEX_FILE,
+        description =
+            "Optional. The path of a file indexing existing queries by their definition, so a"
+                + " query with the same definition is reused instead of creating a new one, for"
+                + " example ~/.store/dbm_sample/query_index.properties. This saves creating a"
+                + " query on every run, but reused queries keep the settings they were created"
+                + " with. By default, a new query is always created.")
+    public String queryIndexFile = null;
+
+    @Parameter(
+        names = ArgumentNames.MAX_REUSED_REPORT_AGE_MINUTES,
+        description =
+            "Optional. The maximum age of a finished report of a reused query that is"
+                + " downloaded instead of running the query again. This saves waiting for a new"
+                + " report when a recent one will do, and only applies with "
+                + ArgumentNames.QUERY_INDEX_FILE
+                + ". By default, the query is always run.")
+    public long maxReusedReportAgeMinutes = 0;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_INDEX_FILE,
+        description =
+            "Optional. The path of a file indexing the reports seen under each query, so later"
+                + " jobs only list reports newer than those already seen, for example"
+                + " ~/.store/dbm_sample/report_index.properties. By default, no file is written.")
+    public String reportIndexFile = null;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_CACHE_DIRECTORY,
+        description = "A directory to cache downloaded report files in. Disabled if not set.")
+    public String reportCacheDirectory;
+
+    @Parameter(
+        names = ArgumentNames.REPORT_CACHE_MAX_BYTES,
+        description = "The maximum total size of the report files kept in the cache.")
+    public long reportCacheMaxBytes = GetLatestReportForQuery.DEFAULT_REPORT_CACHE_MAX_BYTES;
+  }
+
+  /**
+   * A job creating, running and downloading a query, like the CreateAndRunQuery example, or like
+   * the ShardedCreateAndRunQuery example if shardDays is set.
+   */
+  public static class CreateAndRunQueryJob extends GenericJson {
+    @Key public String title;
+
+    @Key public String advertiserIdFilter;
+
+    @Key public List<String> campaignIdFilters;
+
+    @Key public Integer shardDays;
+
+    @Key public String timeZone;
+
+    @Key public String outputFile;
+
+    @Key public List<String> additionalOutputs;
+
+    @Key public String columnarOutputFile;
+
+    @Key public String rollupOutputFile;
+  }
+
+  /** A job downloading the latest report of a query, like the GetLatestReportForQuery example. */
+  public static class GetLatestReportJob extends GenericJson {
+    @Key public Long queryId;
+
+    @Key public String outputFile;
+
+    @Key public List<String> additionalOutputs;
+
+    @Key public String columnarOutputFile;
+
+    @Key public String deltaOutputFile;
+  }
+
+  /** The states of a job. */
+  public enum JobState {
+    QUEUED,
+    RUNNING,
+    SUCCEEDED,
+    FAILED
+  }
+
+  /** The status of a job, as returned to clients. */
+  public static class JobStatus extends GenericJson {
+    @Key public Long jobId;
+
+    @Key public String type;
+
+    @Key public String state;
+
+    @Key public String error;
+  }
+
+  public static void main(String[] args) throws Exception {
+    ReportDaemonParams params = new ReportDaemonParams();
+    params.parseArguments(args);
+
+    RequestRateLimiter.get().setLimits(params.requestRateLimits);
+    ReadRetryPolicy.get().setMaxRetries(params.maxReadRetries);
+    RequestHedger.get().setEnabled(params.hedgeReads);
+
+    // Authorize once, so jobs only pay for their own API calls.
+    DoubleClickBidManager service =
+        BidManagerFactory.getInstance(
+            params.clientSecretsFile,
+            params.useServiceAccount,
+            params.serviceAccountKeyFile,
+            params.additionalScopes,
+            params.rootUrl);
+
+    ReportGenerationHistory history = null;
+    if (!Strings.isNullOrEmpty(params.reportHistoryFile)) {
+      history = new ReportGenerationHistory(params.reportHistoryFile);
+    }
+
+    QueryIndex queryIndex = null;
+    if (!Strings.isNullOrEmpty(params.queryIndexFile)) {
+      queryIndex = new QueryIndex(params.queryIndexFile);
+    }
+
+    ReportIndex reportIndex = null;
+    if (!Strings.isNullOrEmpty(params.reportIndexFile)) {
+      reportIndex = new ReportIndex(params.reportIndexFile);
+    }
+
+    ReportCache reportCache = null;
+    if (params.reportCacheDirectory != null) {
+      reportCache = new ReportCache(params.reportCacheDirectory, params.reportCacheMaxBytes);
+    }
+
+    ReportDaemon daemon =
+        new ReportDaemon(
+            service,
+            params.outputDirectory,
+            params.maxConcurrentJobs,
+            params.downloadConnections,
+            history,
+            queryIndex,
+            TimeUnit.MINUTES.toMillis(params.maxReusedReportAgeMinutes),
+            reportIndex,
+            reportCache);
+    try {
+      runExample(daemon, params.port, params.tokenFile);
+    } finally {
+      if (params.metricsFile != null) {
+        RequestMetrics.get().writeTo(params.metricsFile);
+      }
+    }
+  }
+
+  /** Serves jobs on a loopback port until the process is stopped. */
+  public static void runExample(final ReportDaemon daemon, int port, String tokenFile)
+      throws Exception {
+    final HttpServer server = daemon.start(port, tokenFile);
+    System.out.printf(
+        "Listening for jobs on http://%s:%s%s, with the token in %s%n",
+        server.getAddress().getHostString(),
+        server.getAddress().getPort(),
+        JOBS_PATH,
+        tokenFile);
+
+    // Stop accepting jobs and let running jobs finish when the process is stopped.
+    final CountDownLatch stopped = new CountDownLatch(1);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread() {
+              @Override
+              public void run() {
+                System.out.println("Stopping, waiting for running jobs to finish.");
+                daemon.stop(server);
+                stopped.countDown();
+              }
+            });
+    stopped.await();
+  }
+
+  private final DoubleClickBidManager service;
+  private final Path outputDirectory;
+  private final int downloadConnections;
+  private final ReportGenerationHistory history;
+  private final QueryIndex queryIndex;
+  private final long maxReusedReportAgeMillis;
+  private final ReportIndex reportIndex;
+  private final ReportCache reportCache;
+
+  private final ExecutorService jobExecutor;
+  private final AtomicLong nextJobId = new AtomicLong(1);
+
+  /** The token requests must carry, set when the daemon starts. */
+  private volatile byte[] token;
+
+  /** The values of the Host header accepted by the daemon, set when the daemon starts. */
+  private volatile Set<String> allowedHosts = Collections.emptySet();
+
+  /** The token file written when the daemon started. */
+  private volatile Path tokenFile;
+
+  /** The submitted jobs by ID, oldest first. Finished jobs are dropped once there are too many. */
+  private final Map<Long, Job> jobs = new LinkedHashMap<Long, Job>();
+
+  /**
+   * Creates a daemon running jobs with a single service object.
+   *
+   * @param service The service object all jobs send their requests with.
+   * @param outputDirectory The directory jobs write their output files to.
+   * @param maxConcurrentJobs The maximum number of jobs to run at the same time.
+   * @param downloadConnections The number of parallel connections used to download each report.
+   * @param history The report generation history used to poll reports, or {@code null}.
+   * @param queryIndex The index used to reuse existing queries, or {@code null}.
+   * @param maxReusedReportAgeMillis The maximum age of a finished report of a reused query.
+   * @param reportIndex The index used to find the latest report of queries, or {@code null}.
+   * @param reportCache The cache of downloaded report files, or {@code null}.
+   */
+  public ReportDaemon(
+      DoubleClickBidManager service,
+      String outputDirectory,
+      int maxConcurrentJobs,
+      int downloadConnections,
+      ReportGenerationHistory history,
+      QueryIndex queryIndex,
+      long maxReusedReportAgeMillis,
+      ReportIndex reportIndex,
+      ReportCache reportCache)
+      throws IOException {
+    this.service = service;
+    this.outputDirectory = Paths.get(outputDirectory).toRealPath();
+    this.downloadConnections = downloadConnections;
+    this.history = history;
+    this.queryIndex = queryIndex;
+    this.maxReusedReportAgeMillis = maxReusedReportAgeMillis;
+    this.reportIndex = reportIndex;
+    this.reportCache = reportCache;
+    this.jobExecutor =
+        Executors.newFixedThreadPool(
+            maxConcurrentJobs, new ThreadFactoryBuilder().setNameFormat("job-%d").build());
+  }
+
+  /**
+   * Starts serving jobs on the loopback interface.
+   *
+   * @param port The port to listen on, or 0 to pick a free port.
+   * @param tokenFile The path of the file to write the token requests must carry to. It is
+   *     replaced, and only the current user can read it.
+   * @return The running server, whose address holds the port listened on.
+   */
+  public HttpServer start(int port, String tokenFile) throws IOException {
+    byte[] newToken = new byte[TOKEN_SIZE_IN_BYTES];
+    new SecureRandom().nextBytes(newToken);
+    String encodedToken = BaseEncoding.base16().lowerCase().encode(newToken);
+    this.token = encodedToken.getBytes(UTF_8);
+    this.tokenFile = writeTokenFile(Paths.get(tokenFile), encodedToken);
+
+    // Send responses without waiting for the client to acknowledge the headers, which otherwise
+    // adds up to 40 ms to every request. Only read when the first server is created.
+    if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+      System.setProperty(NO_DELAY_PROPERTY, "true");
+    }
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(
+        JOBS_PATH,
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              handleRequest(exchange);
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+    // Requests only queue jobs or wait for them, so a thread per request is cheap.
+    server.setExecutor(
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("job-request-%d").setDaemon(true).build()));
+    server.start();
+
+    int boundPort = server.getAddress().getPort();
+    InetAddress loopback = server.getAddress().getAddress();
+    String loopbackHost =
+        loopback instanceof Inet6Address
+            ? "[" + loopback.getHostAddress() + "]"
+            : loopback.getHostAddress();
+    allowedHosts = ImmutableSet.of("localhost:" + boundPort, loopbackHost + ":" + boundPort);
+    return server;
+  }
+
+  /** Writes the token to a new file that only the current user can read and write. */
+  private static Path writeTokenFile(Path tokenFile, String token) throws IOException {
+    Path parent = tokenFile.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Files.deleteIfExists(tokenFile);
+    if (parent.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(
+          tokenFile,
+          PosixFilePermissions.asFileAttribute(
+              EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+    } else {
+      File file = Files.createFile(tokenFile).toFile();
+      if (!file.setReadable(false, false)
+          || !file.setReadable(true, true)
+          || !file.setWritable(false, false)
+          || !file.setWritable(true, true)) {
+        throw new IOException("Unable to restrict access to " + tokenFile);
+      }
+    }
+    Files.write(tokenFile, token.getBytes(UTF_8));
+    return tokenFile;
+  }
+
+  /** Stops accepting jobs and waits for a while for the queued and running jobs to finish. */
+  public void stop(HttpServer server) {
+    server.stop(0);
+    try {
+      if (tokenFile != null) {
+        Files.deleteIfExists(tokenFile);
+      }
+    } catch (IOException e) {
+      System.out.printf("Unable to delete token file %s: %s%n", tokenFile, e);
+    }
+    jobExecutor.shutdown();
+    try {
+      if (!jobExecutor.awaitTermination(SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)) {
+        System.out.println("Jobs still running were abandoned.");
+        jobExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handleRequest(HttpExchange exchange) throws IOException {
+    // Web pages can send requests to the loopback interface, but not with this Host header.
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null || !allowedHosts.contains(host.toLowerCase(Locale.ROOT))) {
+      sendError(exchange, 403, "Requests must be sent to one of " + allowedHosts);
+      return;
+    }
+    if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+      exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+      sendError(exchange, 401, "Requests must send the token of the daemon as a bearer token.");
+      return;
+    }
+
+    String method = exchange.getRequestMethod();
+    String name = exchange.getRequestURI().getPath().substring(JOBS_PATH.length());
+    if (method.equals("GET")) {
+      Job job = null;
+      try {
+        job = getJob(Long.parseLong(name));
+      } catch (NumberFormatException ignored) {
+        // Not a job ID, so there is no such job.
+      }
+      if (job == null) {
+        sendError(exchange, 404, "Unknown job: " + name);
+      } else {
+        sendStatus(exchange, 200, job);
+      }
+      return;
+    }
+    if (!method.equals("POST")) {
+      sendError(exchange, 405, "Jobs are submitted with POST and retrieved with GET.");
+      return;
+    }
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (contentType == null
+        || !contentType.split(";")[0].trim().equalsIgnoreCase(JSON_MEDIA_TYPE)) {
+      sendError(exchange, 415, "Jobs must be sent as " + JSON_MEDIA_TYPE);
+      return;
+    }
+
+    Job job;
+    try (InputStream body = exchange.getRequestBody()) {
+      if (name.equals(CREATE_AND_RUN_QUERY_JOB)) {
+        job = newCreateAndRunQueryJob(parse(body, CreateAndRunQueryJob.class));
+      } else if (name.equals(GET_LATEST_REPORT_JOB)) {
+        job = newGetLatestReportJob(parse(body, GetLatestReportJob.class));
+      } else {
+        sendError(exchange, 404, "Unknown job type: " + name);
+        return;
+      }
+    } catch (IllegalArgumentException e) {
+      sendError(exchange, 400, e.getMessage());
+      return;
+    }
+
+    submit(job);
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null && query.contains("wait=true")) {
+      job.await();
+      sendStatus(exchange, 200, job);
+    } else {
+      sendStatus(exchange, 202, job);
+    }
+  }
+
+  private Job newCreateAndRunQueryJob(final CreateAndRunQueryJob request) {
+    if (request.title == null || request.advertiserIdFilter == null || request.outputFile == null) {
+      throw new IllegalArgumentException("Jobs must set title, advertiserIdFilter and outputFile.");
+    }
+    request.outputFile = resolveOutput(request.outputFile);
+    request.additionalOutputs = resolveAdditionalOutputs(request.additionalOutputs);
+    request.columnarOutputFile = resolveOutput(request.columnarOutputFile);
+    request.rollupOutputFile = resolveOutput(request.rollupOutputFile);
+    final TimeZone timeZone;
+    if (request.shardDays != null) {
+      if (request.shardDays <= 0 || request.timeZone == null) {
+        throw new IllegalArgumentException(
+            "Jobs setting shardDays must set it to a positive number and set timeZone.");
+      }
+      timeZone = ShardedCreateAndRunQuery.parseTimeZone(request.timeZone);
+    } else {
+      timeZone = null;
+    }
+    final CreateAndRunQuery.Options options = new CreateAndRunQuery.Options();
+    options.downloadConnections = downloadConnections;
+    options.additionalOutputs = request.additionalOutputs;
+    options.columnarOutputFile = request.columnarOutputFile;
+    options.rollupOutputFile = request.rollupOutputFile;
+    options.history = history;
+    options.queryIndex = queryIndex;
+    options.maxReusedReportAgeMillis = maxReusedReportAgeMillis;
+    return new Job(
+        nextJobId.getAndIncrement(),
+        CREATE_AND_RUN_QUERY_JOB,
+        new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            Report report =
+                request.shardDays == null
+                    ? CreateAndRunQuery.runExample(
+                        service,
+                        request.title,
+                        request.advertiserIdFilter,
+                        request.campaignIdFilters,
+                        request.outputFile,
+                        options)
+                    : ShardedCreateAndRunQuery.runExample(
+                        service,
+                        request.title,
+                        request.advertiserIdFilter,
+                        request.campaignIdFilters,
+                        request.shardDays,
+                        timeZone,
+                        request.outputFile,
+                        options);
+            if (report == null) {
+              throw new IOException("No report could be generated for " + request.title);
+            }
+            return null;
+          }
+        });
+  }
+
+  private Job newGetLatestReportJob(final GetLatestReportJob request) {
+    if (request.queryId == null || request.outputFile == null) {
+      throw new IllegalArgumentException("Jobs must set queryId and outputFile.");
+    }
+    request.outputFile = resolveOutput(request.outputFile);
+    request.additionalOutputs = resolveAdditionalOutputs(request.additionalOutputs);
+    request.columnarOutputFile = resolveOutput(request.columnarOutputFile);
+    request.deltaOutputFile = resolveOutput(request.deltaOutputFile);
+    return new Job(
+        nextJobId.getAndIncrement(),
+        GET_LATEST_REPORT_JOB,
+        new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            Report report =
+                GetLatestReportForQuery.runExample(
+                    service,
+                    request.queryId,
+                    request.outputFile,
+                    downloadConnections,
+                    request.additionalOutputs,
+                    request.columnarOutputFile,
+                    request.deltaOutputFile,
+                    reportCache,
+                    reportIndex);
+            if (report == null) {
+              throw new IOException("Query " + request.queryId + " has no DONE report.");
+            }
+            return null;
+          }
+        });
+  }
+
+  /**
+   * Resolves a path given by a job against the output directory.
+   *
+   * @param file The path, or {@code null}.
+   * @return The absolute path, or {@code null} if no path was given.
+   * @throws IllegalArgumentException If the path is outside of the output directory.
+   */
+  private String resolveOutput(String file) {
+    if (file == null) {
+      return null;
+    }
+    Path path = outputDirectory.resolve(file).normalize();
+    try {
+      // Symbolic links could lead out of the output directory.
+      if (path.startsWith(outputDirectory)
+          && !path.equals(outputDirectory)
+          && path.getParent().toRealPath().startsWith(outputDirectory)
+          && !Files.isSymbolicLink(path)) {
+        return path.toString();
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("The directory of " + file + " does not exist.", e);
+    }
+    throw new IllegalArgumentException(
+        String.format("Output %s is not inside the output directory %s.", file, outputDirectory));
+  }
+
+  /**
+   * Resolves the paths of the additional outputs of a job against the output directory. Jobs
+   * cannot write to the standard output of the daemon.
+   */
+  private List<String> resolveAdditionalOutputs(List<String> specs) {
+    if (specs == null) {
+      return null;
+    }
+    List<String> resolvedSpecs = new ArrayList<String>();
+    for (String spec : specs) {
+      String path = ReportSinks.getPath(spec);
+      if (path == null) {
+        throw new IllegalArgumentException("Jobs cannot write to " + spec);
+      }
+      resolvedSpecs.add(ReportSinks.withPath(spec, resolveOutput(path)));
+    }
+    return resolvedSpecs;
+  }
+
+  /** Returns whether the value of an Authorization header holds the token of the daemon. */
+  private boolean isAuthorized(String authorization) {
+    if (authorization == null
+        || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+      return false;
+    }
+    byte[] requestToken = authorization.substring(BEARER_PREFIX.length()).trim().getBytes(UTF_8);
+    // Compare in constant time, so the token cannot be guessed from response times.
+    return MessageDigest.isEqual(requestToken, token);
+  }
+
+  private void submit(Job job) {
+    synchronized (jobs) {
+      jobs.put(job.id, job);
+
+      // Forget the oldest finished jobs once there are too many.
+      Iterator<Job> oldestJobs = jobs.values().iterator();
+      int removableJobs = jobs.size() - MAX_FINISHED_JOBS;
+      while (removableJobs > 0 && oldestJobs.hasNext()) {
+        if (oldestJobs.next().isDone()) {
+          oldestJobs.remove();
+          removableJobs--;
+        } else {
+          break;
+        }
+      }
+    }
+    job.future = jobExecutor.submit(job);
+    System.out.printf("Job %s (%s) submitted.%n", job.id, job.type);
+  }
+
+  private Job getJob(long jobId) {
+    synchronized (jobs) {
+      return jobs.get(jobId);
+    }
+  }
+
+  private static <T> T parse(InputStream body, Class<T> requestClass) throws IOException {
+    try {
+      return JSON_FACTORY.createJsonParser(body, UTF_8).parseAndClose(requestClass);
+    } catch (IOException | RuntimeException e) {
+      throw new IllegalArgumentException("Invalid job: " + e.getMessage(), e);
+    }
+  }
+
+  private static void sendStatus(HttpExchange exchange, int statusCode, Job job)
+      throws IOException {
+    JobStatus status = new JobStatus();
+    status.jobId = job.id;
+    status.type = job.type;
+    status.state = job.state.name();
+    status.error = job.error;
+    send(exchange, statusCode, status);
+  }
+
+  private static void sendError(HttpExchange exchange, int statusCode, String message)
+      throws IOException {
+    GenericJson error = new GenericJson();
+    error.set("error", message);
+    send(exchange, statusCode, error);
+  }
+
+  private static void send(HttpExchange exchange, int statusCode, GenericJson content)
+      throws IOException {
+    byte[] body = JSON_FACTORY.toString(content).getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(statusCode, body.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(body);
+    }
+  }
+
+  /** A submitted job and its state. */
+  private static final class Job implements Callable<Void> {
+    final long id;
+    final String type;
+    private final Callable<Void> task;
+    volatile JobState state = JobState.QUEUED;
+    volatile String error;
+    volatile Future<Void> future;
+
+    Job(long id, String type, Callable<Void> task) {
+      this.id = id;
+      this.type = type;
+      this.task = task;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      state = JobState.RUNNING;
+      long startNanos = System.nanoTime();
+      try {
+        task.call();
+        state = JobState.SUCCEEDED;
+      } catch (Exception e) {
+        error = e.toString();
+        state = JobState.FAILED;
+        throw e;
+      } finally {
+        System.out.printf(
+            "Job %s (%s) %s after %s ms.%n",
+            id,
+            type,
+            state == JobState.SUCCEEDED ? "succeeded" : "failed",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      }
+      return null;
+    }
+
+    boolean isDone() {
+      return state == JobState.SUCCEEDED || state == JobState.FAILED;
+    }
+
+    /** Waits for the job to finish, whether or not it succeeded. */
+    void await() throws IOException {
+      try {
+        future.get();
+      } catch (ExecutionException ignored) {
+        // The error is recorded in the state of the job.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for job " + id, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,349 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples;
+
+import com.beust.jcommander.Parameter;
+import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
+import com.google.api.services.doubleclickbidmanager.model.DataRange;
+import com.google.api.services.doubleclickbidmanager.model.Date;
+import com.google.api.services.doubleclickbidmanager.model.Query;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.bidmanager.api.samples.CreateAndRunQuery.CreateAndRunQueryParams;
+import com.google.bidmanager.api.samples.CreateAndRunQuery.Options;
+import com.google.bidmanager.api.samples.utils.ArgumentNames;
+import com.google.bidmanager.api.samples.utils.ReadRetryPolicy;
+import com.google.bidmanager.api.samples.utils.ReportPoller;
+import com.google.bidmanager.api.samples.utils.ReportSchema;
+import com.google.bidmanager.api.samples.utils.ReportSink;
+import com.google.bidmanager.api.samples.utils.ReportSinks;
+import com.google.bidmanager.api.samples.utils.ReportStitcher;
+import com.google.bidmanager.api.samples.utils.RequestHedger;
+import com.google.bidmanager.api.samples.utils.RequestMetrics;
+import com.google.bidmanager.api.samples.utils.RequestRateLimiter;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * This example splits the 7 days of the basic query of {@link CreateAndRunQuery} into queries of a
+ * few days each, runs them in parallel, and stitches their reports into a single report once all
+ * of them are downloaded.
+ *
+ * <p>The time to the final report is set by the slowest of the queries rather than by one query
+ * over the whole date range. The queries are also grouped by FILTER_DATE, so the stitched report
+ * has a leading Date column, and it holds no summary row, as totals of derived metrics such as
+ * CTR cannot be added up across reports.
+ *
+ * <p>Every run creates one query per shard, with custom dates in the title and date range. With
+ * {@link ArgumentNames#QUERY_INDEX_FILE}, only the shards covering the same days as an earlier run
+ * are reused. Every other shard misses the index, which may list all queries to refresh it, at
+ * most once an hour.
+ */
+public class ShardedCreateAndRunQuery {
+
+  /** Number of days covered by the basic query, matching its LAST_7_DAYS date range. */
+  private static final int REPORT_RANGE_DAYS = 7;
+
+  private static class ShardedCreateAndRunQueryParams extends CreateAndRunQueryParams {
+
+    @Parameter(
+        names = ArgumentNames.SHARD_DAYS,
+        description =
+            "The number of days covered by each of the queries the 7 days of the report are split"
+                + " into. The queries add FILTER_DATE to the dimensions of the basic query, so the"
+                + " output file has a leading Date column, and the summary row of every report is"
+                + " dropped when they are stitched together.")
+    public int shardDays = 1;
+
+    @Parameter(
+        names = ArgumentNames.TIME_ZONE,
+        description =
+            "The time zone of the advertiser, such as America/New_York. Reports count days in"
+                + " this time zone, so the custom dates of the queries are computed in it to cover"
+                + " the same days as the LAST_7_DAYS range of the basic query.",
+        required = true)
+    public String timeZone;
+  }
+
+  public static void main(String[] args) throws Exception {
+    ShardedCreateAndRunQueryParams params = new ShardedCreateAndRunQueryParams();
+    if (!params.parseArguments(args)) {
+      // Either pass the required parameters for this example on the command line, or insert them
+      // into the code here. See the parameter class definition above for descriptions.
+      params.title = "INSERT_TITLE_HERE";
+      params.advertiserIdFilter = "INSERT_ADVERTISER_ID_FILTER_HERE";
+      params.campaignIdFilters = Arrays.asList("INSERT_CAMPAIGN_ID_FILTERS_HERE".split(","));
+      params.timeZone = "INSERT_TIME_ZONE_HERE";
+      params.outputFile = "INSERT_OUTPUT_FILE_HERE";
+    }
+
+    RequestRateLimiter.get().setLimits(params.requestRateLimits);
+    ReadRetryPolicy.get().setMaxRetries(params.maxReadRetries);
+    RequestHedger.get().setEnabled(params.hedgeReads);
+    if (params.additionalOutputs != null && params.additionalOutputs.contains("stdout")) {
+      // Keep the messages printed by the sample out of the report written to standard output.
+      System.setOut(System.err);
+    }
+
+    DoubleClickBidManager service =
+        BidManagerFactory.getInstance(
+            params.clientSecretsFile,
+            params.useServiceAccount,
+            params.serviceAccountKeyFile,
+            params.additionalScopes,
+            params.rootUrl);
+
+    try {
+      runExample(
+          service,
+          params.title,
+          params.advertiserIdFilter,
+          params.campaignIdFilters,
+          params.shardDays,
+          parseTimeZone(params.timeZone),
+          params.outputFile,
+          CreateAndRunQuery.newOptions(params));
+    } finally {
+      if (params.metricsFile != null) {
+        RequestMetrics.get().writeTo(params.metricsFile);
+      }
+    }
+  }
+
+  /**
+   * Parses the ID of a time zone, such as America/New_York.
+   *
+   * @throws IllegalArgumentException If the time zone is unknown.
+   */
+  static TimeZone parseTimeZone(String timeZoneId) {
+    TimeZone timeZone = TimeZone.getTimeZone(timeZoneId);
+    // Unknown IDs silently fall back to GMT.
+    if (!timeZone.getID().equals(timeZoneId)) {
+      throw new IllegalArgumentException("Unknown time zone: " + timeZoneId);
+    }
+    return timeZone;
+  }
+
+  /**
+   * Splits the date range of the basic query into ranges of a few days, and runs a query for every
+   * range in parallel. Every report is downloaded as soon as it is generated, and the reports are
+   * stitched into the output file once all of them are downloaded.
+   *
+   * @param shardDays The number of days covered by each query.
+   * @param timeZone The time zone of the advertiser, in which the dates of the queries are
+   *     computed.
+   * @param options The optional stages of the example. Additional outputs are written from the
+   *     stitched report, once it is complete.
+   * @return The report of one of the queries, which all have the same columns, or {@code null} if
+   *     a report could not be generated.
+   */
+  public static Report runExample(
+      final DoubleClickBidManager service,
+      String title,
+      String advertiserIdFilter,
+      List<String> campaignIdFilters,
+      int shardDays,
+      TimeZone timeZone,
+      String outputFile,
+      final Options options)
+      throws Exception {
+    if (shardDays <= 0) {
+      throw new IllegalArgumentException("The number of days of each query must be positive.");
+    }
+    Calendar today = Calendar.getInstance(timeZone);
+    List<Query> queries =
+        buildShardedQueries(title, advertiserIdFilter, campaignIdFilters, shardDays, today);
+    System.out.printf("Splitting the report into %s queries.%n", queries.size());
+
+    // The reports are downloaded next to the output file, as they are about as large.
+    Path directory = Paths.get(outputFile).toAbsolutePath().getParent();
+    List<String> shardFiles = new ArrayList<String>();
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(queries.size()));
+    Report firstReport;
+    try (final ReportPoller poller =
+        new ReportPoller(
+            service,
+            1,
+            CreateAndRunQuery.MIN_RETRY_INTERVAL_IN_MILLIS,
+            CreateAndRunQuery.MAX_RETRY_INTERVAL_IN_MILLIS,
+            CreateAndRunQuery.MAX_RETRY_ELAPSED_TIME_IN_MILLIS,
+            options.history)) {
+      List<ListenableFuture<Report>> downloadedReports = new ArrayList<ListenableFuture<Report>>();
+      for (final Query query : queries) {
+        final String shardFile = Files.createTempFile(directory, "report", ".tmp").toString();
+        shardFiles.add(shardFile);
+
+        // Create and run the query, or reuse an existing query with the same definition.
+        ListenableFuture<Report> runningReport =
+            executor.submit(
+                new Callable<Report>() {
+                  @Override
+                  public Report call() throws Exception {
+                    return options.queryIndex == null
+                        ? CreateAndRunQuery.createAndRunQuery(service, query)
+                        : CreateAndRunQuery.reuseOrCreateAndRunQuery(
+                            service, query, options.queryIndex, options.maxReusedReportAgeMillis);
+                  }
+                });
+
+        // Poll report, waiting for it to be finished.
+        ListenableFuture<Report> finishedReport =
+            Futures.transformAsync(
+                runningReport,
+                new AsyncFunction<Report, Report>() {
+                  @Override
+                  public ListenableFuture<Report> apply(Report report) {
+                    return poller.poll(report);
+                  }
+                },
+                MoreExecutors.directExecutor());
+
+        // Download report file.
+        downloadedReports.add(
+            Futures.transformAsync(
+                finishedReport,
+                new AsyncFunction<Report, Report>() {
+                  @Override
+                  public ListenableFuture<Report> apply(Report report) throws Exception {
+                    String queryTitle = query.getMetadata().getTitle();
+                    if (report == null) {
+                      System.out.printf("Abandoning report polling for \"%s\".%n", queryTitle);
+                      return Futures.immediateFuture(null);
+                    }
+                    if (!CreateAndRunQuery.isDone(report)) {
+                      System.out.printf(
+                          "Report %s for \"%s\" failed to generate.%n",
+                          report.getKey().getReportId(), queryTitle);
+                      return Futures.immediateFuture(null);
+                    }
+                    CreateAndRunQuery.downloadReport(
+                        report, shardFile, options.downloadConnections);
+                    return Futures.immediateFuture(report);
+                  }
+                },
+                executor));
+      }
+
+      List<Report> reports;
+      try {
+        reports = Futures.allAsList(downloadedReports).get();
+      } catch (ExecutionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+        throw e;
+      }
+      if (reports.contains(null)) {
+        System.out.println("Not every part of the report could be generated. Exiting.");
+        return null;
+      }
+
+      long rows =
+          ReportStitcher.stitch(
+              shardFiles, ReportSchema.fromParameters(reports.get(0).getParams()), outputFile);
+      System.out.printf(
+          "Reports of %s queries stitched into %s, with %s rows.%n",
+          reports.size(), outputFile, rows);
+      firstReport = reports.get(0);
+    } finally {
+      executor.shutdownNow();
+      for (String shardFile : shardFiles) {
+        Files.deleteIfExists(Paths.get(shardFile));
+      }
+    }
+
+    if (options.additionalOutputs != null && !options.additionalOutputs.isEmpty()) {
+      try (ReportSink sink = ReportSinks.forOutputs(null, options.additionalOutputs)) {
+        ReportSinks.copyFile(outputFile, sink);
+      }
+    }
+    CreateAndRunQuery.writeDerivedOutputs(firstReport, outputFile, options);
+    return firstReport;
+  }
+
+  /**
+   * Builds the queries covering the same days as the basic query, a few days each, in date order.
+   * The queries have a custom date range and are grouped by date, so the rows of different queries
+   * stay distinct once their reports are stitched together.
+   *
+   * @param title The title of the basic query. The dates of every query are added to it.
+   * @param advertiserIdFilter The advertiser ID to assign as a filter for the queries.
+   * @param campaignIdFilters The campaign IDs to assign as filters for the queries, or {@code
+   *     null}.
+   * @param shardDays The number of days covered by each query.
+   * @param today The current date in the time zone of the advertiser. The queries cover the days
+   *     before it, like LAST_7_DAYS.
+   */
+  static List<Query> buildShardedQueries(
+      String title,
+      String advertiserIdFilter,
+      List<String> campaignIdFilters,
+      int shardDays,
+      Calendar today) {
+    Calendar startDay = (Calendar) today.clone();
+    startDay.add(Calendar.DAY_OF_MONTH, -REPORT_RANGE_DAYS);
+
+    List<Query> queries = new ArrayList<Query>();
+    for (int offset = 0; offset < REPORT_RANGE_DAYS; offset += shardDays) {
+      Calendar endDay = (Calendar) startDay.clone();
+      endDay.add(Calendar.DAY_OF_MONTH, Math.min(shardDays, REPORT_RANGE_DAYS - offset) - 1);
+
+      Query query =
+          CreateAndRunQuery.buildQuery(
+              String.format("%s (%s to %s)", title, formatDay(startDay), formatDay(endDay)),
+              advertiserIdFilter,
+              campaignIdFilters);
+      query
+          .getMetadata()
+          .setDataRange(
+              new DataRange()
+                  .setRange("CUSTOM_DATES")
+                  .setCustomStartDate(toDate(startDay))
+                  .setCustomEndDate(toDate(endDay)));
+      query.getParams().getGroupBys().add(0, "FILTER_DATE");
+      queries.add(query);
+
+      startDay = endDay;
+      startDay.add(Calendar.DAY_OF_MONTH, 1);
+    }
+    return queries;
+  }
+
+  private static Date toDate(Calendar day) {
+    return new Date()
+        .setYear(day.get(Calendar.YEAR))
+        .setMonth(day.get(Calendar.MONTH) + 1)
+        .setDay(day.get(Calendar.DAY_OF_MONTH));
+  }
+
+  private static String formatDay(Calendar day) {
+    return String.format(
+        "%04d-%02d-%02d",
+        day.get(Calendar.YEAR), day.get(Calendar.MONTH) + 1, day.get(Calendar.DAY_OF_MONTH));
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import java.util.regex.Pattern;
+
+/** The endpoints the samples send requests to, identified from the method and URL of a request. */
+public enum ApiEndpoint {
+  QUERIES_CREATE("queries.create"),
+  QUERIES_DELETE("queries.delete"),
+  QUERIES_GET("queries.get"),
+  QUERIES_LIST("queries.list"),
+  QUERIES_RUN("queries.run"),
+  REPORTS_GET("reports.get"),
+  REPORTS_LIST("reports.list"),
+  BATCH("batch"),
+  GCS_DOWNLOAD("gcs.download"),
+  OTHER("other");
+
+  private static final String CLOUD_STORAGE_HOST_SUFFIX = "storage.googleapis.com";
+  private static final Pattern QUERIES_PATH = Pattern.compile(".*/queries");
+  private static final Pattern QUERY_PATH = Pattern.compile(".*/queries/[^/:]+");
+  private static final Pattern RUN_QUERY_PATH = Pattern.compile(".*/queries/[^/]+(:|%3A)run");
+  private static final Pattern REPORTS_PATH = Pattern.compile(".*/queries/[^/]+/reports");
+  private static final Pattern REPORT_PATH = Pattern.compile(".*/queries/[^/]+/reports/[^/]+");
+  private static final Pattern BATCH_PATH = Pattern.compile(".*/batch(/.*)?");
+
+  private final String name;
+
+  ApiEndpoint(String name) {
+    this.name = name;
+  }
+
+  /** Returns the name of the endpoint, such as {@code queries.run}. */
+  public String getName() {
+    return name;
+  }
+
+  /** Identifies the endpoint a request is sent to. */
+  public static ApiEndpoint of(HttpRequest request) {
+    return of(request.getRequestMethod(), request.getUrl());
+  }
+
+  /**
+   * Identifies the endpoint a request is sent to.
+   *
+   * @param method The HTTP method of the request.
+   * @param url The URL of the request.
+   */
+  public static ApiEndpoint of(String method, GenericUrl url) {
+    // Report files are downloaded from Cloud Storage as media.
+    String host = url.getHost();
+    if ((host != null && host.endsWith(CLOUD_STORAGE_HOST_SUFFIX))
+        || "media".equals(url.getFirst("alt"))) {
+      return GCS_DOWNLOAD;
+    }
+
+    String path = url.getRawPath();
+    if (path == null) {
+      return OTHER;
+    }
+    if (REPORT_PATH.matcher(path).matches()) {
+      return REPORTS_GET;
+    }
+    if (REPORTS_PATH.matcher(path).matches()) {
+      return REPORTS_LIST;
+    }
+    if (RUN_QUERY_PATH.matcher(path).matches()) {
+      return QUERIES_RUN;
+    }
+    if (QUERY_PATH.matcher(path).matches()) {
+      return HttpMethods.DELETE.equals(method) ? QUERIES_DELETE : QUERIES_GET;
+    }
+    if (QUERIES_PATH.matcher(path).matches()) {
+      return HttpMethods.POST.equals(method) ? QUERIES_CREATE : QUERIES_LIST;
+    }
+    if (BATCH_PATH.matcher(path).matches()) {
+      return BATCH;
+    }
+    return OTHER;
+  }
+}
@@ -18,9 +18,36 @@ package com.google.bidmanager.api.samples.utils;
 public final class ArgumentNames {
 
   // Note to contributors: please insert new items alphabetically.
+  public static final String ADDITIONAL_OUTPUTS = "--additionalOutputs";
   public static final String ADVERTISER_ID_FILTER = "--advertiserIdFilter";
   public static final String CAMPAIGN_ID_FILTERS = "--campaignIdFilters";
+  public static final String COLUMNAR_OUTPUT_FILE = "--columnarOutputFile";
+  public static final String DELTA_OUTPUT_FILE = "--deltaOutputFile";
+  public static final String DOWNLOAD_CONNECTIONS = "--downloadConnections";
+  public static final String ERROR_RATE = "--errorRate";
+  public static final String LATENCY_MILLIS = "--latencyMillis";
+  public static final String MANIFEST_FILE = "--manifestFile";
+  public static final String MAX_CONCURRENT_DOWNLOADS = "--maxConcurrentDownloads";
+  public static final String MAX_CONCURRENT_JOBS = "--maxConcurrentJobs";
+  public static final String MAX_CONNECTIONS_PER_ROUTE = "--maxConnectionsPerRoute";
+  public static final String MAX_REUSED_REPORT_AGE_MINUTES = "--maxReusedReportAgeMinutes";
+  public static final String OUTPUT_DIRECTORY = "--outputDirectory";
   public static final String OUTPUT_FILE = "--outputFile";
+  public static final String PAGE_SIZE = "--pageSize";
+  public static final String PORT = "--port";
   public static final String QUERY_ID = "--queryId";
+  public static final String QUERY_INDEX_FILE = "--queryIndexFile";
+  public static final String REPORT_CACHE_DIRECTORY = "--reportCacheDirectory";
+  public static final String REPORT_CACHE_MAX_BYTES = "--reportCacheMaxBytes";
+  public static final String REPORT_FAILURE_RATE = "--reportFailureRate";
+  public static final String REPORT_GENERATION_MILLIS = "--reportGenerationMillis";
+  public static final String REPORT_HISTORY_FILE = "--reportHistoryFile";
+  public static final String REPORT_INDEX_FILE = "--reportIndexFile";
+  public static final String REPORT_SIZE_IN_BYTES = "--reportSizeInBytes";
+  public static final String ROLLUP_OUTPUT_FILE = "--rollupOutputFile";
+  public static final String SHARD_DAYS = "--shardDays";
+  public static final String TIME_ZONE = "--timeZone";
   public static final String TITLE = "--title";
+  public static final String TOKEN_FILE = "--tokenFile";
+  public static final String USE_VIRTUAL_THREADS = "--useVirtualThreads";
 }
@@ -47,6 +47,43 @@ public abstract class CodeSampleParams {
       description = "Scopes to authenticate in addition to the default Bid Manager API scopes.")
   public List<String> additionalScopes;
 
+  @Parameter(
+      names = "--metricsFile",
+      description =
+          "The path to write request metrics to when the example finishes, as JSON if the path"
+              + " ends with .json and in the Prometheus text format otherwise.")
+  public String metricsFile;
+
+  @Parameter(
+      names = "--requestRateLimits",
+      description =
+          "Comma-separated limits in requests per minute for the whole project and for single API"
+              + " methods, such as project=1500,queries.create=60,reports.get=600. Requests are"
+              + " held back to stay within them.")
+  public String requestRateLimits;
+
+  @Parameter(
+      names = "--maxReadRetries",
+      description =
+          "The maximum number of times read requests are retried when they fail with a transient"
+              + " error.")
+  public int maxReadRetries = ReadRetryPolicy.DEFAULT_MAX_RETRIES;
+
+  @Parameter(
+      names = "--hedgeReads",
+      description =
+          "Whether to send a read request again when it takes longer than 95% of recent requests,"
+              + " and use whichever response arrives first.")
+  public boolean hedgeReads;
+
+  @Parameter(
+      names = "--rootUrl",
+      description =
+          "The root URL of the API to send requests to instead of the Bid Manager API, such as that"
+              + " of a FakeBidManagerServer. Requests to the loopback interface are sent without"
+              + " credentials.")
+  public String rootUrl;
+
   public boolean parseArguments(String[] args) {
     return parseArguments(args, Runtime.getRuntime(), System.err);
   }
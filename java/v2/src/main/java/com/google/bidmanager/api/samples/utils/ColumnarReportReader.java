@@ -0,0 +1,456 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads report files written by {@link ColumnarReportWriter}.
+ *
+ * <p>The rows of a columnar report are stored in chunks, and every chunk stores the values of each
+ * column together. The statistics of every column chunk are kept in the footer of the file, so
+ * chunks that cannot hold the values of interest can be skipped without being read.
+ */
+public class ColumnarReportReader implements Closeable {
+
+  /** Marks the start and the end of a columnar report file. */
+  static final byte[] MAGIC = {'D', 'B', 'M', 'C'};
+
+  /** Version of the file layout. */
+  static final int VERSION = 1;
+
+  /** Size of the trailer holding the footer offset and the magic bytes. */
+  static final int TRAILER_SIZE = 8 + 4;
+
+  /** How the values of a column chunk are stored. */
+  public enum Encoding {
+    /** Distinct strings stored once, with every row storing the index of its value. */
+    DICTIONARY,
+    /** Whole numbers, stored as variable-length offsets from the minimum of the chunk. */
+    LONG,
+    /** Floating point numbers, stored as 8-byte values. */
+    DOUBLE;
+
+    static Encoding fromId(int id) throws IOException {
+      if (id < 0 || id >= values().length) {
+        throw new IOException("Unknown column encoding " + id);
+      }
+      return values()[id];
+    }
+  }
+
+  private final FileChannel channel;
+  private final List<String> columnNames;
+  private final List<String> displayNames;
+  private final List<ChunkInfo> chunks;
+  private final long rowCount;
+
+  /**
+   * Opens a columnar report file and reads its schema and statistics.
+   *
+   * @param file The path of the file.
+   */
+  public ColumnarReportReader(String file) throws IOException {
+    channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < MAGIC.length + 4 + TRAILER_SIZE) {
+        throw new IOException(file + " is not a columnar report file.");
+      }
+
+      // The header holds the columns of the report.
+      ByteBuffer header = read(0, (int) Math.min(size - TRAILER_SIZE, 1 << 20));
+      checkMagic(header, file);
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported columnar report version " + version);
+      }
+      int columnCount = readVarInt(header);
+      List<String> names = new ArrayList<String>(columnCount);
+      List<String> displays = new ArrayList<String>(columnCount);
+      for (int i = 0; i < columnCount; i++) {
+        names.add(readString(header));
+        displays.add(readString(header));
+      }
+      columnNames = Collections.unmodifiableList(names);
+      displayNames = Collections.unmodifiableList(displays);
+
+      // The trailer points to the footer, which describes every chunk.
+      ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+      long footerOffset = trailer.getLong();
+      checkMagic(trailer, file);
+      ByteBuffer footer = read(footerOffset, (int) (size - TRAILER_SIZE - footerOffset));
+      int chunkCount = readVarInt(footer);
+      List<ChunkInfo> chunkInfos = new ArrayList<ChunkInfo>(chunkCount);
+      long rows = 0;
+      for (int i = 0; i < chunkCount; i++) {
+        ChunkInfo chunk = ChunkInfo.read(footer, columnCount);
+        chunkInfos.add(chunk);
+        rows += chunk.rowCount;
+      }
+      chunks = chunkInfos;
+      rowCount = rows;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Returns the names of the columns, such as FILTER_ADVERTISER or METRIC_IMPRESSIONS. */
+  public List<String> getColumnNames() {
+    return columnNames;
+  }
+
+  /** Returns the display names of the columns, as found in the header row of the CSV report. */
+  public List<String> getDisplayNames() {
+    return displayNames;
+  }
+
+  /**
+   * Returns the position of a column.
+   *
+   * @throws IllegalArgumentException If the report does not contain the column.
+   */
+  public int indexOf(String columnName) {
+    int index = columnNames.indexOf(columnName);
+    if (index < 0) {
+      throw new IllegalArgumentException("Report does not contain column " + columnName);
+    }
+    return index;
+  }
+
+  /** Returns the number of rows in the report. */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /** Returns the number of chunks the rows are stored in. */
+  public int getChunkCount() {
+    return chunks.size();
+  }
+
+  /** Returns the number of rows in a chunk. */
+  public int getChunkRowCount(int chunk) {
+    return chunks.get(chunk).rowCount;
+  }
+
+  /** Returns the statistics of a column in a chunk, without reading the chunk. */
+  public ColumnStatistics getStatistics(int chunk, int column) {
+    return chunks.get(chunk).statistics[column];
+  }
+
+  /**
+   * Reads the values of a column in a chunk.
+   *
+   * @param chunk The position of the chunk.
+   * @param column The position of the column.
+   */
+  public ColumnChunk readColumn(int chunk, int column) throws IOException {
+    ChunkInfo info = chunks.get(chunk);
+    long offset = info.columnOffsets[column];
+    ByteBuffer buffer = read(offset, (int) (info.columnOffsets[column + 1] - offset));
+    return ColumnChunk.read(buffer, info.statistics[column], info.rowCount);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Columnar report file is truncated.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void checkMagic(ByteBuffer buffer, String file) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    buffer.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException(file + " is not a columnar report file.");
+    }
+  }
+
+  static int readVarInt(ByteBuffer buffer) {
+    return (int) readVarLong(buffer);
+  }
+
+  static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[readVarInt(buffer)];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** The location and statistics of a chunk, as stored in the footer. */
+  private static final class ChunkInfo {
+    int rowCount;
+    long[] columnOffsets;
+    ColumnStatistics[] statistics;
+
+    static ChunkInfo read(ByteBuffer footer, int columnCount) throws IOException {
+      ChunkInfo chunk = new ChunkInfo();
+      chunk.rowCount = readVarInt(footer);
+      chunk.columnOffsets = new long[columnCount + 1];
+      chunk.columnOffsets[0] = footer.getLong();
+      chunk.statistics = new ColumnStatistics[columnCount];
+      for (int column = 0; column < columnCount; column++) {
+        chunk.statistics[column] = ColumnStatistics.read(footer);
+        chunk.columnOffsets[column + 1] = chunk.columnOffsets[column] + readVarLong(footer);
+      }
+      return chunk;
+    }
+  }
+
+  /** The encoding and the minimum and maximum values of a column in a chunk. */
+  public static final class ColumnStatistics {
+    private final Encoding encoding;
+    private final long minLong;
+    private final long maxLong;
+    private final double minDouble;
+    private final double maxDouble;
+    private final String minString;
+    private final String maxString;
+
+    ColumnStatistics(
+        Encoding encoding,
+        long minLong,
+        long maxLong,
+        double minDouble,
+        double maxDouble,
+        String minString,
+        String maxString) {
+      this.encoding = encoding;
+      this.minLong = minLong;
+      this.maxLong = maxLong;
+      this.minDouble = minDouble;
+      this.maxDouble = maxDouble;
+      this.minString = minString;
+      this.maxString = maxString;
+    }
+
+    static ColumnStatistics read(ByteBuffer buffer) throws IOException {
+      Encoding encoding = Encoding.fromId(buffer.get());
+      switch (encoding) {
+        case LONG:
+          long minLong = buffer.getLong();
+          long maxLong = buffer.getLong();
+          return new ColumnStatistics(encoding, minLong, maxLong, minLong, maxLong, null, null);
+        case DOUBLE:
+          double minDouble = buffer.getDouble();
+          double maxDouble = buffer.getDouble();
+          return new ColumnStatistics(encoding, 0, 0, minDouble, maxDouble, null, null);
+        default:
+          String minString = readString(buffer);
+          String maxString = readString(buffer);
+          return new ColumnStatistics(encoding, 0, 0, 0, 0, minString, maxString);
+      }
+    }
+
+    /** Returns how the values of the column chunk are stored. */
+    public Encoding getEncoding() {
+      return encoding;
+    }
+
+    /** Returns the minimum value of a {@link Encoding#LONG} column chunk. */
+    public long getMinLong() {
+      checkEncoding(Encoding.LONG);
+      return minLong;
+    }
+
+    /** Returns the maximum value of a {@link Encoding#LONG} column chunk. */
+    public long getMaxLong() {
+      checkEncoding(Encoding.LONG);
+      return maxLong;
+    }
+
+    /** Returns the minimum value of a {@link Encoding#LONG} or {@link Encoding#DOUBLE} chunk. */
+    public double getMinDouble() {
+      checkNumeric();
+      return minDouble;
+    }
+
+    /** Returns the maximum value of a {@link Encoding#LONG} or {@link Encoding#DOUBLE} chunk. */
+    public double getMaxDouble() {
+      checkNumeric();
+      return maxDouble;
+    }
+
+    /** Returns the lowest value of a {@link Encoding#DICTIONARY} column chunk. */
+    public String getMinString() {
+      checkEncoding(Encoding.DICTIONARY);
+      return minString;
+    }
+
+    /** Returns the highest value of a {@link Encoding#DICTIONARY} column chunk. */
+    public String getMaxString() {
+      checkEncoding(Encoding.DICTIONARY);
+      return maxString;
+    }
+
+    private void checkEncoding(Encoding expected) {
+      if (encoding != expected) {
+        throw new IllegalStateException("Column chunk is encoded as " + encoding);
+      }
+    }
+
+    private void checkNumeric() {
+      if (encoding == Encoding.DICTIONARY) {
+        throw new IllegalStateException("Column chunk is encoded as " + encoding);
+      }
+    }
+  }
+
+  /** The values of a column in a chunk. */
+  public static final class ColumnChunk {
+    private final Encoding encoding;
+    private final int rowCount;
+    private long[] longs;
+    private double[] doubles;
+    private int[] codes;
+    private String[] dictionary;
+
+    private ColumnChunk(Encoding encoding, int rowCount) {
+      this.encoding = encoding;
+      this.rowCount = rowCount;
+    }
+
+    static ColumnChunk read(ByteBuffer buffer, ColumnStatistics statistics, int rowCount) {
+      ColumnChunk chunk = new ColumnChunk(statistics.getEncoding(), rowCount);
+      switch (statistics.getEncoding()) {
+        case LONG:
+          long min = statistics.getMinLong();
+          chunk.longs = new long[rowCount];
+          for (int row = 0; row < rowCount; row++) {
+            chunk.longs[row] = min + readVarLong(buffer);
+          }
+          break;
+        case DOUBLE:
+          chunk.doubles = new double[rowCount];
+          buffer.asDoubleBuffer().get(chunk.doubles);
+          break;
+        default:
+          chunk.dictionary = new String[readVarInt(buffer)];
+          for (int i = 0; i < chunk.dictionary.length; i++) {
+            chunk.dictionary[i] = readString(buffer);
+          }
+          int codeWidth = buffer.get();
+          chunk.codes = new int[rowCount];
+          for (int row = 0; row < rowCount; row++) {
+            if (codeWidth == 1) {
+              chunk.codes[row] = buffer.get() & 0xFF;
+            } else if (codeWidth == 2) {
+              chunk.codes[row] = buffer.getShort() & 0xFFFF;
+            } else {
+              chunk.codes[row] = buffer.getInt();
+            }
+          }
+          break;
+      }
+      return chunk;
+    }
+
+    /** Returns how the values are stored. */
+    public Encoding getEncoding() {
+      return encoding;
+    }
+
+    /** Returns the number of values. */
+    public int getRowCount() {
+      return rowCount;
+    }
+
+    /** Returns the value of a row of a {@link Encoding#LONG} column chunk. */
+    public long getLong(int row) {
+      if (encoding != Encoding.LONG) {
+        throw new IllegalStateException("Column chunk is encoded as " + encoding);
+      }
+      return longs[row];
+    }
+
+    /** Returns the value of a row of a {@link Encoding#LONG} or {@link Encoding#DOUBLE} chunk. */
+    public double getDouble(int row) {
+      switch (encoding) {
+        case LONG:
+          return longs[row];
+        case DOUBLE:
+          return doubles[row];
+        default:
+          throw new IllegalStateException("Column chunk is encoded as " + encoding);
+      }
+    }
+
+    /**
+     * Returns the value of a row as a string. Numbers are formatted by {@link Long#toString} and
+     * {@link Double#toString}, which may differ from their formatting in the CSV report.
+     */
+    public String getString(int row) {
+      switch (encoding) {
+        case LONG:
+          return Long.toString(longs[row]);
+        case DOUBLE:
+          return Double.toString(doubles[row]);
+        default:
+          return dictionary[codes[row]];
+      }
+    }
+
+    /**
+     * Returns the dictionary index of the value of a row of a {@link Encoding#DICTIONARY} column
+     * chunk. Rows with the same value have the same index within a chunk.
+     */
+    public int getCode(int row) {
+      if (encoding != Encoding.DICTIONARY) {
+        throw new IllegalStateException("Column chunk is encoded as " + encoding);
+      }
+      return codes[row];
+    }
+
+    /** Returns the distinct values of a {@link Encoding#DICTIONARY} column chunk. */
+    public List<String> getDictionary() {
+      if (encoding != Encoding.DICTIONARY) {
+        throw new IllegalStateException("Column chunk is encoded as " + encoding);
+      }
+      return Collections.unmodifiableList(Arrays.asList(dictionary));
+    }
+  }
+}
@@ -0,0 +1,279 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.bidmanager.api.samples.utils.ColumnarReportReader.Encoding;
+import com.google.common.io.CountingOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the rows of a CSV report into a columnar file, which is smaller than the CSV report and
+ * can be scanned without parsing text. Read the file with {@link ColumnarReportReader}.
+ *
+ * <p>Rows are written in chunks, and the values of every column of a chunk are stored together.
+ * Dimension columns are dictionary encoded. Metric columns are stored as longs or doubles, unless
+ * some of their values in a chunk are not numbers, in which case they are dictionary encoded too.
+ * The minimum and maximum values of every column chunk are stored in the footer of the file.
+ *
+ * <p>The writer is a {@link ReportRowHandler}, so it can receive the rows of a report while they
+ * are downloaded, or from a CSV file with {@link #convert}.
+ */
+public class ColumnarReportWriter implements ReportRowHandler, Closeable {
+
+  /** Default number of rows in a chunk. */
+  public static final int DEFAULT_ROWS_PER_CHUNK = 64 * 1024;
+
+  /** Maximum number of parsed rows waiting to be written when converting a CSV file. */
+  private static final int MAX_BUFFERED_ROWS = 1024;
+
+  private final ReportSchema schema;
+  private final int rowsPerChunk;
+  private final CountingOutputStream counter;
+  private final DataOutputStream output;
+  private final List<String[]> rows = new ArrayList<String[]>();
+  private final ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+  private final DataOutputStream footer = new DataOutputStream(footerBytes);
+  private int chunkCount;
+  private boolean closed;
+
+  /**
+   * Creates a writer.
+   *
+   * @param outputFile The path of the columnar file to write.
+   * @param schema The schema of the report.
+   * @param rowsPerChunk The number of rows in a chunk.
+   */
+  public ColumnarReportWriter(String outputFile, ReportSchema schema, int rowsPerChunk)
+      throws IOException {
+    this.schema = schema;
+    this.rowsPerChunk = rowsPerChunk;
+    this.counter =
+        new CountingOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(Paths.get(outputFile))));
+    this.output = new DataOutputStream(counter);
+  }
+
+  /**
+   * Converts a downloaded CSV report into a columnar file.
+   *
+   * @param csvFile The path of the CSV report, which may be gzip compressed.
+   * @param schema The schema of the report.
+   * @param outputFile The path of the columnar file to write.
+   */
+  public static void convert(String csvFile, ReportSchema schema, String outputFile)
+      throws Exception {
+    try (CsvParser parser = new CsvParser(CompressionUtils.newBufferedReader(csvFile));
+        ColumnarReportWriter writer =
+            new ColumnarReportWriter(outputFile, schema, DEFAULT_ROWS_PER_CHUNK)) {
+      ReportRowPipeline.run(parser, schema, writer, MAX_BUFFERED_ROWS);
+    }
+  }
+
+  @Override
+  public void handleHeader(String[] header) throws IOException {
+    if (header.length != schema.getColumnCount()) {
+      throw new IOException(
+          String.format(
+              "Report has %s columns, but its schema has %s.",
+              header.length, schema.getColumnCount()));
+    }
+
+    List<String> columnNames = new ArrayList<String>(schema.getDimensions());
+    columnNames.addAll(schema.getMetrics());
+
+    output.write(ColumnarReportReader.MAGIC);
+    output.writeInt(ColumnarReportReader.VERSION);
+    writeVarLong(output, header.length);
+    for (int column = 0; column < header.length; column++) {
+      writeString(output, columnNames.get(column));
+      writeString(output, header[column]);
+    }
+  }
+
+  @Override
+  public void handleRow(String[] row) throws IOException {
+    if (row.length != schema.getColumnCount()) {
+      throw new IOException(
+          String.format(
+              "Row %s has %s columns, expected %s.",
+              (long) chunkCount * rowsPerChunk + rows.size() + 1,
+              row.length,
+              schema.getColumnCount()));
+    }
+    rows.add(row);
+    if (rows.size() == rowsPerChunk) {
+      writeChunk();
+    }
+  }
+
+  @Override
+  public void handleEnd() throws IOException {
+    if (!rows.isEmpty()) {
+      writeChunk();
+    }
+
+    // Write the footer, followed by its offset.
+    long footerOffset = counter.getCount();
+    writeVarLong(output, chunkCount);
+    footer.flush();
+    footerBytes.writeTo(output);
+    output.writeLong(footerOffset);
+    output.write(ColumnarReportReader.MAGIC);
+    close();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      output.close();
+    }
+  }
+
+  /** Writes the buffered rows as a chunk, and its location and statistics to the footer. */
+  private void writeChunk() throws IOException {
+    writeVarLong(footer, rows.size());
+    footer.writeLong(counter.getCount());
+    for (int column = 0; column < schema.getColumnCount(); column++) {
+      long columnStart = counter.getCount();
+      boolean numeric =
+          !schema.isDimension(column) && (writeLongColumn(column) || writeDoubleColumn(column));
+      if (!numeric) {
+        writeDictionaryColumn(column);
+      }
+      writeVarLong(footer, counter.getCount() - columnStart);
+    }
+    rows.clear();
+    chunkCount++;
+  }
+
+  /** Writes a column as longs if all its values are whole numbers. */
+  private boolean writeLongColumn(int column) throws IOException {
+    long[] values = new long[rows.size()];
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (int row = 0; row < values.length; row++) {
+      try {
+        values[row] = Long.parseLong(rows.get(row)[column]);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      min = Math.min(min, values[row]);
+      max = Math.max(max, values[row]);
+    }
+
+    for (long value : values) {
+      writeVarLong(output, value - min);
+    }
+    footer.writeByte(Encoding.LONG.ordinal());
+    footer.writeLong(min);
+    footer.writeLong(max);
+    return true;
+  }
+
+  /** Writes a column as doubles if all its values are numbers. */
+  private boolean writeDoubleColumn(int column) throws IOException {
+    double[] values = new double[rows.size()];
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int row = 0; row < values.length; row++) {
+      try {
+        values[row] = Double.parseDouble(rows.get(row)[column]);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      min = Math.min(min, values[row]);
+      max = Math.max(max, values[row]);
+    }
+
+    for (double value : values) {
+      output.writeDouble(value);
+    }
+    footer.writeByte(Encoding.DOUBLE.ordinal());
+    footer.writeDouble(min);
+    footer.writeDouble(max);
+    return true;
+  }
+
+  /** Writes the distinct values of a column once, and the index of its value for every row. */
+  private void writeDictionaryColumn(int column) throws IOException {
+    Map<String, Integer> codes = new HashMap<String, Integer>();
+    List<String> dictionary = new ArrayList<String>();
+    int[] rowCodes = new int[rows.size()];
+    String min = null;
+    String max = null;
+    for (int row = 0; row < rowCodes.length; row++) {
+      String value = rows.get(row)[column];
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        codes.put(value, code);
+        dictionary.add(value);
+        if (min == null || value.compareTo(min) < 0) {
+          min = value;
+        }
+        if (max == null || value.compareTo(max) > 0) {
+          max = value;
+        }
+      }
+      rowCodes[row] = code;
+    }
+
+    writeVarLong(output, dictionary.size());
+    for (String value : dictionary) {
+      writeString(output, value);
+    }
+    int codeWidth = dictionary.size() <= 0x100 ? 1 : dictionary.size() <= 0x10000 ? 2 : 4;
+    output.writeByte(codeWidth);
+    for (int code : rowCodes) {
+      if (codeWidth == 1) {
+        output.writeByte(code);
+      } else if (codeWidth == 2) {
+        output.writeShort(code);
+      } else {
+        output.writeInt(code);
+      }
+    }
+    footer.writeByte(Encoding.DICTIONARY.ordinal());
+    writeString(footer, min);
+    writeString(footer, max);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class implements utility methods for report files that may be stored gzip compressed.
+ *
+ * <p>Compressed files are recognized by the gzip magic bytes at their start, so report files can be
+ * read the same way whether or not they are compressed, whatever their name.
+ */
+public class CompressionUtils {
+
+  /** Suffix of the names of files that are kept gzip compressed. */
+  public static final String GZIP_SUFFIX = ".gz";
+
+  /** The first two bytes of every gzip stream. */
+  private static final int GZIP_MAGIC_FIRST_BYTE = 0x1f;
+
+  private static final int GZIP_MAGIC_SECOND_BYTE = 0x8b;
+
+  /** Size of the buffers used to compress and decompress files. */
+  private static final int BUFFER_SIZE_IN_BYTES = 64 * 1024;
+
+  /** Returns whether a file is gzip compressed. */
+  public static boolean isGzipped(String file) throws IOException {
+    try (InputStream input = Files.newInputStream(Paths.get(file))) {
+      return input.read() == GZIP_MAGIC_FIRST_BYTE && input.read() == GZIP_MAGIC_SECOND_BYTE;
+    }
+  }
+
+  /**
+   * Wraps a stream so that gzip compressed content is decompressed as it is read. Content that is
+   * not compressed is returned as is.
+   */
+  public static InputStream decompressIfGzipped(InputStream input) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(input, BUFFER_SIZE_IN_BYTES);
+    buffered.mark(2);
+    boolean gzipped =
+        buffered.read() == GZIP_MAGIC_FIRST_BYTE && buffered.read() == GZIP_MAGIC_SECOND_BYTE;
+    buffered.reset();
+    return gzipped ? new GZIPInputStream(buffered, BUFFER_SIZE_IN_BYTES) : buffered;
+  }
+
+  /** Opens a UTF-8 text file for reading, decompressing it if it is gzip compressed. */
+  public static BufferedReader newBufferedReader(String file) throws IOException {
+    InputStream input = Files.newInputStream(Paths.get(file));
+    try {
+      return new BufferedReader(new InputStreamReader(decompressIfGzipped(input), UTF_8));
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a UTF-8 text file for writing, replacing its content. The file is written gzip
+   * compressed if its name ends with {@link #GZIP_SUFFIX}.
+   */
+  public static BufferedWriter newBufferedWriter(String file) throws IOException {
+    OutputStream output = Files.newOutputStream(Paths.get(file));
+    try {
+      if (file.endsWith(GZIP_SUFFIX)) {
+        output = new GZIPOutputStream(output, BUFFER_SIZE_IN_BYTES);
+      }
+      return new BufferedWriter(new OutputStreamWriter(output, UTF_8), BUFFER_SIZE_IN_BYTES);
+    } catch (IOException e) {
+      output.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Compresses or decompresses a file in place so it is stored in the requested form. The file is
+   * rewritten into a temporary file that then replaces it, and is left as is if it already is in
+   * the requested form.
+   *
+   * @param file The path of the file.
+   * @param compressed Whether the file should be gzip compressed.
+   */
+  public static void setCompressed(String file, boolean compressed) throws IOException {
+    if (isGzipped(file) == compressed) {
+      return;
+    }
+
+    try (InputStream input = Files.newInputStream(Paths.get(file))) {
+      write(input, file, compressed);
+    }
+    System.out.printf("Report file %s %s.%n", file, compressed ? "compressed" : "decompressed");
+  }
+
+  /**
+   * Writes a stream into a file in the requested form, compressing or decompressing its content
+   * as it is copied. Content that already is in the requested form is copied as is. The content is
+   * written into a temporary file that then replaces the file, so the file is never left partially
+   * written.
+   *
+   * @param input The content to write, which may be gzip compressed. It is not closed.
+   * @param file The path of the file.
+   * @param compressed Whether the file should be gzip compressed.
+   */
+  public static void write(InputStream input, String file, boolean compressed)
+      throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(input, BUFFER_SIZE_IN_BYTES);
+    buffered.mark(2);
+    boolean gzipped =
+        buffered.read() == GZIP_MAGIC_FIRST_BYTE && buffered.read() == GZIP_MAGIC_SECOND_BYTE;
+    buffered.reset();
+
+    Path path = Paths.get(file);
+    Path temporaryFile = Paths.get(file + ".tmp");
+    try {
+      try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+        if (gzipped == compressed) {
+          ByteStreams.copy(buffered, output);
+        } else if (compressed) {
+          try (OutputStream gzip = new GZIPOutputStream(output, BUFFER_SIZE_IN_BYTES)) {
+            ByteStreams.copy(buffered, gzip);
+          }
+        } else {
+          ByteStreams.copy(new GZIPInputStream(buffered, BUFFER_SIZE_IN_BYTES), output);
+        }
+      }
+      Files.move(
+          temporaryFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+}
@@ -0,0 +1,24 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+/**
+ * A {@link ReportRowHandler} that can receive the rows of a report on several threads at once.
+ *
+ * <p>{@link #handleHeader} is still called once before any rows, and {@link #handleEnd} once after
+ * the last row. {@link #handleRow} however may be called concurrently and in any order, so it must
+ * be thread-safe.
+ */
+public interface ConcurrentReportRowHandler extends ReportRowHandler {}
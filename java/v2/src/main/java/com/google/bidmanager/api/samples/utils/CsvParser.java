@@ -0,0 +1,157 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads records from CSV text, as produced for reports in the CSV format, and formats records
+ * back into CSV text.
+ *
+ * <p>Fields may be quoted with double quotes, in which case they can contain commas, line breaks
+ * and doubled double quotes. Records may end with either {@code \n} or {@code \r\n}.
+ */
+public class CsvParser implements Closeable {
+
+  /** Returned by {@link #readRecord()} for a blank line. */
+  public static final String[] BLANK_LINE = new String[0];
+
+  private static final int END_OF_INPUT = -1;
+
+  private final Reader reader;
+  private final char[] buffer = new char[8192];
+  private int bufferPosition;
+  private int bufferLimit;
+
+  private final StringBuilder field = new StringBuilder();
+  private final List<String> record = new ArrayList<String>();
+
+  /** Creates a parser reading from the given reader. */
+  public CsvParser(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return The fields of the record, {@link #BLANK_LINE} if the line is blank, or {@code null} at
+   *     the end of the input.
+   */
+  public String[] readRecord() throws IOException {
+    record.clear();
+    field.setLength(0);
+    boolean inQuotes = false;
+    boolean quoted = false;
+
+    int c = read();
+    if (c == END_OF_INPUT) {
+      return null;
+    }
+
+    while (c != END_OF_INPUT) {
+      if (inQuotes) {
+        if (c == '"') {
+          if (peek() == '"') {
+            read();
+            field.append('"');
+          } else {
+            inQuotes = false;
+          }
+        } else {
+          field.append((char) c);
+        }
+      } else if (c == '"') {
+        inQuotes = true;
+        quoted = true;
+      } else if (c == ',') {
+        record.add(field.toString());
+        field.setLength(0);
+      } else if (c == '\n' || c == '\r') {
+        if (c == '\r' && peek() == '\n') {
+          read();
+        }
+        break;
+      } else {
+        field.append((char) c);
+      }
+      c = read();
+    }
+
+    if (record.isEmpty() && field.length() == 0 && !quoted) {
+      return BLANK_LINE;
+    }
+    record.add(field.toString());
+    return record.toArray(new String[record.size()]);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /**
+   * Formats a record as a line of CSV text, which {@link #readRecord()} reads back as the same
+   * fields. Fields containing commas, double quotes or line breaks are quoted.
+   *
+   * @param record The fields of the record.
+   * @return The line, ending with {@code \n}.
+   */
+  public static String formatRecord(String[] record) {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < record.length; i++) {
+      if (i > 0) {
+        line.append(',');
+      }
+      String value = record[i];
+      if (value.indexOf(',') >= 0
+          || value.indexOf('"') >= 0
+          || value.indexOf('\n') >= 0
+          || value.indexOf('\r') >= 0) {
+        line.append('"').append(value.replace("\"", "\"\"")).append('"');
+      } else {
+        line.append(value);
+      }
+    }
+    return line.append('\n').toString();
+  }
+
+  private int read() throws IOException {
+    if (bufferPosition == bufferLimit && !fill()) {
+      return END_OF_INPUT;
+    }
+    return buffer[bufferPosition++];
+  }
+
+  private int peek() throws IOException {
+    if (bufferPosition == bufferLimit && !fill()) {
+      return END_OF_INPUT;
+    }
+    return buffer[bufferPosition];
+  }
+
+  private boolean fill() throws IOException {
+    int read = reader.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      return false;
+    }
+    bufferPosition = 0;
+    bufferLimit = read;
+    return true;
+  }
+}
@@ -0,0 +1,218 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Records which byte ranges of a download have been written to the output file, so an interrupted
+ * download can continue where it left off.
+ *
+ * <p>The checkpoint is kept in a sidecar file next to the output file and is rewritten atomically
+ * every time a range is committed. It is only reused for the same source object and while the
+ * output file still exists.
+ */
+public class DownloadCheckpoint {
+
+  /** Suffix appended to the output file path to name its checkpoint file. */
+  private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+  private static final String SOURCE_PROPERTY = "source";
+  private static final String TOTAL_BYTES_PROPERTY = "totalBytes";
+  private static final String CONTENT_ENCODING_PROPERTY = "contentEncoding";
+  private static final String RANGES_PROPERTY = "ranges";
+
+  private final Path checkpointFile;
+  private final String source;
+  private long totalBytes;
+  private String contentEncoding;
+
+  /** Committed ranges, mapping the first byte of each range to the byte following it. */
+  private final TreeMap<Long, Long> committedRanges = new TreeMap<Long, Long>();
+
+  private DownloadCheckpoint(Path checkpointFile, String source, long totalBytes) {
+    this.checkpointFile = checkpointFile;
+    this.source = source;
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * Opens the checkpoint of a download, discarding any existing checkpoint that belongs to a
+   * different source or whose output file no longer exists.
+   *
+   * @param outputFile The path the file is being downloaded to.
+   * @param source A stable identifier of the object being downloaded.
+   * @return The existing checkpoint, or an empty one if the download must start from scratch.
+   */
+  public static DownloadCheckpoint open(String outputFile, String source) throws IOException {
+    Path checkpointFile = Paths.get(outputFile + CHECKPOINT_SUFFIX);
+    DownloadCheckpoint checkpoint = new DownloadCheckpoint(checkpointFile, source, -1);
+    if (!Files.exists(checkpointFile)) {
+      return checkpoint;
+    }
+
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(checkpointFile, UTF_8)) {
+      properties.load(reader);
+    }
+
+    if (!source.equals(properties.getProperty(SOURCE_PROPERTY))
+        || !Files.exists(Paths.get(outputFile))) {
+      Files.delete(checkpointFile);
+      return checkpoint;
+    }
+
+    checkpoint.totalBytes = Long.parseLong(properties.getProperty(TOTAL_BYTES_PROPERTY, "-1"));
+    checkpoint.contentEncoding = properties.getProperty(CONTENT_ENCODING_PROPERTY);
+    String ranges = properties.getProperty(RANGES_PROPERTY, "");
+    for (String range : ranges.split(",")) {
+      if (!range.isEmpty()) {
+        String[] bounds = range.split("-");
+        checkpoint.addRange(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+      }
+    }
+    return checkpoint;
+  }
+
+  /** Returns the total size of the file being downloaded, or -1 if it is not yet known. */
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /** Sets the total size of the file being downloaded. */
+  public synchronized void setTotalBytes(long totalBytes) throws IOException {
+    this.totalBytes = totalBytes;
+    save();
+  }
+
+  /**
+   * Returns the content encoding of the bytes written to the output file, such as {@code gzip},
+   * or {@code null} if they are not encoded.
+   */
+  public synchronized String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /** Sets the content encoding of the bytes written to the output file. */
+  public synchronized void setContentEncoding(String contentEncoding) throws IOException {
+    this.contentEncoding = contentEncoding;
+    save();
+  }
+
+  /** Returns the number of bytes already committed to the output file. */
+  public synchronized long getCommittedBytes() {
+    long committed = 0;
+    for (Map.Entry<Long, Long> range : committedRanges.entrySet()) {
+      committed += range.getValue() - range.getKey();
+    }
+    return committed;
+  }
+
+  /**
+   * Returns the ranges of the file that have not been committed yet, split into ranges of at most
+   * the given size. Each range is returned as a two element array of its first and last byte.
+   */
+  public synchronized List<long[]> getMissingRanges(long maxRangeSize) {
+    List<long[]> missingRanges = new ArrayList<long[]>();
+    long position = 0;
+    for (Map.Entry<Long, Long> range : committedRanges.entrySet()) {
+      addMissingRanges(missingRanges, position, range.getKey(), maxRangeSize);
+      position = range.getValue();
+    }
+    addMissingRanges(missingRanges, position, totalBytes, maxRangeSize);
+    return missingRanges;
+  }
+
+  /**
+   * Records that a range has been durably written to the output file.
+   *
+   * @param firstByte The first byte of the range.
+   * @param lastByte The last byte of the range, inclusive.
+   */
+  public synchronized void commit(long firstByte, long lastByte) throws IOException {
+    addRange(firstByte, lastByte + 1);
+    save();
+  }
+
+  /** Deletes the checkpoint once the download is complete. */
+  public synchronized void delete() throws IOException {
+    Files.deleteIfExists(checkpointFile);
+  }
+
+  private static void addMissingRanges(
+      List<long[]> missingRanges, long start, long end, long maxRangeSize) {
+    for (long first = start; first < end; first += maxRangeSize) {
+      missingRanges.add(new long[] {first, Math.min(first + maxRangeSize, end) - 1});
+    }
+  }
+
+  /** Adds the range [start, end) to the committed ranges, merging it with adjacent ranges. */
+  private void addRange(long start, long end) {
+    Map.Entry<Long, Long> previous = committedRanges.floorEntry(start);
+    if (previous != null && previous.getValue() >= start) {
+      start = previous.getKey();
+      end = Math.max(end, previous.getValue());
+    }
+    Map.Entry<Long, Long> next = committedRanges.ceilingEntry(start);
+    while (next != null && next.getKey() <= end) {
+      end = Math.max(end, next.getValue());
+      committedRanges.remove(next.getKey());
+      next = committedRanges.ceilingEntry(start);
+    }
+    committedRanges.put(start, end);
+  }
+
+  /** Writes the checkpoint to a temporary file and moves it over the previous checkpoint. */
+  private void save() throws IOException {
+    StringBuilder ranges = new StringBuilder();
+    for (Map.Entry<Long, Long> range : committedRanges.entrySet()) {
+      if (ranges.length() > 0) {
+        ranges.append(',');
+      }
+      ranges.append(range.getKey()).append('-').append(range.getValue());
+    }
+
+    Properties properties = new Properties();
+    properties.setProperty(SOURCE_PROPERTY, source);
+    properties.setProperty(TOTAL_BYTES_PROPERTY, Long.toString(totalBytes));
+    properties.setProperty(RANGES_PROPERTY, ranges.toString());
+    if (contentEncoding != null) {
+      properties.setProperty(CONTENT_ENCODING_PROPERTY, contentEncoding);
+    }
+
+    Path temporaryFile = Paths.get(checkpointFile + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temporaryFile, UTF_8)) {
+      properties.store(writer, "Download checkpoint");
+    }
+    Files.move(
+        temporaryFile,
+        checkpointFile,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
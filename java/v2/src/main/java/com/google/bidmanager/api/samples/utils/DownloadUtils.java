@@ -14,17 +14,53 @@
 
 package com.google.bidmanager.api.samples.utils;
 
-import com.google.api.client.googleapis.media.MediaHttpDownloader;
-import com.google.api.client.googleapis.util.Utils;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpTransport;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** This class implements file download utility methods used across samples. */
 public class DownloadUtils {
 
-  private static final HttpTransport HTTP_TRANSPORT = Utils.getDefaultTransport();
+  /** Size of the byte ranges requested by each connection in a parallel download. */
+  private static final long RANGE_SIZE_IN_BYTES = 16L * 1024 * 1024;
+
+  /** Size of the buffer used to copy response content into the output file. */
+  private static final int BUFFER_SIZE_IN_BYTES = 64 * 1024;
+
+  /** Number of times a range is requested before the download fails. */
+  private static final int MAX_RANGE_ATTEMPTS = 3;
+
+  /** HTTP status code returned for a successful range request. */
+  private static final int STATUS_CODE_PARTIAL_CONTENT = 206;
+
+  /** HTTP status code returned for a range request on an empty file. */
+  private static final int STATUS_CODE_RANGE_NOT_SATISFIABLE = 416;
 
   /**
    * Download file from Google Cloud Storage.
@@ -33,15 +69,590 @@ public class DownloadUtils {
    */
   public static void downloadFileFromCloudStorage(String cloudStoragePath, String outputFile)
       throws Exception {
+    downloadFileFromCloudStorage(cloudStoragePath, outputFile, 1);
+  }
+
+  /**
+   * Download file from Google Cloud Storage over one or more connections. The output file is kept
+   * gzip compressed if its name ends with {@code .gz}.
+   *
+   * @param cloudStoragePath The URL of the file in Google Cloud Storage.
+   * @param outputFile The path to download the file to.
+   * @param connections The maximum number of connections to download the file with.
+   * @throws Exception If an error occurs while downloading the file
+   */
+  public static void downloadFileFromCloudStorage(
+      String cloudStoragePath, String outputFile, int connections) throws Exception {
+    downloadFileFromCloudStorage(
+        cloudStoragePath,
+        outputFile,
+        connections,
+        outputFile.endsWith(CompressionUtils.GZIP_SUFFIX));
+  }
+
+  /**
+   * Download file from Google Cloud Storage over one or more connections.
+   *
+   * <p>The file is split into byte ranges that are requested in parallel and written at their
+   * offsets in a preallocated output file. If the server does not honor range requests, the file
+   * is streamed into the output file over a single connection instead, compressing or
+   * decompressing it as it arrives.
+   *
+   * <p>Every range that is written is recorded in a checkpoint file next to the output file. If
+   * the download fails, downloading the same file to the same output file again only requests the
+   * ranges that are still missing.
+   *
+   * <p>The file is requested with gzip content encoding, and the bytes are written as they are
+   * received, so a file served compressed is transferred and written compressed. Once complete,
+   * the output file is compressed or decompressed as requested.
+   *
+   * @param cloudStoragePath The URL of the file in Google Cloud Storage.
+   * @param outputFile The path to download the file to.
+   * @param connections The maximum number of connections to download the file with.
+   * @param compressed Whether to keep the output file gzip compressed.
+   * @throws Exception If an error occurs while downloading the file
+   */
+  public static void downloadFileFromCloudStorage(
+      String cloudStoragePath, String outputFile, int connections, boolean compressed)
+      throws Exception {
+
+    final GenericUrl reportUrl = new GenericUrl(cloudStoragePath);
+    reportUrl.put("alt", "media");
+    final HttpRequestFactory requestFactory = createRequestFactory();
+    final DownloadCheckpoint checkpoint =
+        DownloadCheckpoint.open(outputFile, getSourceId(reportUrl));
+
+    HttpResponse firstResponse = null;
+    if (checkpoint.getTotalBytes() < 0) {
+      // Request the first range to learn the size of the file and whether ranges are supported.
+      firstResponse = executeRangeRequest(requestFactory, reportUrl, 0, RANGE_SIZE_IN_BYTES - 1);
+      if (firstResponse.getStatusCode() != STATUS_CODE_PARTIAL_CONTENT) {
+        InputStream content;
+        if (firstResponse.getStatusCode() == STATUS_CODE_RANGE_NOT_SATISFIABLE) {
+          // The file is empty.
+          firstResponse.disconnect();
+          content = new ByteArrayInputStream(new byte[0]);
+        } else {
+          // The server ignored the range, so the whole file is in this response.
+          System.out.println(
+              "Server does not support range requests, downloading with a single connection.");
+          content = new ResponseInputStream(firstResponse);
+        }
+        try {
+          CompressionUtils.write(content, outputFile, compressed);
+        } finally {
+          content.close();
+        }
+        System.out.println("Download complete.");
+        return;
+      }
+    }
+
+    try (RandomAccessFile file = new RandomAccessFile(outputFile, "rw")) {
+      final FileChannel channel = file.getChannel();
+
+      if (firstResponse == null) {
+        System.out.printf(
+            "Resuming download, %s of %s bytes were already downloaded.%n",
+            checkpoint.getCommittedBytes(), checkpoint.getTotalBytes());
+      } else {
+        // All ranges must use the encoding of the first one, as their offsets refer to it.
+        checkpoint.setContentEncoding(firstResponse.getContentEncoding());
+        long totalBytes = parseTotalBytes(firstResponse.getHeaders().getContentRange());
+        file.setLength(totalBytes);
+        checkpoint.setTotalBytes(totalBytes);
+
+        long lastByte = Math.min(RANGE_SIZE_IN_BYTES, totalBytes) - 1;
+        writeContent(firstResponse, channel, 0, lastByte + 1);
+        channel.force(false);
+        checkpoint.commit(0, lastByte);
+      }
+
+      // Request the ranges that are still missing in parallel.
+      List<Callable<Void>> rangeDownloads = new ArrayList<Callable<Void>>();
+      for (final long[] range : checkpoint.getMissingRanges(RANGE_SIZE_IN_BYTES)) {
+        rangeDownloads.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() throws Exception {
+                downloadRange(requestFactory, reportUrl, channel, checkpoint, range[0], range[1]);
+                return null;
+              }
+            });
+      }
+      runAll(rangeDownloads, connections);
+    } finally {
+      if (firstResponse != null) {
+        firstResponse.disconnect();
+      }
+    }
+
+    checkpoint.delete();
+    // The ranges were written as received, so the file may still need to be converted.
+    CompressionUtils.setCompressed(outputFile, compressed);
+    System.out.println("Download complete.");
+  }
 
+  /**
+   * Streams the rows of a CSV report file from Google Cloud Storage to a handler while the file is
+   * being downloaded, without writing it to disk.
+   *
+   * <p>Rows are parsed from the HTTP response as it arrives and handed to the handler on a separate
+   * thread. At most {@code maxBufferedRows} parsed rows wait for the handler, so reading from the
+   * network pauses when the handler falls behind. See {@link ReportRowPipeline} for details.
+   *
+   * @param cloudStoragePath The URL of the report file in Google Cloud Storage.
+   * @param schema The schema of the report, used to skip the summary row, or {@code null}.
+   * @param handler The handler to receive the rows.
+   * @param maxBufferedRows The maximum number of parsed rows waiting to be handled.
+   * @throws Exception If an error occurs while downloading the file or handling its rows
+   */
+  public static void streamReportRows(
+      String cloudStoragePath, ReportSchema schema, ReportRowHandler handler, int maxBufferedRows)
+      throws Exception {
+    GenericUrl reportUrl = new GenericUrl(cloudStoragePath);
+    reportUrl.put("alt", "media");
+
+    // The content is decompressed as it is read if it was sent with gzip content encoding, or if
+    // the file itself is gzip compressed.
+    HttpResponse response = createRequestFactory().buildGetRequest(reportUrl).execute();
+    InputStream content = CompressionUtils.decompressIfGzipped(response.getContent());
+    try (CsvParser parser = new CsvParser(new InputStreamReader(content, UTF_8))) {
+      ReportRowPipeline.run(parser, schema, handler, maxBufferedRows);
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Streams a report file from Google Cloud Storage into a sink while it is being downloaded,
+   * without writing it to disk first. The sink receives the content of the file decompressed.
+   *
+   * <p>With more than one connection, the byte ranges following the one being written are
+   * requested in parallel and held in memory until their turn. At most {@code connections} ranges
+   * are held at a time, so a sink that falls behind pauses the download instead of the file being
+   * buffered in memory. If the server does not honor range requests, the file is streamed over a
+   * single connection instead.
+   *
+   * <p>The sink is committed once the whole file was written to it, but not closed, so the caller
+   * can close it whether or not the download succeeded.
+   *
+   * @param cloudStoragePath The URL of the report file in Google Cloud Storage.
+   * @param sink The sink to write the content of the file to.
+   * @param connections The maximum number of connections to download the file with.
+   * @throws Exception If an error occurs while downloading the file or writing it to the sink
+   */
+  public static void downloadToSink(String cloudStoragePath, ReportSink sink, int connections)
+      throws Exception {
     GenericUrl reportUrl = new GenericUrl(cloudStoragePath);
+    reportUrl.put("alt", "media");
+    HttpRequestFactory requestFactory = createRequestFactory();
 
-    // Download the report file.
-    try (OutputStream output = new FileOutputStream(outputFile)) {
-      MediaHttpDownloader downloader = new MediaHttpDownloader(HTTP_TRANSPORT, null);
-      downloader.download(reportUrl, output);
+    HttpResponse firstResponse =
+        executeRangeRequest(requestFactory, reportUrl, 0, RANGE_SIZE_IN_BYTES - 1);
+    InputStream content;
+    if (firstResponse.getStatusCode() == STATUS_CODE_RANGE_NOT_SATISFIABLE) {
+      // The file is empty.
+      firstResponse.disconnect();
+      sink.commit();
+      System.out.println("Download complete.");
+      return;
+    } else if (firstResponse.getStatusCode() == HttpStatusCodes.STATUS_CODE_OK) {
+      System.out.println(
+          "Server does not support range requests, downloading with a single connection.");
+      content = new ResponseInputStream(firstResponse);
+    } else {
+      content = new RangeInputStream(requestFactory, reportUrl, firstResponse, connections);
     }
 
+    try (InputStream decompressed = CompressionUtils.decompressIfGzipped(content)) {
+      byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+      int read;
+      while ((read = decompressed.read(buffer)) != -1) {
+        sink.write(buffer, 0, read);
+      }
+    } finally {
+      content.close();
+    }
+    sink.commit();
     System.out.println("Download complete.");
   }
+
+  /**
+   * Downloads a range of bytes of a file into the output file and commits it to the checkpoint,
+   * retrying the range if the connection fails.
+   */
+  private static void downloadRange(
+      HttpRequestFactory requestFactory,
+      GenericUrl url,
+      FileChannel channel,
+      DownloadCheckpoint checkpoint,
+      long firstByte,
+      long lastByte)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        HttpResponse response = executeRangeRequest(requestFactory, url, firstByte, lastByte);
+        try {
+          checkRangeResponse(
+              response,
+              firstByte,
+              lastByte,
+              checkpoint.getContentEncoding(),
+              checkpoint.getTotalBytes());
+          writeContent(response, channel, firstByte, lastByte - firstByte + 1);
+        } finally {
+          response.disconnect();
+        }
+        break;
+      } catch (IOException e) {
+        if (attempt >= MAX_RANGE_ATTEMPTS) {
+          throw e;
+        }
+        RequestMetrics.get().recordRetry(ApiEndpoint.GCS_DOWNLOAD);
+        System.out.printf(
+            "Retrying download of bytes %s-%s after error: %s%n", firstByte, lastByte, e);
+      }
+    }
+
+    // Only record the range once it is durably written.
+    channel.force(false);
+    checkpoint.commit(firstByte, lastByte);
+  }
+
+  /**
+   * Fetches a range of bytes of a file into memory, retrying the range if the connection fails.
+   *
+   * @param contentEncoding The content encoding of the first range, which all ranges must use.
+   * @param totalBytes The size of the file when the first range was received.
+   */
+  private static byte[] fetchRange(
+      HttpRequestFactory requestFactory,
+      GenericUrl url,
+      String contentEncoding,
+      long totalBytes,
+      long firstByte,
+      long lastByte)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        HttpResponse response = executeRangeRequest(requestFactory, url, firstByte, lastByte);
+        try {
+          checkRangeResponse(response, firstByte, lastByte, contentEncoding, totalBytes);
+          return readContent(response, (int) (lastByte - firstByte + 1));
+        } finally {
+          response.disconnect();
+        }
+      } catch (IOException e) {
+        // The range is no longer needed once the stream reading it is closed.
+        if (attempt >= MAX_RANGE_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        RequestMetrics.get().recordRetry(ApiEndpoint.GCS_DOWNLOAD);
+        System.out.printf(
+            "Retrying download of bytes %s-%s after error: %s%n", firstByte, lastByte, e);
+      }
+    }
+  }
+
+  /**
+   * Checks that a response holds the requested range of the same version of a file as the first
+   * range of the download.
+   */
+  private static void checkRangeResponse(
+      HttpResponse response,
+      long firstByte,
+      long lastByte,
+      String contentEncoding,
+      long totalBytes)
+      throws IOException {
+    if (response.getStatusCode() != STATUS_CODE_PARTIAL_CONTENT) {
+      throw new IOException(
+          String.format(
+              "Expected partial content for bytes %s-%s, got HTTP %s.",
+              firstByte, lastByte, response.getStatusCode()));
+    }
+    if (!Objects.equal(response.getContentEncoding(), contentEncoding)) {
+      throw new IOException(
+          String.format(
+              "Content encoding changed from %s to %s since the download started.",
+              contentEncoding, response.getContentEncoding()));
+    }
+    long responseTotalBytes = parseTotalBytes(response.getHeaders().getContentRange());
+    if (responseTotalBytes != totalBytes) {
+      throw new IOException(
+          String.format(
+              "File size changed from %s to %s bytes since the download started.",
+              totalBytes, responseTotalBytes));
+    }
+  }
+
+  /** Creates a factory for requests to Google Cloud Storage, which are recorded in metrics. */
+  private static HttpRequestFactory createRequestFactory() {
+    return SharedHttpTransport.get().createRequestFactory(RequestMetrics.get().instrument(null));
+  }
+
+  /**
+   * Returns an identifier for the object at a URL that does not change between requests, leaving
+   * out query parameters such as URL signatures.
+   */
+  private static String getSourceId(GenericUrl url) {
+    return url.buildAuthority() + url.getRawPath();
+  }
+
+  /**
+   * Executes a GET request for a range of bytes of a file.
+   *
+   * @return The response, which may be a partial response, the whole file if the server ignored
+   *     the range, or a range not satisfiable response if the file is empty.
+   */
+  private static HttpResponse executeRangeRequest(
+      HttpRequestFactory requestFactory, GenericUrl url, long firstByte, long lastByte)
+      throws IOException {
+    HttpRequest request = requestFactory.buildGetRequest(url);
+    request.getHeaders().setRange(String.format("bytes=%s-%s", firstByte, lastByte));
+    request.setThrowExceptionOnExecuteError(false);
+
+    // Ask for the file to be sent compressed when the server can, and keep the bytes as they are
+    // sent, since the range refers to the encoded bytes.
+    request.getHeaders().setAcceptEncoding("gzip");
+    request.setResponseReturnRawInputStream(true);
+
+    HttpResponse response = request.execute();
+    int statusCode = response.getStatusCode();
+    if (statusCode != HttpStatusCodes.STATUS_CODE_OK
+        && statusCode != STATUS_CODE_PARTIAL_CONTENT
+        && statusCode != STATUS_CODE_RANGE_NOT_SATISFIABLE) {
+      HttpResponseException exception = new HttpResponseException(response);
+      response.disconnect();
+      throw exception;
+    }
+    return response;
+  }
+
+  /**
+   * Parses the total size of a file from the value of a Content-Range header, such as {@code
+   * bytes 0-1023/4096}.
+   */
+  private static long parseTotalBytes(String contentRange) throws IOException {
+    int separator = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+    if (separator < 0 || contentRange.endsWith("*")) {
+      throw new IOException("Unable to determine file size from Content-Range: " + contentRange);
+    }
+    return Long.parseLong(contentRange.substring(separator + 1).trim());
+  }
+
+  /**
+   * Writes the content of a response into a file channel starting at the given position.
+   *
+   * @param expectedBytes The number of bytes the response must contain, or -1 if unknown.
+   */
+  private static void writeContent(
+      HttpResponse response, FileChannel channel, long position, long expectedBytes)
+      throws IOException {
+    long written = 0;
+    long startNanos = System.nanoTime();
+    byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+    try (InputStream content = response.getContent()) {
+      int read;
+      while ((read = content.read(buffer)) != -1) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+        while (byteBuffer.hasRemaining()) {
+          written += channel.write(byteBuffer, position + written);
+        }
+      }
+    } finally {
+      RequestMetrics.get()
+          .recordTransferTime(ApiEndpoint.GCS_DOWNLOAD, System.nanoTime() - startNanos);
+    }
+
+    if (expectedBytes >= 0 && written != expectedBytes) {
+      throw new IOException(
+          String.format(
+              "Expected %s bytes at offset %s, but received %s.",
+              expectedBytes, position, written));
+    }
+  }
+
+  /** Reads the content of a response, which must contain exactly the given number of bytes. */
+  private static byte[] readContent(HttpResponse response, int expectedBytes) throws IOException {
+    byte[] bytes = new byte[expectedBytes];
+    long startNanos = System.nanoTime();
+    try (InputStream content = response.getContent()) {
+      int read = ByteStreams.read(content, bytes, 0, expectedBytes);
+      if (read != expectedBytes || content.read() != -1) {
+        throw new IOException(
+            String.format(
+                "Expected %s bytes, but received %s.",
+                expectedBytes, read != expectedBytes ? read : "more"));
+      }
+    } finally {
+      RequestMetrics.get()
+          .recordTransferTime(ApiEndpoint.GCS_DOWNLOAD, System.nanoTime() - startNanos);
+    }
+    return bytes;
+  }
+
+  /** Runs tasks on a pool of the given size, failing fast if any of them fails. */
+  private static void runAll(List<Callable<Void>> tasks, int threads) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (Callable<Void> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+      throw e;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Reads the content of a response, disconnecting it when closed. */
+  private static class ResponseInputStream extends FilterInputStream {
+    private final HttpResponse response;
+
+    ResponseInputStream(HttpResponse response) throws IOException {
+      super(response.getContent());
+      this.response = response;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        response.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Reads a file as consecutive byte ranges. The first range is read from the response it was
+   * received in, and the following ranges are requested in parallel ahead of the range being read,
+   * at most as many as there are connections.
+   */
+  private static class RangeInputStream extends InputStream {
+    private final HttpRequestFactory requestFactory;
+    private final GenericUrl url;
+    private final String contentEncoding;
+    private final long totalBytes;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> prefetchedRanges = new ArrayDeque<Future<byte[]>>();
+
+    /** The first byte of the next range to request. */
+    private long nextRangeStart;
+
+    /** The range being read. */
+    private InputStream current;
+
+    /** The number of bytes of the range being read that are still expected. */
+    private long currentRemaining;
+
+    RangeInputStream(
+        HttpRequestFactory requestFactory,
+        GenericUrl url,
+        HttpResponse firstResponse,
+        int connections)
+        throws IOException {
+      this.requestFactory = requestFactory;
+      this.url = url;
+      try {
+        contentEncoding = firstResponse.getContentEncoding();
+        totalBytes = parseTotalBytes(firstResponse.getHeaders().getContentRange());
+        current = new ResponseInputStream(firstResponse);
+      } catch (IOException e) {
+        firstResponse.disconnect();
+        throw e;
+      }
+      currentRemaining = Math.min(RANGE_SIZE_IN_BYTES, totalBytes);
+      nextRangeStart = currentRemaining;
+      executor =
+          Executors.newFixedThreadPool(
+              connections,
+              new ThreadFactoryBuilder().setNameFormat("report-range-%d").setDaemon(true).build());
+      for (int i = 0; i < connections; i++) {
+        prefetchNextRange();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (current != null) {
+        int read = current.read(b, off, (int) Math.min(len, Math.max(currentRemaining, 1)));
+        if (read > 0) {
+          currentRemaining -= read;
+          if (currentRemaining < 0) {
+            throw new IOException("Received more bytes than requested for a range.");
+          }
+          return read;
+        }
+        if (currentRemaining != 0) {
+          throw new IOException(
+              String.format("Range ended with %s bytes missing.", currentRemaining));
+        }
+        current.close();
+        current = null;
+        Future<byte[]> range = prefetchedRanges.poll();
+        if (range != null) {
+          byte[] bytes = getRange(range);
+          current = new ByteArrayInputStream(bytes);
+          currentRemaining = bytes.length;
+          prefetchNextRange();
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+      executor.shutdownNow();
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+    }
+
+    /** Requests the next range of the file in the background, if there is one. */
+    private void prefetchNextRange() {
+      if (nextRangeStart >= totalBytes) {
+        return;
+      }
+      final long firstByte = nextRangeStart;
+      final long lastByte = Math.min(firstByte + RANGE_SIZE_IN_BYTES, totalBytes) - 1;
+      nextRangeStart = lastByte + 1;
+      prefetchedRanges.add(
+          executor.submit(
+              new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                  return fetchRange(
+                      requestFactory, url, contentEncoding, totalBytes, firstByte, lastByte);
+                }
+              }));
+    }
+
+    /** Waits for a range requested in the background. */
+    private static byte[] getRange(Future<byte[]> range) throws IOException {
+      try {
+        return range.get();
+      } catch (ExecutionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+        throw new IOException("Range download failed.", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while downloading a range.", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,120 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link BackOff} that schedules report status checks around the time the report is expected to
+ * finish, based on how long similar reports took to generate.
+ *
+ * <p>Given the past durations, the report is expected to finish between a low estimate (the 10th
+ * percentile) and a high estimate (the 90th percentile). The first check waits until the low
+ * estimate. Within the expected window, checks are spread evenly so that a finished report is
+ * noticed soon after it finishes. Once the high estimate has passed, the interval grows
+ * exponentially as it would without any history.
+ */
+public class ExpectedCompletionBackOff implements BackOff {
+
+  /** Number of checks spread across the expected completion window. */
+  private static final int CHECKS_PER_WINDOW = 4;
+
+  private final int maxIntervalMillis;
+  private final int maxElapsedTimeMillis;
+  private final long lowEstimateMillis;
+  private final long highEstimateMillis;
+  private final long windowIntervalMillis;
+  private long startMillis;
+  private ExponentialBackOff overdueBackOff;
+
+  /**
+   * Creates a backoff.
+   *
+   * @param durations The generation durations of similar reports, in milliseconds. Must not be
+   *     empty.
+   * @param initialIntervalMillis Minimum amount of time between checks in the expected window.
+   * @param maxIntervalMillis Maximum amount of time between checks.
+   * @param maxElapsedTimeMillis Maximum amount of time to spend checking.
+   */
+  public ExpectedCompletionBackOff(
+      List<Long> durations,
+      int initialIntervalMillis,
+      int maxIntervalMillis,
+      int maxElapsedTimeMillis) {
+    if (durations.isEmpty()) {
+      throw new IllegalArgumentException("At least one duration is required.");
+    }
+    List<Long> sorted = new ArrayList<Long>(durations);
+    Collections.sort(sorted);
+
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.maxElapsedTimeMillis = maxElapsedTimeMillis;
+    this.lowEstimateMillis = sorted.get((int) Math.floor(0.1 * (sorted.size() - 1)));
+    this.highEstimateMillis = sorted.get((int) Math.ceil(0.9 * (sorted.size() - 1)));
+    long windowIntervalMillis =
+        (highEstimateMillis - lowEstimateMillis) / CHECKS_PER_WINDOW;
+    this.windowIntervalMillis =
+        Math.min(Math.max(windowIntervalMillis, initialIntervalMillis), maxIntervalMillis);
+    reset();
+  }
+
+  /** Returns the earliest time the report is expected to finish, in milliseconds. */
+  public long getLowEstimateMillis() {
+    return lowEstimateMillis;
+  }
+
+  /** Returns the latest time the report is expected to finish, in milliseconds. */
+  public long getHighEstimateMillis() {
+    return highEstimateMillis;
+  }
+
+  @Override
+  public void reset() {
+    startMillis = System.currentTimeMillis();
+    overdueBackOff = null;
+  }
+
+  @Override
+  public long nextBackOffMillis() throws IOException {
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
+    if (elapsedMillis >= maxElapsedTimeMillis) {
+      return STOP;
+    }
+
+    if (elapsedMillis < lowEstimateMillis) {
+      // Wait until the report may have finished.
+      return Math.min(lowEstimateMillis - elapsedMillis, maxIntervalMillis);
+    }
+    if (elapsedMillis < highEstimateMillis) {
+      return windowIntervalMillis;
+    }
+
+    // The report is taking longer than usual, so back off exponentially from here on.
+    if (overdueBackOff == null) {
+      overdueBackOff =
+          new ExponentialBackOff.Builder()
+              .setInitialIntervalMillis((int) windowIntervalMillis)
+              .setMaxIntervalMillis(maxIntervalMillis)
+              .setMaxElapsedTimeMillis((int) (maxElapsedTimeMillis - elapsedMillis))
+              .build();
+    }
+    return overdueBackOff.nextBackOffMillis();
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.util.Arrays;
+
+/**
+ * Assigns consecutive indexes to long keys, in the order the keys are first added.
+ *
+ * <p>Keys are stored in a primitive array and located with an open-addressing hash table using
+ * linear probing, so neither adding nor looking up a key allocates objects.
+ */
+final class LongIndexMap {
+
+  /** Returned by {@link #indexOf} for a key that was never added. */
+  static final int ABSENT = -1;
+
+  private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+  /** The keys, by index. */
+  private long[] keys;
+
+  /** The hash table, holding the index of the key in each slot plus one, or 0 if empty. */
+  private int[] slots;
+
+  private int size;
+  private int shift;
+
+  /** Creates a map with room for the given number of keys before it needs to grow. */
+  LongIndexMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+    keys = new long[capacity / 2];
+    slots = new int[capacity];
+    shift = Long.numberOfLeadingZeros(capacity - 1);
+  }
+
+  /** Returns the number of keys. */
+  int size() {
+    return size;
+  }
+
+  /** Returns the key at an index. */
+  long keyAt(int index) {
+    return keys[index];
+  }
+
+  /** Returns the index of a key, or {@link #ABSENT}. */
+  int indexOf(long key) {
+    int mask = slots.length - 1;
+    for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return ABSENT;
+      }
+      if (keys[entry - 1] == key) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /** Returns the index of a key, adding it with the next index if it was never added. */
+  int add(long key) {
+    int mask = slots.length - 1;
+    int slot = hash(key);
+    for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+      if (keys[slots[slot] - 1] == key) {
+        return slots[slot] - 1;
+      }
+    }
+
+    int index = size++;
+    keys[index] = key;
+    slots[slot] = index + 1;
+    if (size == keys.length) {
+      // Keep the table at most half full so probe sequences stay short.
+      grow();
+    }
+    return index;
+  }
+
+  private int hash(long key) {
+    return (int) ((key * GOLDEN_RATIO) >>> shift);
+  }
+
+  private void grow() {
+    keys = Arrays.copyOf(keys, keys.length * 2);
+    slots = new int[slots.length * 2];
+    shift--;
+    int mask = slots.length - 1;
+    for (int index = 0; index < size; index++) {
+      int slot = hash(keys[index]);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = index + 1;
+    }
+  }
+}
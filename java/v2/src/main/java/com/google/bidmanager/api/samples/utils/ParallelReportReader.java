@@ -0,0 +1,393 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads the rows of a downloaded CSV report on all cores, by mapping the report file into memory
+ * and parsing parts of it in parallel.
+ *
+ * <p>The file is read in three steps:
+ *
+ * <ol>
+ *   <li>The file is divided into chunks of roughly equal size, which are scanned in parallel for
+ *       the positions of their first line break and first blank line. As a line break inside a
+ *       quoted field does not end a row, and whether a chunk starts inside quotes is only known
+ *       once the chunks before it are scanned, both positions are recorded for a chunk starting
+ *       inside quotes and for one starting outside of them.
+ *   <li>The number of quotes of the chunks tells which of the two applies to every chunk, which
+ *       gives the row boundaries the chunks are parsed from, and the first blank line, which
+ *       separates the rows of a report from its metadata.
+ *   <li>The chunks are parsed in parallel with fork-join, and their rows are handed to a {@link
+ *       ConcurrentReportRowHandler} on the threads parsing them.
+ * </ol>
+ *
+ * <p>Fields are parsed the same way as by {@link CsvParser}. Gzip compressed files cannot be mapped
+ * into memory, so they are parsed with {@link ReportRowPipeline} instead.
+ */
+public final class ParallelReportReader {
+
+  /** Largest chunk of the file parsed by a single task. */
+  private static final long MAX_CHUNK_SIZE_IN_BYTES = 64 * 1024 * 1024;
+
+  /** Smallest chunk of the file parsed by a single task, so small files are not over-split. */
+  private static final long MIN_CHUNK_SIZE_IN_BYTES = 1024 * 1024;
+
+  /** Number of chunks per thread, so threads that finish early can take over remaining chunks. */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  /** Maximum number of parsed rows waiting to be handled when reading a compressed file. */
+  private static final int MAX_BUFFERED_ROWS = 1024;
+
+  private static final String BYTE_ORDER_MARK = "\uFEFF";
+
+  /** Marks a position that was not found in a chunk. */
+  private static final long NOT_FOUND = -1;
+
+  private ParallelReportReader() {}
+
+  /**
+   * Reads a report using one thread per core.
+   *
+   * @see #read(String, ReportSchema, ConcurrentReportRowHandler, int)
+   */
+  public static void read(String file, ReportSchema schema, ConcurrentReportRowHandler handler)
+      throws Exception {
+    read(file, schema, handler, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Reads a report and hands its rows to a handler.
+   *
+   * <p>Reading stops at the first blank line, which separates the rows of a report from its
+   * metadata. If a schema is given, the summary row holding report totals is skipped.
+   *
+   * @param file The path of the CSV report, as written by {@link
+   *     DownloadUtils#downloadFileFromCloudStorage}.
+   * @param schema The schema of the report, or {@code null} to hand over every row.
+   * @param handler The handler to receive the rows.
+   * @param parallelism The number of threads parsing the report.
+   * @throws Exception If the report cannot be read or the handler fails.
+   */
+  public static void read(
+      String file, ReportSchema schema, ConcurrentReportRowHandler handler, int parallelism)
+      throws Exception {
+    if (CompressionUtils.isGzipped(file)) {
+      try (CsvParser parser = new CsvParser(CompressionUtils.newBufferedReader(file))) {
+        ReportRowPipeline.run(parser, schema, handler, MAX_BUFFERED_ROWS);
+      }
+      return;
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      long size = channel.size();
+      RecordParser headerParser = new RecordParser();
+      ByteBuffer headerBuffer =
+          channel.map(MapMode.READ_ONLY, 0, Math.min(size, MAX_CHUNK_SIZE_IN_BYTES));
+      String[] header = headerParser.readRecord(headerBuffer);
+      if (header == null || header == CsvParser.BLANK_LINE) {
+        throw new IOException("Report has no header row.");
+      }
+      if (header[0].startsWith(BYTE_ORDER_MARK)) {
+        header[0] = header[0].substring(BYTE_ORDER_MARK.length());
+      }
+      long headerEnd = headerBuffer.position();
+
+      long chunkSize =
+          Math.max(
+              MIN_CHUNK_SIZE_IN_BYTES,
+              Math.min(
+                  MAX_CHUNK_SIZE_IN_BYTES,
+                  divideRoundingUp(size, (long) parallelism * CHUNKS_PER_THREAD)));
+      ChunkScan[] scans = new ChunkScan[(int) Math.max(1, divideRoundingUp(size, chunkSize))];
+      for (int i = 0; i < scans.length; i++) {
+        scans[i] = new ChunkScan(i * chunkSize, Math.min(size, (i + 1) * chunkSize));
+      }
+      invoke(pool, new ScanTask(channel, scans, 0, scans.length));
+
+      // Resolve whether every chunk starts inside quotes, and find the row boundaries.
+      List<Long> boundaries = new ArrayList<Long>();
+      boundaries.add(headerEnd);
+      long dataEnd = size;
+      boolean inQuotes = false;
+      for (int i = 0; i < scans.length && dataEnd == size; i++) {
+        int hypothesis = inQuotes ? 1 : 0;
+        long rowStart = scans[i].rowStarts[hypothesis];
+        if (i > 0 && rowStart > boundaries.get(boundaries.size() - 1)) {
+          boundaries.add(rowStart);
+        }
+        if (scans[i].blankLines[hypothesis] != NOT_FOUND) {
+          dataEnd = scans[i].blankLines[hypothesis];
+        }
+        inQuotes ^= scans[i].oddQuotes;
+      }
+      while (boundaries.size() > 1 && boundaries.get(boundaries.size() - 1) >= dataEnd) {
+        boundaries.remove(boundaries.size() - 1);
+      }
+      boundaries.add(dataEnd);
+
+      handler.handleHeader(header);
+      invoke(
+          pool, new ParseTask(channel, schema, handler, boundaries, 0, boundaries.size() - 1));
+      handler.handleEnd();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static long divideRoundingUp(long dividend, long divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  /** Runs a task in the pool, rethrowing the error raised by the task if it fails. */
+  private static void invoke(ForkJoinPool pool, RecursiveAction task) throws Exception {
+    try {
+      pool.invoke(task);
+    } catch (UncheckedExecutionException e) {
+      // Tasks wrap their errors, and the pool may wrap them again when rethrowing them.
+      Throwable cause = e;
+      while (cause instanceof UncheckedExecutionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      Throwables.throwIfInstanceOf(cause, Exception.class);
+      throw e;
+    }
+  }
+
+  /** Maps a part of the file into memory. */
+  private static MappedByteBuffer map(FileChannel channel, long start, long end)
+      throws IOException {
+    if (end - start > Integer.MAX_VALUE) {
+      throw new IOException(
+          String.format("Report rows between bytes %s and %s are too long to map.", start, end));
+    }
+    return channel.map(MapMode.READ_ONLY, start, end - start);
+  }
+
+  /** The positions found in a chunk, for a chunk starting outside and inside of quotes. */
+  private static final class ChunkScan {
+    final long start;
+    final long end;
+
+    /** Position of the row following the first line break, by whether the chunk is in quotes. */
+    final long[] rowStarts = {NOT_FOUND, NOT_FOUND};
+
+    /** Position of the first blank line, by whether the chunk starts in quotes. */
+    final long[] blankLines = {NOT_FOUND, NOT_FOUND};
+
+    /** Whether the chunk has an odd number of quotes, so the next one starts in other state. */
+    boolean oddQuotes;
+
+    ChunkScan(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    void scan(FileChannel channel) throws IOException {
+      // Map two more bytes to tell whether the last line break of the chunk starts a blank line.
+      long size = channel.size();
+      ByteBuffer buffer = map(channel, start, Math.min(size, end + 2));
+      int length = (int) (end - start);
+      boolean odd = false;
+      for (int i = 0; i < length; i++) {
+        byte b = buffer.get(i);
+        if (b == '"') {
+          odd = !odd;
+        } else if (b == '\n') {
+          // The line break ends a row only if the chunk started in quotes exactly when the
+          // number of quotes before it in the chunk is odd.
+          int hypothesis = odd ? 1 : 0;
+          if (rowStarts[hypothesis] == NOT_FOUND) {
+            rowStarts[hypothesis] = start + i + 1;
+          }
+          if (blankLines[hypothesis] == NOT_FOUND
+              && i + 1 < buffer.limit()
+              && (buffer.get(i + 1) == '\n' || buffer.get(i + 1) == '\r')) {
+            blankLines[hypothesis] = start + i + 1;
+          }
+        }
+      }
+      oddQuotes = odd;
+    }
+  }
+
+  /** Scans a range of chunks, splitting it in two until a single chunk is left. */
+  private static final class ScanTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final ChunkScan[] scans;
+    private final int from;
+    private final int to;
+
+    ScanTask(FileChannel channel, ChunkScan[] scans, int from, int to) {
+      this.channel = channel;
+      this.scans = scans;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new ScanTask(channel, scans, from, middle), new ScanTask(channel, scans, middle, to));
+        return;
+      }
+      try {
+        scans[from].scan(channel);
+      } catch (IOException e) {
+        throw new UncheckedExecutionException(e);
+      }
+    }
+  }
+
+  /** Parses the rows between a range of boundaries, splitting it in two until one part is left. */
+  private static final class ParseTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final ReportSchema schema;
+    private final ConcurrentReportRowHandler handler;
+    private final List<Long> boundaries;
+    private final int from;
+    private final int to;
+
+    ParseTask(
+        FileChannel channel,
+        ReportSchema schema,
+        ConcurrentReportRowHandler handler,
+        List<Long> boundaries,
+        int from,
+        int to) {
+      this.channel = channel;
+      this.schema = schema;
+      this.handler = handler;
+      this.boundaries = boundaries;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new ParseTask(channel, schema, handler, boundaries, from, middle),
+            new ParseTask(channel, schema, handler, boundaries, middle, to));
+        return;
+      }
+      try {
+        ByteBuffer buffer = map(channel, boundaries.get(from), boundaries.get(to));
+        RecordParser parser = new RecordParser();
+        String[] row;
+        while ((row = parser.readRecord(buffer)) != null) {
+          if (row != CsvParser.BLANK_LINE && (schema == null || !schema.isSummaryRow(row))) {
+            handler.handleRow(row);
+          }
+        }
+      } catch (Exception e) {
+        throw new UncheckedExecutionException(e);
+      }
+    }
+  }
+
+  /** Parses records from UTF-8 bytes, the same way {@link CsvParser} parses them from text. */
+  private static final class RecordParser {
+    private byte[] field = new byte[256];
+    private int fieldLength;
+    private final List<String> record = new ArrayList<String>();
+
+    /**
+     * Reads the next record from the position of a buffer.
+     *
+     * @return The fields of the record, {@link CsvParser#BLANK_LINE} if the line is blank, or
+     *     {@code null} at the end of the buffer.
+     */
+    String[] readRecord(ByteBuffer buffer) {
+      if (!buffer.hasRemaining()) {
+        return null;
+      }
+      record.clear();
+      fieldLength = 0;
+      boolean inQuotes = false;
+      boolean quoted = false;
+
+      while (buffer.hasRemaining()) {
+        byte b = buffer.get();
+        if (inQuotes) {
+          if (b == '"') {
+            if (buffer.hasRemaining() && buffer.get(buffer.position()) == '"') {
+              buffer.get();
+              append(b);
+            } else {
+              inQuotes = false;
+            }
+          } else {
+            append(b);
+          }
+        } else if (b == '"') {
+          inQuotes = true;
+          quoted = true;
+        } else if (b == ',') {
+          endField();
+        } else if (b == '\n' || b == '\r') {
+          if (b == '\r' && buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+            buffer.get();
+          }
+          break;
+        } else {
+          append(b);
+        }
+      }
+
+      if (record.isEmpty() && fieldLength == 0 && !quoted) {
+        return CsvParser.BLANK_LINE;
+      }
+      endField();
+      return record.toArray(new String[record.size()]);
+    }
+
+    private void append(byte b) {
+      if (fieldLength == field.length) {
+        field = Arrays.copyOf(field, field.length * 2);
+      }
+      field[fieldLength++] = b;
+    }
+
+    private void endField() {
+      record.add(new String(field, 0, fieldLength, UTF_8));
+      fieldLength = 0;
+    }
+  }
+}
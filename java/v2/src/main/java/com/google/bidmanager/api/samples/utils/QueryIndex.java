@@ -0,0 +1,221 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
+import com.google.api.services.doubleclickbidmanager.model.DataRange;
+import com.google.api.services.doubleclickbidmanager.model.Date;
+import com.google.api.services.doubleclickbidmanager.model.FilterPair;
+import com.google.api.services.doubleclickbidmanager.model.ListQueriesResponse;
+import com.google.api.services.doubleclickbidmanager.model.Parameters;
+import com.google.api.services.doubleclickbidmanager.model.Query;
+import com.google.api.services.doubleclickbidmanager.model.QueryMetadata;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A local index of the existing queries by the fingerprint of their definition, so a query can be
+ * reused instead of creating another query with the same definition.
+ *
+ * <p>The fingerprint of a query is made of its report type, filters, group-by dimensions, metrics,
+ * options, date range and format. The title and schedule of a query are not part of it. The index
+ * is filled by listing all queries, and is kept in a properties file that is rewritten atomically
+ * whenever it changes.
+ */
+public class QueryIndex {
+
+  /** Suggested location of the index file. */
+  public static final String DEFAULT_INDEX_FILE =
+      System.getProperty("user.home") + "/.store/dbm_sample/query_index.properties";
+
+  /** Value returned when the index was never filled by listing the queries. */
+  public static final long NEVER = -1;
+
+  /** Number of queries requested per page when listing the queries. */
+  private static final int QUERIES_PAGE_SIZE = 100;
+
+  private static final String QUERY_PREFIX = "query.";
+  private static final String REFRESH_TIME_KEY = "refreshTimeMillis";
+
+  private final Path indexFile;
+  private final Properties entries = new Properties();
+
+  /**
+   * Opens an index file, which is created when the index is first updated.
+   *
+   * @param indexFile The path of the index file.
+   */
+  public QueryIndex(String indexFile) throws IOException {
+    this.indexFile = Paths.get(indexFile);
+    if (Files.exists(this.indexFile)) {
+      try (Reader reader = Files.newBufferedReader(this.indexFile, UTF_8)) {
+        entries.load(reader);
+      }
+    }
+  }
+
+  /**
+   * Returns the fingerprint of the definition of a query.
+   *
+   * <p>The order of the filters does not change the fingerprint. The order of the group-by
+   * dimensions and metrics does, as it sets the order of the columns of the report.
+   *
+   * @param query A query, as built to be created or as returned by the API.
+   */
+  public static String getFingerprint(Query query) {
+    Parameters parameters = query.getParams() != null ? query.getParams() : new Parameters();
+    QueryMetadata metadata =
+        query.getMetadata() != null ? query.getMetadata() : new QueryMetadata();
+    DataRange dataRange =
+        metadata.getDataRange() != null ? metadata.getDataRange() : new DataRange();
+
+    List<String> filters = new ArrayList<String>();
+    if (parameters.getFilters() != null) {
+      for (FilterPair filter : parameters.getFilters()) {
+        filters.add(filter.getType() + "=" + filter.getValue());
+      }
+    }
+    Collections.sort(filters);
+
+    String definition =
+        String.format(
+            "type=%s;filters=%s;groupBys=%s;metrics=%s;onlyTargetedUserLists=%s;range=%s;"
+                + "start=%s;end=%s;format=%s",
+            parameters.getType(),
+            Joiner.on(',').join(filters),
+            joinOrEmpty(parameters.getGroupBys()),
+            joinOrEmpty(parameters.getMetrics()),
+            parameters.getOptions() != null
+                && Boolean.TRUE.equals(parameters.getOptions().getIncludeOnlyTargetedUserLists()),
+            dataRange.getRange(),
+            formatDate(dataRange.getCustomStartDate()),
+            formatDate(dataRange.getCustomEndDate()),
+            metadata.getFormat());
+    return Hashing.sha256().hashString(definition, UTF_8).toString().substring(0, 16);
+  }
+
+  /** Returns the ID of the query with a fingerprint, or {@code null} if none is known. */
+  public synchronized Long findQueryId(String fingerprint) {
+    String value = entries.getProperty(QUERY_PREFIX + fingerprint);
+    return value == null ? null : Long.valueOf(value);
+  }
+
+  /** Returns when the index was last filled by listing the queries, or {@link #NEVER}. */
+  public synchronized long getRefreshTimeMillis() {
+    String value = entries.getProperty(REFRESH_TIME_KEY);
+    return value == null ? NEVER : Long.parseLong(value);
+  }
+
+  /**
+   * Records the ID of the query with a fingerprint.
+   *
+   * @param fingerprint The fingerprint returned by {@link #getFingerprint}.
+   * @param queryId The ID of the query.
+   */
+  public synchronized void put(String fingerprint, long queryId) throws IOException {
+    entries.setProperty(QUERY_PREFIX + fingerprint, String.valueOf(queryId));
+    save();
+  }
+
+  /** Forgets the query with a fingerprint, for example once it was found to be deleted. */
+  public synchronized void remove(String fingerprint) throws IOException {
+    if (entries.remove(QUERY_PREFIX + fingerprint) != null) {
+      save();
+    }
+  }
+
+  /**
+   * Replaces the content of the index with the queries currently existing, listed from the API.
+   * When several queries have the same fingerprint, the newest one is kept.
+   *
+   * @param service The Bid Manager API service object.
+   */
+  public synchronized void refresh(DoubleClickBidManager service) throws IOException {
+    long refreshTimeMillis = System.currentTimeMillis();
+    entries.clear();
+
+    int queryCount = 0;
+    String pageToken = null;
+    do {
+      ListQueriesResponse response =
+          service
+              .queries()
+              .list()
+              .setPageSize(QUERIES_PAGE_SIZE)
+              .setPageToken(pageToken)
+              .execute();
+      if (response.getQueries() != null) {
+        for (Query query : response.getQueries()) {
+          String fingerprint = getFingerprint(query);
+          Long knownQueryId = findQueryId(fingerprint);
+          if (knownQueryId == null || knownQueryId < query.getQueryId()) {
+            entries.setProperty(QUERY_PREFIX + fingerprint, String.valueOf(query.getQueryId()));
+          }
+          queryCount++;
+        }
+      }
+      pageToken = response.getNextPageToken();
+    } while (!Strings.isNullOrEmpty(pageToken));
+
+    entries.setProperty(REFRESH_TIME_KEY, String.valueOf(refreshTimeMillis));
+    save();
+    System.out.printf("Indexed the definitions of %s existing queries.%n", queryCount);
+  }
+
+  private static String joinOrEmpty(List<String> values) {
+    return values == null ? "" : Joiner.on(',').join(values);
+  }
+
+  private static String formatDate(Date date) {
+    if (date == null) {
+      return "";
+    }
+    return String.format("%04d-%02d-%02d", date.getYear(), date.getMonth(), date.getDay());
+  }
+
+  private void save() throws IOException {
+    Path parent = indexFile.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+
+    // Write to a temporary file first so a partially written index is never read.
+    Path temporaryFile = Files.createTempFile(parent, indexFile.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temporaryFile, UTF_8)) {
+        entries.store(writer, "Query ID, by fingerprint of the query definition.");
+      }
+      Files.move(
+          temporaryFile,
+          indexFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.googleapis.util.Utils;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A manifest of query jobs to be processed in bulk, loaded from a JSON file of the form:
+ *
+ * <pre>
+ * {
+ *   "jobs": [
+ *     {
+ *       "title": "Advertiser 1 report",
+ *       "advertiserIdFilter": "1234567",
+ *       "campaignIdFilters": ["111", "222"],
+ *       "outputFile": "/tmp/advertiser_1.csv"
+ *     }
+ *   ]
+ * }
+ * </pre>
+ */
+public class QueryJobManifest extends GenericJson {
+
+  /** A single query job, mirroring the arguments of the CreateAndRunQuery example. */
+  public static class QueryJob extends GenericJson {
+    @Key public String title;
+
+    @Key public String advertiserIdFilter;
+
+    @Key public List<String> campaignIdFilters;
+
+    @Key public String outputFile;
+  }
+
+  @Key private List<QueryJob> jobs;
+
+  /** Returns the jobs in this manifest, in the order they were listed. */
+  public List<QueryJob> getJobs() {
+    return jobs == null ? new ArrayList<QueryJob>() : jobs;
+  }
+
+  /**
+   * Loads a manifest from a JSON file.
+   *
+   * @param manifestFile The path to the manifest file.
+   * @return The parsed {@link QueryJobManifest}.
+   * @throws IOException If the file cannot be read or a job is missing a required field.
+   */
+  public static QueryJobManifest load(String manifestFile) throws IOException {
+    QueryJobManifest manifest;
+    try (Reader reader = Files.newBufferedReader(Paths.get(manifestFile), UTF_8)) {
+      manifest =
+          Utils.getDefaultJsonFactory()
+              .createJsonParser(reader)
+              .parseAndClose(QueryJobManifest.class);
+    }
+
+    // Verify that every job has the values required to create and download a query.
+    for (int i = 0; i < manifest.getJobs().size(); i++) {
+      QueryJob job = manifest.getJobs().get(i);
+      if (job.title == null || job.advertiserIdFilter == null || job.outputFile == null) {
+        throw new IOException(
+            String.format(
+                "Job %s in manifest %s must set title, advertiserIdFilter and outputFile.",
+                i, manifestFile));
+      }
+    }
+
+    return manifest;
+  }
+}
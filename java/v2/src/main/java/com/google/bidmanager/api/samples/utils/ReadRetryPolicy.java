@@ -0,0 +1,146 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler.BackOffRequired;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ExponentialBackOff;
+import java.io.IOException;
+
+/**
+ * Retries the idempotent read requests of the samples, such as {@code reports.get} and {@code
+ * reports.list}, when they fail with a transient error, so a single failed status check or listing
+ * does not abort a whole job.
+ *
+ * <p>GET requests are retried with exponential backoff when the server responds with a 5xx or 429
+ * status code, or when no response is received at all. Requests that change state, such as {@code
+ * queries.create} and {@code queries.run}, are never retried, as they may have taken effect.
+ */
+public final class ReadRetryPolicy {
+
+  /** Default maximum number of times a read request is retried. */
+  public static final int DEFAULT_MAX_RETRIES = 5;
+
+  private static final int INITIAL_INTERVAL_IN_MILLIS = 500;
+  private static final int MAX_INTERVAL_IN_MILLIS = 30_000;
+  private static final int MAX_ELAPSED_TIME_IN_MILLIS = 2 * 60_000;
+
+  private static final ReadRetryPolicy INSTANCE = new ReadRetryPolicy();
+
+  private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+  private ReadRetryPolicy() {}
+
+  /** Returns the policy shared by all requests of the process. */
+  public static ReadRetryPolicy get() {
+    return INSTANCE;
+  }
+
+  /** Sets the maximum number of times a read request is retried, or 0 to never retry them. */
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * Wraps a request initializer so the read requests it initializes are retried on transient
+   * errors.
+   *
+   * @param requestInitializer The initializer to wrap, such as a credential, or {@code null}. Its
+   *     handlers, for example to refresh expired access tokens, are given the first chance to
+   *     handle an error.
+   * @return An initializer that applies {@code requestInitializer} and then adds retries.
+   */
+  public HttpRequestInitializer retryReads(final HttpRequestInitializer requestInitializer) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (requestInitializer != null) {
+          requestInitializer.initialize(request);
+        }
+        int currentMaxRetries = maxRetries;
+        if (currentMaxRetries <= 0) {
+          return;
+        }
+        request.setNumberOfRetries(currentMaxRetries);
+
+        // Every request has its own backoff, as backoffs keep track of the attempts made.
+        ExponentialBackOff backOff =
+            new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(INITIAL_INTERVAL_IN_MILLIS)
+                .setMaxIntervalMillis(MAX_INTERVAL_IN_MILLIS)
+                .setMaxElapsedTimeMillis(MAX_ELAPSED_TIME_IN_MILLIS)
+                .build();
+        final HttpUnsuccessfulResponseHandler responseHandler =
+            request.getUnsuccessfulResponseHandler();
+        final HttpBackOffUnsuccessfulResponseHandler backOffResponseHandler =
+            new HttpBackOffUnsuccessfulResponseHandler(backOff)
+                .setBackOffRequired(
+                    new BackOffRequired() {
+                      @Override
+                      public boolean isRequired(HttpResponse response) {
+                        int statusCode = response.getStatusCode();
+                        return statusCode / 100 == 5 || statusCode == 429;
+                      }
+                    });
+        request.setUnsuccessfulResponseHandler(
+            new HttpUnsuccessfulResponseHandler() {
+              @Override
+              public boolean handleResponse(
+                  HttpRequest request, HttpResponse response, boolean supportsRetry)
+                  throws IOException {
+                if (responseHandler != null
+                    && responseHandler.handleResponse(request, response, supportsRetry)) {
+                  return true;
+                }
+                return isRead(request)
+                    && backOffResponseHandler.handleResponse(request, response, supportsRetry);
+              }
+            });
+
+        final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+        final HttpBackOffIOExceptionHandler backOffIOExceptionHandler =
+            new HttpBackOffIOExceptionHandler(backOff);
+        request.setIOExceptionHandler(
+            new HttpIOExceptionHandler() {
+              @Override
+              public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+                  throws IOException {
+                if (ioExceptionHandler != null
+                    && ioExceptionHandler.handleIOException(request, supportsRetry)) {
+                  return true;
+                }
+                return isRead(request)
+                    && backOffIOExceptionHandler.handleIOException(request, supportsRetry);
+              }
+            });
+      }
+    };
+  }
+
+  /**
+   * Returns whether a request only reads data. The method of a request is only set after it is
+   * initialized, so it is checked when the request fails.
+   */
+  private static boolean isRead(HttpRequest request) {
+    return HttpMethods.GET.equals(request.getRequestMethod());
+  }
+}
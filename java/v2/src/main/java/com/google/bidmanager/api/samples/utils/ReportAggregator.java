@@ -0,0 +1,305 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.common.base.Joiner;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sums the metrics of a report by the numeric IDs of one or more dimensions, such as
+ * FILTER_LINE_ITEM, FILTER_INSERTION_ORDER and FILTER_ADVERTISER, as its rows are read.
+ *
+ * <p>Every dimension is rolled up separately. The IDs of each rollup are mapped to consecutive
+ * indexes with an open-addressing hash table of primitive longs, and the sums are kept in a
+ * primitive array, so adding a parsed row to the rollups does not allocate any objects. Parsing
+ * the rows still does: {@link CsvParser} and {@link ReportRowPipeline} create the strings of every
+ * row before it is handed to the aggregator. Each rollup keeps at most a given number of IDs.
+ * Once a rollup is full, the metrics of rows with other IDs are added to the overflow of the
+ * rollup instead, so memory stays bounded whatever the size of the report.
+ */
+public class ReportAggregator implements ReportRowHandler {
+
+  /** Initial number of IDs every rollup has room for. */
+  private static final int INITIAL_GROUPS = 1024;
+
+  /** Maximum number of parsed rows waiting to be aggregated when reading a CSV file. */
+  private static final int MAX_BUFFERED_ROWS = 1024;
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+  };
+
+  private final List<String> metricNames;
+  private final int[] metricColumns;
+  private final int columnCount;
+  private final int maxGroups;
+  private final List<Rollup> rollups = new ArrayList<Rollup>();
+
+  /** The metric values of the current row, reused for every row. */
+  private final double[] rowMetrics;
+
+  /**
+   * Creates an aggregator.
+   *
+   * @param schema The schema of the report.
+   * @param groupBys The dimensions to roll the metrics up by. Their values must be numeric IDs.
+   * @param metrics The metrics to sum.
+   * @param maxGroups The maximum number of IDs kept by every rollup.
+   */
+  public ReportAggregator(
+      ReportSchema schema, List<String> groupBys, List<String> metrics, int maxGroups) {
+    this.metricNames = Collections.unmodifiableList(new ArrayList<String>(metrics));
+    this.metricColumns = new int[metrics.size()];
+    for (int i = 0; i < metricColumns.length; i++) {
+      metricColumns[i] = schema.indexOf(metrics.get(i));
+    }
+    this.columnCount = schema.getColumnCount();
+    this.maxGroups = maxGroups;
+    for (String groupBy : groupBys) {
+      rollups.add(new Rollup(groupBy, schema.indexOf(groupBy)));
+    }
+    this.rowMetrics = new double[metrics.size()];
+  }
+
+  /**
+   * Aggregates the rows of a downloaded CSV report.
+   *
+   * <p>The rows are parsed into strings before being aggregated, so this allocates a few objects
+   * per row even though the aggregation itself does not.
+   *
+   * @param csvFile The path of the CSV report, which may be gzip compressed.
+   * @param schema The schema of the report, used to skip its summary row.
+   * @param aggregator The aggregator to hand the rows to.
+   */
+  public static void aggregate(String csvFile, ReportSchema schema, ReportAggregator aggregator)
+      throws Exception {
+    try (CsvParser parser = new CsvParser(CompressionUtils.newBufferedReader(csvFile))) {
+      ReportRowPipeline.run(parser, schema, aggregator, MAX_BUFFERED_ROWS);
+    }
+  }
+
+  /** Returns the names of the summed metrics, in the order of their values in the rollups. */
+  public List<String> getMetricNames() {
+    return metricNames;
+  }
+
+  /** Returns the rollups, in the order of the group-by dimensions. */
+  public List<Rollup> getRollups() {
+    return Collections.unmodifiableList(rollups);
+  }
+
+  /**
+   * Returns the rollup of a dimension.
+   *
+   * @throws IllegalArgumentException If the metrics are not rolled up by the dimension.
+   */
+  public Rollup getRollup(String groupBy) {
+    for (Rollup rollup : rollups) {
+      if (rollup.groupBy.equals(groupBy)) {
+        return rollup;
+      }
+    }
+    throw new IllegalArgumentException("Metrics are not rolled up by " + groupBy);
+  }
+
+  @Override
+  public void handleHeader(String[] header) throws IOException {
+    if (header.length != columnCount) {
+      throw new IOException(
+          String.format(
+              "Report has %s columns, but its schema has %s.", header.length, columnCount));
+    }
+  }
+
+  @Override
+  public void handleRow(String[] row) throws IOException {
+    for (int i = 0; i < metricColumns.length; i++) {
+      rowMetrics[i] = parseNumber(row[metricColumns[i]]);
+    }
+    for (Rollup rollup : rollups) {
+      rollup.add(parseId(row[rollup.column], rollup.groupBy), rowMetrics);
+    }
+  }
+
+  @Override
+  public void handleEnd() {}
+
+  /**
+   * Writes the rollups as CSV, with one row per ID and one row holding the overflow of every
+   * rollup that has one.
+   */
+  public void writeCsv(Writer writer) throws IOException {
+    writer.write("Group By,ID," + Joiner.on(',').join(metricNames) + "\n");
+    for (Rollup rollup : rollups) {
+      for (int group = 0; group < rollup.size(); group++) {
+        writeCsvRow(writer, rollup.groupBy, String.valueOf(rollup.getId(group)), rollup, group);
+      }
+      if (rollup.getOverflowRowCount() > 0) {
+        writeCsvRow(writer, rollup.groupBy, "OTHER", rollup, Rollup.OVERFLOW);
+      }
+    }
+  }
+
+  private void writeCsvRow(Writer writer, String groupBy, String id, Rollup rollup, int group)
+      throws IOException {
+    StringBuilder line = new StringBuilder(groupBy).append(',').append(id);
+    for (int metric = 0; metric < metricNames.size(); metric++) {
+      line.append(',').append(formatNumber(rollup.getSum(group, metric)));
+    }
+    writer.write(line.append('\n').toString());
+  }
+
+  /** Formats a sum without an exponent, and without a fraction if it is a whole number. */
+  private static String formatNumber(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1L << 53) {
+      return String.valueOf((long) value);
+    }
+    return BigDecimal.valueOf(value).toPlainString();
+  }
+
+  private static long parseId(String value, String groupBy) throws IOException {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IOException(String.format("%s is not a numeric ID: \"%s\"", groupBy, value), e);
+    }
+  }
+
+  /**
+   * Parses a metric value. Plain decimal numbers are parsed without allocating objects, and other
+   * values fall back to {@link Double#parseDouble}. Empty values count as zero.
+   */
+  static double parseNumber(String value) throws IOException {
+    int length = value.length();
+    if (length == 0) {
+      return 0;
+    }
+
+    int position = value.charAt(0) == '-' ? 1 : 0;
+    long mantissa = 0;
+    int digits = 0;
+    int scale = -1;
+    for (; position < length; position++) {
+      char c = value.charAt(position);
+      if (c >= '0' && c <= '9') {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (scale >= 0) {
+          scale++;
+        }
+      } else if (c == '.' && scale < 0) {
+        scale = 0;
+      } else {
+        break;
+      }
+    }
+
+    // Values with at most 15 digits and scale are represented exactly before the division, so
+    // the result is rounded the same way as by Double.parseDouble.
+    if (position == length && digits > 0 && digits <= 15 && scale < POWERS_OF_TEN.length) {
+      double result = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+      return value.charAt(0) == '-' ? -result : result;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IOException(String.format("Metric value is not a number: \"%s\"", value), e);
+    }
+  }
+
+  /** The sums of the metrics by the IDs of one dimension. */
+  public final class Rollup {
+
+    /** Group position of the sums of the rows whose ID did not fit in the rollup. */
+    public static final int OVERFLOW = -1;
+
+    private final String groupBy;
+    private final int column;
+    private final LongIndexMap ids = new LongIndexMap(INITIAL_GROUPS);
+
+    /** The sums of the metrics of every group, one group after the other. */
+    private double[] sums;
+
+    private final double[] overflow;
+    private long overflowRowCount;
+
+    Rollup(String groupBy, int column) {
+      this.groupBy = groupBy;
+      this.column = column;
+      this.sums = new double[INITIAL_GROUPS * metricColumns.length];
+      this.overflow = new double[metricColumns.length];
+    }
+
+    /** Returns the dimension the metrics are rolled up by. */
+    public String getGroupBy() {
+      return groupBy;
+    }
+
+    /** Returns the number of IDs, not counting the overflow. */
+    public int size() {
+      return ids.size();
+    }
+
+    /** Returns the ID of a group, in the order the IDs were first seen. */
+    public long getId(int group) {
+      return ids.keyAt(group);
+    }
+
+    /** Returns the position of the group of an ID, or -1 if the ID was not seen. */
+    public int indexOf(long id) {
+      return ids.indexOf(id);
+    }
+
+    /**
+     * Returns the sum of a metric for a group.
+     *
+     * @param group The position of the group, or {@link #OVERFLOW} for rows that did not fit.
+     * @param metric The position of the metric in {@link #getMetricNames()}.
+     */
+    public double getSum(int group, int metric) {
+      return group == OVERFLOW ? overflow[metric] : sums[group * metricColumns.length + metric];
+    }
+
+    /** Returns the number of rows whose ID did not fit in the rollup. */
+    public long getOverflowRowCount() {
+      return overflowRowCount;
+    }
+
+    void add(long id, double[] values) {
+      int group = ids.size() < maxGroups ? ids.add(id) : ids.indexOf(id);
+      if (group == LongIndexMap.ABSENT) {
+        overflowRowCount++;
+        for (int metric = 0; metric < values.length; metric++) {
+          overflow[metric] += values[metric];
+        }
+        return;
+      }
+
+      int offset = group * values.length;
+      if (offset + values.length > sums.length) {
+        sums = Arrays.copyOf(sums, sums.length * 2);
+      }
+      for (int metric = 0; metric < values.length; metric++) {
+        sums[offset + metric] += values[metric];
+      }
+    }
+  }
+}
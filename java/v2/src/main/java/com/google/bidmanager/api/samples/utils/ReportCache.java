@@ -0,0 +1,154 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A local cache of downloaded report files, keyed by query ID and report ID.
+ *
+ * <p>A finished report never changes, so a report that was downloaded before can be served from
+ * the cache instead of from Google Cloud Storage. The cache is kept in a directory so it persists
+ * between runs. When the files in the cache exceed the configured size, the least recently used
+ * reports are evicted, using the last modified time of each file as its last access time.
+ */
+public class ReportCache {
+
+  private static final String CACHE_FILE_SUFFIX = ".csv";
+
+  private final Path cacheDirectory;
+  private final long maxSizeInBytes;
+
+  /**
+   * Creates a cache.
+   *
+   * @param cacheDirectory The directory to keep cached report files in.
+   * @param maxSizeInBytes The maximum total size of the cached report files.
+   */
+  public ReportCache(String cacheDirectory, long maxSizeInBytes) throws IOException {
+    this.cacheDirectory = Files.createDirectories(Paths.get(cacheDirectory));
+    this.maxSizeInBytes = maxSizeInBytes;
+  }
+
+  /**
+   * Copies a cached report file to the output file, if the report is in the cache.
+   *
+   * @param queryId The ID of the query the report belongs to.
+   * @param reportId The ID of the report.
+   * @param outputFile The path to copy the report file to.
+   * @return Whether the report was in the cache.
+   */
+  public synchronized boolean copyTo(long queryId, long reportId, String outputFile)
+      throws IOException {
+    Path cachedFile = getCacheFile(queryId, reportId);
+    if (!Files.exists(cachedFile)) {
+      return false;
+    }
+
+    Files.copy(cachedFile, Paths.get(outputFile), StandardCopyOption.REPLACE_EXISTING);
+
+    // Mark the report as recently used.
+    Files.setLastModifiedTime(cachedFile, FileTime.fromMillis(System.currentTimeMillis()));
+    return true;
+  }
+
+  /**
+   * Adds a downloaded report file to the cache, evicting the least recently used reports if the
+   * cache grows beyond its maximum size.
+   *
+   * @param queryId The ID of the query the report belongs to.
+   * @param reportId The ID of the report.
+   * @param reportFile The path of the downloaded report file, which is copied into the cache.
+   */
+  public synchronized void put(long queryId, long reportId, String reportFile) throws IOException {
+    if (Files.size(Paths.get(reportFile)) > maxSizeInBytes) {
+      return;
+    }
+
+    // Copy to a temporary file first so a partially copied file is never served.
+    Path cachedFile = getCacheFile(queryId, reportId);
+    Path temporaryFile = Files.createTempFile(cacheDirectory, "report", ".tmp");
+    try {
+      Files.copy(Paths.get(reportFile), temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(
+          temporaryFile,
+          cachedFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+
+    evict();
+  }
+
+  /** Deletes the least recently used report files until the cache is within its maximum size. */
+  private void evict() throws IOException {
+    List<CachedFile> cachedFiles = new ArrayList<CachedFile>();
+    long totalSize = 0;
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(cacheDirectory, "*" + CACHE_FILE_SUFFIX)) {
+      for (Path file : files) {
+        CachedFile cachedFile =
+            new CachedFile(file, Files.readAttributes(file, BasicFileAttributes.class));
+        cachedFiles.add(cachedFile);
+        totalSize += cachedFile.attributes.size();
+      }
+    }
+
+    // Order files from least to most recently used.
+    Collections.sort(
+        cachedFiles,
+        new Comparator<CachedFile>() {
+          @Override
+          public int compare(CachedFile a, CachedFile b) {
+            return a.attributes.lastModifiedTime().compareTo(b.attributes.lastModifiedTime());
+          }
+        });
+
+    for (int i = 0; i < cachedFiles.size() && totalSize > maxSizeInBytes; i++) {
+      CachedFile cachedFile = cachedFiles.get(i);
+      Files.deleteIfExists(cachedFile.path);
+      totalSize -= cachedFile.attributes.size();
+      System.out.printf("Evicted %s from the report cache.%n", cachedFile.path.getFileName());
+    }
+  }
+
+  private Path getCacheFile(long queryId, long reportId) {
+    return cacheDirectory.resolve(queryId + "-" + reportId + CACHE_FILE_SUFFIX);
+  }
+
+  /** A report file in the cache directory. */
+  private static class CachedFile {
+    private final Path path;
+    private final BasicFileAttributes attributes;
+
+    CachedFile(Path path, BasicFileAttributes attributes) {
+      this.path = path;
+      this.attributes = attributes;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computes the rows that changed between two reports of the same query, so downstream systems
+ * only need to load the changes instead of the whole report.
+ *
+ * <p>Rows are identified by the values of their dimension columns. The previous report is read
+ * first, into an index holding a 64-bit hash of the dimension values of every row and a 64-bit
+ * hash of its metric values, in primitive arrays. The current report is then compared row by row
+ * against the index, and the previous report is read a second time to find the rows that were
+ * deleted. Memory use therefore depends on the number of rows, not on their size.
+ *
+ * <p>The changes are written as CSV, with the header of the report preceded by a {@code Change}
+ * column holding {@code INSERT}, {@code UPDATE} or {@code DELETE}. Inserted and updated rows hold
+ * the values of the current report, and deleted rows those of the previous report.
+ */
+public class ReportDelta {
+
+  /** The kinds of changes written. */
+  public enum Change {
+    INSERT,
+    UPDATE,
+    DELETE
+  }
+
+  /** Initial number of rows the index has room for. */
+  private static final int INITIAL_ROWS = 64 * 1024;
+
+  /** Maximum number of parsed rows waiting to be compared when reading a report. */
+  private static final int MAX_BUFFERED_ROWS = 1024;
+
+  private static final HashFunction HASH_FUNCTION = Hashing.farmHashFingerprint64();
+
+  private final ReportSchema schema;
+  private final int dimensionCount;
+  private final LongIndexMap keys = new LongIndexMap(INITIAL_ROWS);
+  private long[] contentHashes = new long[INITIAL_ROWS];
+  private final BitSet seenKeys = new BitSet();
+  private String[] header;
+
+  private long insertedRows;
+  private long updatedRows;
+  private long deletedRows;
+  private long unchangedRows;
+
+  private ReportDelta(ReportSchema schema) {
+    this.schema = schema;
+    this.dimensionCount = schema.getDimensions().size();
+  }
+
+  /**
+   * Writes the rows that changed between two reports of a query.
+   *
+   * @param previousReportFile The path of the previous CSV report, which may be gzip compressed.
+   * @param currentReportFile The path of the current CSV report, which may be gzip compressed.
+   * @param schema The schema of both reports.
+   * @param outputFile The path to write the changes to, gzip compressed if it ends with {@code
+   *     .gz}.
+   * @return The delta, holding the number of rows of every kind of change.
+   * @throws IOException If the reports do not have the same columns.
+   */
+  public static ReportDelta write(
+      String previousReportFile, String currentReportFile, ReportSchema schema, String outputFile)
+      throws Exception {
+    ReportDelta delta = new ReportDelta(schema);
+    delta.indexPreviousReport(previousReportFile);
+    try (Writer writer = CompressionUtils.newBufferedWriter(outputFile)) {
+      delta.compareCurrentReport(currentReportFile, writer);
+      delta.writeDeletedRows(previousReportFile, writer);
+    }
+    return delta;
+  }
+
+  /** Returns the number of rows only found in the current report. */
+  public long getInsertedRows() {
+    return insertedRows;
+  }
+
+  /** Returns the number of rows found in both reports, with different metrics. */
+  public long getUpdatedRows() {
+    return updatedRows;
+  }
+
+  /** Returns the number of rows only found in the previous report. */
+  public long getDeletedRows() {
+    return deletedRows;
+  }
+
+  /** Returns the number of rows found in both reports, with the same metrics. */
+  public long getUnchangedRows() {
+    return unchangedRows;
+  }
+
+  private void indexPreviousReport(String previousReportFile) throws Exception {
+    read(
+        previousReportFile,
+        new ReportRowHandler() {
+          @Override
+          public void handleHeader(String[] previousHeader) {
+            header = previousHeader;
+          }
+
+          @Override
+          public void handleRow(String[] row) throws IOException {
+            int index = keys.add(hashKey(row));
+            if (index == contentHashes.length) {
+              contentHashes = Arrays.copyOf(contentHashes, contentHashes.length * 2);
+            }
+            contentHashes[index] = hashContent(row);
+          }
+
+          @Override
+          public void handleEnd() {}
+        });
+  }
+
+  private void compareCurrentReport(String currentReportFile, final Writer writer)
+      throws Exception {
+    read(
+        currentReportFile,
+        new ReportRowHandler() {
+          @Override
+          public void handleHeader(String[] currentHeader) throws IOException {
+            if (!Arrays.equals(header, currentHeader)) {
+              throw new IOException("The reports do not have the same columns.");
+            }
+            writeRow(writer, "Change", currentHeader);
+          }
+
+          @Override
+          public void handleRow(String[] row) throws IOException {
+            int index = keys.indexOf(hashKey(row));
+            if (index == LongIndexMap.ABSENT) {
+              insertedRows++;
+              writeRow(writer, Change.INSERT.name(), row);
+              return;
+            }
+            seenKeys.set(index);
+            if (contentHashes[index] != hashContent(row)) {
+              updatedRows++;
+              writeRow(writer, Change.UPDATE.name(), row);
+            } else {
+              unchangedRows++;
+            }
+          }
+
+          @Override
+          public void handleEnd() {}
+        });
+  }
+
+  private void writeDeletedRows(String previousReportFile, final Writer writer) throws Exception {
+    if (seenKeys.cardinality() == keys.size()) {
+      // All rows of the previous report are in the current one, so there is no need to read it.
+      return;
+    }
+    read(
+        previousReportFile,
+        new ReportRowHandler() {
+          @Override
+          public void handleHeader(String[] previousHeader) {}
+
+          @Override
+          public void handleRow(String[] row) throws IOException {
+            int index = keys.indexOf(hashKey(row));
+            if (!seenKeys.get(index)) {
+              // Mark the row, in case the previous report has the same key more than once.
+              seenKeys.set(index);
+              deletedRows++;
+              writeRow(writer, Change.DELETE.name(), row);
+            }
+          }
+
+          @Override
+          public void handleEnd() {}
+        });
+  }
+
+  private void read(String reportFile, ReportRowHandler handler) throws Exception {
+    try (CsvParser parser = new CsvParser(CompressionUtils.newBufferedReader(reportFile))) {
+      ReportRowPipeline.run(parser, schema, handler, MAX_BUFFERED_ROWS);
+    }
+  }
+
+  /** Hashes the dimension values of a row, which identify it. */
+  private long hashKey(String[] row) {
+    return hash(row, 0, Math.min(dimensionCount, row.length));
+  }
+
+  /** Hashes the metric values of a row. */
+  private long hashContent(String[] row) {
+    return hash(row, Math.min(dimensionCount, row.length), row.length);
+  }
+
+  /** Hashes a range of values, with their lengths so values cannot run into each other. */
+  private static long hash(String[] row, int from, int to) {
+    Hasher hasher = HASH_FUNCTION.newHasher();
+    for (int column = from; column < to; column++) {
+      hasher.putInt(row[column].length()).putString(row[column], UTF_8);
+    }
+    return hasher.hash().asLong();
+  }
+
+  /** Writes a row preceded by a change column, whose values never need to be quoted. */
+  private static void writeRow(Writer writer, String change, String[] row) throws IOException {
+    writer.write(change);
+    writer.write(',');
+    writer.write(CsvParser.formatRecord(row));
+  }
+}
@@ -0,0 +1,182 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.services.doubleclickbidmanager.model.Date;
+import com.google.api.services.doubleclickbidmanager.model.Parameters;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.api.services.doubleclickbidmanager.model.ReportMetadata;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long reports took to generate, grouped by the shape of their query, so the time a
+ * new report will take can be estimated from the reports generated before it.
+ *
+ * <p>The shape of a query is made of its report type, group-by dimensions, metrics and the number
+ * of days covered by the report. Reports of the same shape tend to take a similar amount of time
+ * to generate. The most recent durations of every shape are kept in a properties file that is
+ * rewritten atomically whenever a duration is recorded.
+ */
+public class ReportGenerationHistory {
+
+  /** Suggested location of the history file. */
+  public static final String DEFAULT_HISTORY_FILE =
+      System.getProperty("user.home") + "/.store/dbm_sample/report_generation_history.properties";
+
+  /** Number of durations kept for every query shape. */
+  private static final int MAX_DURATIONS_PER_SHAPE = 20;
+
+  private final Path historyFile;
+  private final Properties durations = new Properties();
+
+  /**
+   * Opens a history file, which is created when the first duration is recorded.
+   *
+   * @param historyFile The path of the history file.
+   */
+  public ReportGenerationHistory(String historyFile) throws IOException {
+    this.historyFile = Paths.get(historyFile);
+    if (Files.exists(this.historyFile)) {
+      try (Reader reader = Files.newBufferedReader(this.historyFile, UTF_8)) {
+        durations.load(reader);
+      }
+    }
+  }
+
+  /**
+   * Returns an identifier of the shape of the query that generated a report.
+   *
+   * @param report A report, as returned when running its query or retrieving it.
+   */
+  public static String getQueryShape(Report report) {
+    Parameters parameters = report.getParams();
+    List<String> groupBys = new ArrayList<String>();
+    List<String> metrics = new ArrayList<String>();
+    String type = null;
+    if (parameters != null) {
+      type = parameters.getType();
+      if (parameters.getGroupBys() != null) {
+        groupBys.addAll(parameters.getGroupBys());
+      }
+      if (parameters.getMetrics() != null) {
+        metrics.addAll(parameters.getMetrics());
+      }
+    }
+    Collections.sort(groupBys);
+    Collections.sort(metrics);
+
+    String shape =
+        String.format(
+            "type=%s;groupBys=%s;metrics=%s;days=%s",
+            type,
+            Joiner.on(',').join(groupBys),
+            Joiner.on(',').join(metrics),
+            getReportDays(report.getMetadata()));
+    return Hashing.sha256().hashString(shape, UTF_8).toString().substring(0, 16);
+  }
+
+  /**
+   * Returns the recorded generation durations of reports of a query shape, from oldest to newest.
+   *
+   * @param queryShape The shape returned by {@link #getQueryShape}.
+   * @return The durations in milliseconds, or an empty list if none were recorded.
+   */
+  public synchronized List<Long> getDurations(String queryShape) {
+    List<Long> result = new ArrayList<Long>();
+    String value = durations.getProperty(queryShape);
+    if (value != null && !value.isEmpty()) {
+      for (String duration : value.split(",")) {
+        result.add(Long.parseLong(duration));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records how long a report took to generate, keeping only the most recent durations of its
+   * query shape.
+   *
+   * @param queryShape The shape returned by {@link #getQueryShape}.
+   * @param durationMillis The time from running the query to the report being finished.
+   */
+  public synchronized void record(String queryShape, long durationMillis) throws IOException {
+    List<Long> shapeDurations = getDurations(queryShape);
+    shapeDurations.add(durationMillis);
+    if (shapeDurations.size() > MAX_DURATIONS_PER_SHAPE) {
+      shapeDurations =
+          shapeDurations.subList(
+              shapeDurations.size() - MAX_DURATIONS_PER_SHAPE, shapeDurations.size());
+    }
+    durations.setProperty(queryShape, Joiner.on(',').join(shapeDurations));
+    save();
+  }
+
+  /** Returns the number of days of data covered by a report, or -1 if unknown. */
+  private static long getReportDays(ReportMetadata metadata) {
+    if (metadata == null
+        || metadata.getReportDataStartDate() == null
+        || metadata.getReportDataEndDate() == null) {
+      return -1;
+    }
+    long startMillis = toMillis(metadata.getReportDataStartDate());
+    long endMillis = toMillis(metadata.getReportDataEndDate());
+    return TimeUnit.MILLISECONDS.toDays(endMillis - startMillis) + 1;
+  }
+
+  private static long toMillis(Date date) {
+    Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    calendar.clear();
+    calendar.set(date.getYear(), date.getMonth() - 1, date.getDay());
+    return calendar.getTimeInMillis();
+  }
+
+  private void save() throws IOException {
+    Path parent = historyFile.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+
+    // Write to a temporary file first so a partially written history is never read.
+    Path temporaryFile = Files.createTempFile(parent, historyFile.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temporaryFile, UTF_8)) {
+        durations.store(writer, "Report generation durations in milliseconds, by query shape.");
+      }
+      Files.move(
+          temporaryFile,
+          historyFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A local index of the reports seen under each query, so the reports of a query only need to be
+ * listed down to the newest report seen by an earlier run.
+ *
+ * <p>For every query, the index keeps a watermark and the latest report in the DONE state. All
+ * reports with an ID up to the watermark had finished when they were seen, and none of the reports
+ * between the latest DONE report and the watermark are DONE. Finished reports never change state,
+ * so a later run can stop listing reports once it reaches the watermark. Reports that were still
+ * running are always above the watermark, so they are checked again by the next run.
+ */
+public class ReportIndex {
+
+  /** Suggested location of the index file. */
+  public static final String DEFAULT_INDEX_FILE =
+      System.getProperty("user.home") + "/.store/dbm_sample/report_index.properties";
+
+  /** Value returned when a query has no watermark or no known DONE report. */
+  public static final long UNKNOWN = -1;
+
+  private static final String WATERMARK_SUFFIX = ".watermark";
+  private static final String LATEST_DONE_SUFFIX = ".latestDoneReportId";
+
+  private final Path indexFile;
+  private final Properties entries = new Properties();
+
+  /**
+   * Opens an index file, which is created when the index is first updated.
+   *
+   * @param indexFile The path of the index file.
+   */
+  public ReportIndex(String indexFile) throws IOException {
+    this.indexFile = Paths.get(indexFile);
+    if (Files.exists(this.indexFile)) {
+      try (Reader reader = Files.newBufferedReader(this.indexFile, UTF_8)) {
+        entries.load(reader);
+      }
+    }
+  }
+
+  /** Returns the ID up to which all reports of a query were finished, or {@link #UNKNOWN}. */
+  public synchronized long getWatermark(long queryId) {
+    return getLong(queryId + WATERMARK_SUFFIX);
+  }
+
+  /** Returns the ID of the latest DONE report of a query at or below its watermark. */
+  public synchronized long getLatestDoneReportId(long queryId) {
+    return getLong(queryId + LATEST_DONE_SUFFIX);
+  }
+
+  /**
+   * Updates the entry of a query.
+   *
+   * @param queryId The ID of the query.
+   * @param latestDoneReportId The ID of the latest DONE report, or {@link #UNKNOWN} if none.
+   * @param watermark The ID up to which all reports of the query are finished.
+   */
+  public synchronized void update(long queryId, long latestDoneReportId, long watermark)
+      throws IOException {
+    entries.setProperty(queryId + LATEST_DONE_SUFFIX, String.valueOf(latestDoneReportId));
+    entries.setProperty(queryId + WATERMARK_SUFFIX, String.valueOf(watermark));
+    save();
+  }
+
+  /**
+   * Removes the entry of a query, for example when its latest DONE report no longer exists, so
+   * the next run lists all of its reports again.
+   */
+  public synchronized void remove(long queryId) throws IOException {
+    entries.remove(queryId + LATEST_DONE_SUFFIX);
+    entries.remove(queryId + WATERMARK_SUFFIX);
+    save();
+  }
+
+  private long getLong(String key) {
+    String value = entries.getProperty(key);
+    return value == null ? UNKNOWN : Long.parseLong(value);
+  }
+
+  private void save() throws IOException {
+    Path parent = indexFile.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+
+    // Write to a temporary file first so a partially written index is never read.
+    Path temporaryFile = Files.createTempFile(parent, indexFile.getFileName().toString(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temporaryFile, UTF_8)) {
+        entries.store(writer, "Latest DONE report and watermark, by query ID.");
+      }
+      Files.move(
+          temporaryFile,
+          indexFile,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+}
@@ -0,0 +1,444 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.services.doubleclickbidmanager.DoubleClickBidManager;
+import com.google.api.services.doubleclickbidmanager.model.Report;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the status of reports until they finish generating.
+ *
+ * <p>Instead of parking one thread per report in {@code Thread.sleep}, every pending report keeps
+ * its own {@link ExponentialBackOff} state and its next status check is scheduled on a small
+ * shared pool of threads. Thousands of reports can be pending at once without needing more
+ * threads.
+ *
+ * <p>If a {@link ReportGenerationHistory} is given, the time every report takes to finish is
+ * recorded in it, and reports whose query shape has a history are checked around their expected
+ * completion time with an {@link ExpectedCompletionBackOff} instead.
+ *
+ * <p>Status checks run on the scheduling threads by default. If an executor for status checks is
+ * given, the scheduling threads only hand the checks over to it, so that checks are not held up
+ * by one another.
+ *
+ * <p>Status checks that fall due shortly after each other are sent together in a single batch
+ * request of up to {@link #MAX_BATCH_SIZE} calls, and the status returned for every report is
+ * handed back to its own polling state. A status check waits for others for a fifth of the
+ * minimum interval between checks, and at most one second.
+ *
+ * <p>If a status check fails because of a network error or a 429 or 5xx response, including the
+ * failure of a whole batch request, the status of the affected reports is checked again after
+ * their next backoff interval. Polling only fails on errors that would not go away by retrying.
+ */
+public class ReportPoller implements Closeable {
+
+  /** Maximum number of calls allowed in a single batch request. */
+  public static final int MAX_BATCH_SIZE = 1000;
+
+  /** Maximum amount of time status checks wait for other checks to be sent in the same batch. */
+  private static final long MAX_BATCH_WINDOW_MILLIS = 1_000;
+
+  private final DoubleClickBidManager service;
+  private final ScheduledExecutorService scheduler;
+  private final int initialIntervalMillis;
+  private final int maxIntervalMillis;
+  private final int maxElapsedTimeMillis;
+  private final ReportGenerationHistory history;
+  private final Executor statusCheckExecutor;
+  private final long batchWindowMillis;
+
+  /** Reports whose status check is due, waiting for the next batch to be sent. */
+  private final List<PendingReport> dueReports = new ArrayList<PendingReport>();
+
+  private boolean batchScheduled;
+
+  /**
+   * Creates a poller.
+   *
+   * @param service The Bid Manager API service object used to retrieve report statuses.
+   * @param threadCount The number of threads used to check report statuses.
+   * @param initialIntervalMillis Minimum amount of time between polling requests for a report.
+   * @param maxIntervalMillis Maximum amount of time between polling requests for a report.
+   * @param maxElapsedTimeMillis Maximum amount of time to spend polling a report.
+   */
+  public ReportPoller(
+      DoubleClickBidManager service,
+      int threadCount,
+      int initialIntervalMillis,
+      int maxIntervalMillis,
+      int maxElapsedTimeMillis) {
+    this(
+        service, threadCount, initialIntervalMillis, maxIntervalMillis, maxElapsedTimeMillis, null);
+  }
+
+  /**
+   * Creates a poller that learns from and records report generation durations.
+   *
+   * @param service The Bid Manager API service object used to retrieve report statuses.
+   * @param threadCount The number of threads used to check report statuses.
+   * @param initialIntervalMillis Minimum amount of time between polling requests for a report.
+   * @param maxIntervalMillis Maximum amount of time between polling requests for a report.
+   * @param maxElapsedTimeMillis Maximum amount of time to spend polling a report.
+   * @param history The history of report generation durations, or {@code null}.
+   */
+  public ReportPoller(
+      DoubleClickBidManager service,
+      int threadCount,
+      int initialIntervalMillis,
+      int maxIntervalMillis,
+      int maxElapsedTimeMillis,
+      ReportGenerationHistory history) {
+    this(
+        service,
+        threadCount,
+        initialIntervalMillis,
+        maxIntervalMillis,
+        maxElapsedTimeMillis,
+        history,
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Creates a poller that checks report statuses on the given executor.
+   *
+   * @param service The Bid Manager API service object used to retrieve report statuses.
+   * @param threadCount The number of threads used to schedule status checks.
+   * @param initialIntervalMillis Minimum amount of time between polling requests for a report.
+   * @param maxIntervalMillis Maximum amount of time between polling requests for a report.
+   * @param maxElapsedTimeMillis Maximum amount of time to spend polling a report.
+   * @param history The history of report generation durations, or {@code null}.
+   * @param statusCheckExecutor The executor that retrieves report statuses.
+   */
+  public ReportPoller(
+      DoubleClickBidManager service,
+      int threadCount,
+      int initialIntervalMillis,
+      int maxIntervalMillis,
+      int maxElapsedTimeMillis,
+      ReportGenerationHistory history,
+      Executor statusCheckExecutor) {
+    this.service = service;
+    this.initialIntervalMillis = initialIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.maxElapsedTimeMillis = maxElapsedTimeMillis;
+    this.history = history;
+    this.statusCheckExecutor = statusCheckExecutor;
+    this.batchWindowMillis = Math.min(initialIntervalMillis / 5, MAX_BATCH_WINDOW_MILLIS);
+
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            threadCount,
+            new ThreadFactoryBuilder().setNameFormat("report-poller-%d").setDaemon(true).build());
+    executor.setRemoveOnCancelPolicy(true);
+    this.scheduler = executor;
+  }
+
+  /**
+   * Starts polling a report.
+   *
+   * @param report The report returned when running the query.
+   * @return A future completed with the report once it is DONE or FAILED, or with {@code null} if
+   *     the report did not finish within the maximum polling time.
+   */
+  public ListenableFuture<Report> poll(Report report) {
+    if (isFinished(report)) {
+      return Futures.immediateFuture(report);
+    }
+
+    PendingReport pending = new PendingReport(report);
+    pending.scheduleNextPoll();
+    return pending.result;
+  }
+
+  /** Stops polling. Reports that are still pending will never complete. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /** Adds a report to the next batch of status checks, scheduling the batch if needed. */
+  private void queueStatusCheck(PendingReport pending) {
+    synchronized (dueReports) {
+      dueReports.add(pending);
+      if (batchScheduled) {
+        return;
+      }
+      batchScheduled = true;
+    }
+    scheduler.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            sendDueStatusChecks();
+          }
+        },
+        batchWindowMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Hands the due status checks over to the status check executor, in batches. */
+  private void sendDueStatusChecks() {
+    List<PendingReport> reports;
+    synchronized (dueReports) {
+      reports = new ArrayList<PendingReport>(dueReports);
+      dueReports.clear();
+      batchScheduled = false;
+    }
+
+    for (final List<PendingReport> batch : Lists.partition(reports, MAX_BATCH_SIZE)) {
+      statusCheckExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              checkStatuses(batch);
+            }
+          });
+    }
+  }
+
+  /** Retrieves the current status of a group of reports. */
+  private void checkStatuses(List<PendingReport> reports) {
+    List<PendingReport> pendingReports = new ArrayList<PendingReport>();
+    for (PendingReport pending : reports) {
+      if (!pending.result.isCancelled()) {
+        pendingReports.add(pending);
+      }
+    }
+    if (pendingReports.isEmpty()) {
+      return;
+    }
+
+    // A single report does not need the overhead of a batch request.
+    if (pendingReports.size() == 1) {
+      final PendingReport pending = pendingReports.get(0);
+      try {
+        pending.onStatus(
+            RequestHedger.get()
+                .execute(
+                    ApiEndpoint.REPORTS_GET,
+                    new Callable<Report>() {
+                      @Override
+                      public Report call() throws IOException {
+                        return service
+                            .queries()
+                            .reports()
+                            .get(pending.queryId, pending.reportId)
+                            .execute();
+                      }
+                    }));
+      } catch (Exception e) {
+        pending.onFailure(e);
+      }
+      return;
+    }
+
+    try {
+      BatchRequest batch = service.batch();
+      for (final PendingReport pending : pendingReports) {
+        service
+            .queries()
+            .reports()
+            .get(pending.queryId, pending.reportId)
+            .queue(
+                batch,
+                new JsonBatchCallback<Report>() {
+                  @Override
+                  public void onSuccess(Report report, HttpHeaders responseHeaders) {
+                    pending.onStatus(report);
+                  }
+
+                  @Override
+                  public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                    pending.onError(error);
+                  }
+                });
+      }
+      batch.execute();
+    } catch (Exception e) {
+      // The whole batch failed, so none of the reports received a status.
+      for (PendingReport pending : pendingReports) {
+        pending.onFailure(e);
+      }
+    }
+  }
+
+  /** Returns whether a request that failed with the given exception may succeed if retried. */
+  private static boolean isTransient(Exception e) {
+    if (e instanceof HttpResponseException) {
+      return isTransient(((HttpResponseException) e).getStatusCode());
+    }
+    return e instanceof IOException;
+  }
+
+  private static boolean isTransient(int statusCode) {
+    return statusCode == 429 || statusCode / 100 == 5;
+  }
+
+  private static boolean isFinished(Report report) {
+    String state = report.getMetadata().getStatus().getState();
+    return state.equals("DONE") || state.equals("FAILED");
+  }
+
+  /** The polling state of a single report. */
+  private class PendingReport {
+    private final SettableFuture<Report> result = SettableFuture.create();
+    private final Long queryId;
+    private final Long reportId;
+    private final long startMillis = System.currentTimeMillis();
+    private final String queryShape;
+    private final BackOff backOff;
+
+    PendingReport(Report report) {
+      this.queryId = report.getKey().getQueryId();
+      this.reportId = report.getKey().getReportId();
+      this.queryShape = history == null ? null : ReportGenerationHistory.getQueryShape(report);
+
+      List<Long> durations =
+          history == null ? Collections.<Long>emptyList() : history.getDurations(queryShape);
+      if (!durations.isEmpty()) {
+        // Check the status of this report around the time similar reports finished.
+        ExpectedCompletionBackOff expectedCompletion =
+            new ExpectedCompletionBackOff(
+                durations, initialIntervalMillis, maxIntervalMillis, maxElapsedTimeMillis);
+        System.out.printf(
+            "Report %s is expected to finish in %s to %s seconds.%n",
+            reportId,
+            expectedCompletion.getLowEstimateMillis() / 1000,
+            expectedCompletion.getHighEstimateMillis() / 1000);
+        this.backOff = expectedCompletion;
+      } else {
+        // Configure exponential backoff for checking the status of this report.
+        this.backOff =
+            new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(initialIntervalMillis) // setting initial interval
+                .setMaxIntervalMillis(maxIntervalMillis) // setting max interval
+                .setMaxElapsedTimeMillis(maxElapsedTimeMillis) // setting max elapsed time
+                .build();
+      }
+    }
+
+    /** Records how long the report took to generate, if it was generated successfully. */
+    void recordDuration(Report report) {
+      if (history == null || !report.getMetadata().getStatus().getState().equals("DONE")) {
+        return;
+      }
+
+      // Prefer the time the report finished over the time it was found to be finished.
+      long finishedMillis = System.currentTimeMillis();
+      String finishTime = report.getMetadata().getStatus().getFinishTime();
+      if (finishTime != null) {
+        long reportedMillis = DateTime.parseRfc3339(finishTime).getValue();
+        if (reportedMillis >= startMillis && reportedMillis < finishedMillis) {
+          finishedMillis = reportedMillis;
+        }
+      }
+
+      try {
+        history.record(queryShape, finishedMillis - startMillis);
+      } catch (IOException e) {
+        System.out.printf("Unable to record generation time of report %s: %s%n", reportId, e);
+      }
+    }
+
+    /** Schedules the next status check, or gives up if the maximum polling time has elapsed. */
+    void scheduleNextPoll() {
+      try {
+        long backoffMillis = backOff.nextBackOffMillis();
+        if (backoffMillis == BackOff.STOP) {
+          System.out.printf(
+              "Report %s has taken more than %s minutes to generate.%n",
+              reportId, maxElapsedTimeMillis / 60_000);
+          result.set(null);
+          return;
+        }
+        System.out.printf(
+            "Report %s has not yet completed. Waiting %s seconds before polling report again.%n",
+            reportId, backoffMillis / 1000);
+        scheduler.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                queueStatusCheck(PendingReport.this);
+              }
+            },
+            backoffMillis,
+            TimeUnit.MILLISECONDS);
+      } catch (Exception e) {
+        result.setException(e);
+      }
+    }
+
+    /** Completes polling if the report has finished, or schedules the next status check. */
+    void onStatus(Report report) {
+      if (isFinished(report)) {
+        recordDuration(report);
+        result.set(report);
+      } else {
+        scheduleNextPoll();
+      }
+    }
+
+    /** Handles an error returned for this report within a batch request. */
+    void onError(GoogleJsonError error) {
+      if (isTransient(error.getCode())) {
+        // The error is transient, so check the status again later.
+        System.out.printf(
+            "Unable to retrieve the status of report %s: %s%n", reportId, error.getMessage());
+        scheduleNextPoll();
+        return;
+      }
+      result.setException(
+          new IOException(
+              String.format(
+                  "Unable to retrieve the status of report %s: %s %s",
+                  reportId, error.getCode(), error.getMessage())));
+    }
+
+    /** Handles a failed request for the status of this report. */
+    void onFailure(Exception e) {
+      if (isTransient(e)) {
+        // The error is transient, so check the status again later.
+        System.out.printf("Unable to retrieve the status of report %s: %s%n", reportId, e);
+        scheduleNextPoll();
+        return;
+      }
+      result.setException(e);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+/**
+ * Receives the rows of a CSV report as they are read.
+ *
+ * <p>Use {@link ReportSchema#indexOf(String)} to find the position of a FILTER_* or METRIC_*
+ * column in the rows.
+ */
+public interface ReportRowHandler {
+
+  /**
+   * Called once, before any rows, with the header row of the report.
+   *
+   * @param header The display names of the report columns.
+   */
+  void handleHeader(String[] header) throws Exception;
+
+  /**
+   * Called for every data row of the report, in file order.
+   *
+   * @param row The values of the row. The array is not reused and may be kept by the handler.
+   */
+  void handleRow(String[] row) throws Exception;
+
+  /** Called once after the last row of the report. */
+  void handleEnd() throws Exception;
+}
@@ -0,0 +1,132 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the rows of a CSV report to a {@link ReportRowHandler} while they are being parsed.
+ *
+ * <p>Rows are parsed on the calling thread and handled on a separate thread. The two are connected
+ * by a bounded queue, so reading and parsing overlap with the work done by the handler, and
+ * reading pauses whenever the handler falls behind instead of buffering the whole report.
+ */
+public final class ReportRowPipeline {
+
+  /** Marks the end of the rows in the queue. */
+  private static final String[] END_OF_ROWS = new String[0];
+
+  /** How long to wait for space in the queue before checking whether the handler has failed. */
+  private static final long OFFER_TIMEOUT_IN_MILLIS = 100;
+
+  private static final String BYTE_ORDER_MARK = "\uFEFF";
+
+  private ReportRowPipeline() {}
+
+  /**
+   * Parses a report and hands its rows to a handler.
+   *
+   * <p>Parsing stops at the first blank line, which separates the rows of a report from its
+   * metadata. If a schema is given, the summary row holding report totals is skipped.
+   *
+   * @param parser The parser reading the report.
+   * @param schema The schema of the report, or {@code null} to hand over every row.
+   * @param handler The handler to receive the rows.
+   * @param maxBufferedRows The maximum number of parsed rows waiting to be handled.
+   * @throws Exception If the report cannot be read or the handler fails.
+   */
+  public static void run(
+      CsvParser parser,
+      ReportSchema schema,
+      final ReportRowHandler handler,
+      int maxBufferedRows)
+      throws Exception {
+    final String[] header = parser.readRecord();
+    if (header == null || header == CsvParser.BLANK_LINE) {
+      throw new IOException("Report has no header row.");
+    }
+    if (header[0].startsWith(BYTE_ORDER_MARK)) {
+      header[0] = header[0].substring(BYTE_ORDER_MARK.length());
+    }
+
+    final BlockingQueue<String[]> rows = new ArrayBlockingQueue<String[]>(maxBufferedRows);
+    ExecutorService handlerExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("report-row-handler-%d")
+                .setDaemon(true)
+                .build());
+    try {
+      Future<Void> handlerResult =
+          handlerExecutor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  handler.handleHeader(header);
+                  String[] row;
+                  while ((row = rows.take()) != END_OF_ROWS) {
+                    handler.handleRow(row);
+                  }
+                  handler.handleEnd();
+                  return null;
+                }
+              });
+
+      String[] row;
+      while ((row = parser.readRecord()) != null && row != CsvParser.BLANK_LINE) {
+        if (schema == null || !schema.isSummaryRow(row)) {
+          put(rows, row, handlerResult);
+        }
+      }
+      put(rows, END_OF_ROWS, handlerResult);
+
+      // Wait for the handler to finish with the remaining rows.
+      handlerResult.get();
+    } catch (ExecutionException e) {
+      // Surface the error raised by the handler.
+      Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+      throw e;
+    } finally {
+      handlerExecutor.shutdownNow();
+    }
+  }
+
+  /** Adds a row to the queue, waiting for space, unless the handler has already stopped. */
+  private static void put(BlockingQueue<String[]> rows, String[] row, Future<Void> handlerResult)
+      throws Exception {
+    checkHandlerRunning(handlerResult);
+    while (!rows.offer(row, OFFER_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkHandlerRunning(handlerResult);
+    }
+  }
+
+  /** Throws the error raised by the handler if it stopped before receiving all rows. */
+  private static void checkHandlerRunning(Future<Void> handlerResult) throws Exception {
+    if (handlerResult.isDone()) {
+      handlerResult.get();
+      throw new IllegalStateException("Row handler stopped before the end of the report.");
+    }
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.services.doubleclickbidmanager.model.Parameters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes the columns of a CSV report.
+ *
+ * <p>The header row of a report file holds display names, such as "Advertiser ID". The columns of
+ * the file are the query's group-by dimensions (FILTER_*) followed by its metrics (METRIC_*), in
+ * the order they were set in the query parameters, so this class maps those names to column
+ * positions.
+ */
+public final class ReportSchema {
+
+  private final List<String> dimensions;
+  private final List<String> metrics;
+
+  /**
+   * Creates a schema.
+   *
+   * @param dimensions The group-by dimensions of the query, in order.
+   * @param metrics The metrics of the query, in order.
+   */
+  public ReportSchema(List<String> dimensions, List<String> metrics) {
+    this.dimensions = Collections.unmodifiableList(new ArrayList<String>(dimensions));
+    this.metrics = Collections.unmodifiableList(new ArrayList<String>(metrics));
+  }
+
+  /** Creates the schema of the reports generated for the given query parameters. */
+  public static ReportSchema fromParameters(Parameters parameters) {
+    List<String> dimensions = parameters.getGroupBys();
+    List<String> metrics = parameters.getMetrics();
+    return new ReportSchema(
+        dimensions == null ? Collections.<String>emptyList() : dimensions,
+        metrics == null ? Collections.<String>emptyList() : metrics);
+  }
+
+  /** Returns the group-by dimensions of the report, in column order. */
+  public List<String> getDimensions() {
+    return dimensions;
+  }
+
+  /** Returns the metrics of the report, in column order. */
+  public List<String> getMetrics() {
+    return metrics;
+  }
+
+  /** Returns the number of columns in the report. */
+  public int getColumnCount() {
+    return dimensions.size() + metrics.size();
+  }
+
+  /**
+   * Returns the column position of a dimension or metric.
+   *
+   * @param name The name of a dimension, such as FILTER_LINE_ITEM, or of a metric, such as
+   *     METRIC_IMPRESSIONS.
+   * @throws IllegalArgumentException If the report does not contain the column.
+   */
+  public int indexOf(String name) {
+    int index = dimensions.indexOf(name);
+    if (index >= 0) {
+      return index;
+    }
+    index = metrics.indexOf(name);
+    if (index >= 0) {
+      return dimensions.size() + index;
+    }
+    throw new IllegalArgumentException("Report does not contain column " + name);
+  }
+
+  /** Returns whether the column at the given position is a dimension. */
+  public boolean isDimension(int column) {
+    return column < dimensions.size();
+  }
+
+  /**
+   * Returns whether a row is the summary row holding report totals, which has no dimension values.
+   */
+  public boolean isSummaryRow(String[] row) {
+    if (dimensions.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < dimensions.size() && i < row.length; i++) {
+      if (!row[i].isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
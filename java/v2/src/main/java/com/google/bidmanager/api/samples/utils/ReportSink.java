@@ -0,0 +1,55 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the bytes of a report file as it is downloaded, in file order.
+ *
+ * <p>Sinks are written from a single thread. A sink that blocks in {@link #write} slows the
+ * download down, so reports of any size are streamed with bounded memory. See {@link ReportSinks}
+ * for the built-in sinks.
+ *
+ * <p>A sink is committed once the whole report was written, and closed whether or not the download
+ * succeeded. Sinks writing files only move them into place when committed, so a failed download
+ * does not leave a truncated report that looks complete.
+ */
+public interface ReportSink extends Closeable {
+
+  /**
+   * Called with the next bytes of the report file.
+   *
+   * @param bytes An array holding the bytes. The array is reused once the call returns, so the
+   *     sink must copy any bytes it keeps.
+   * @param offset The position of the first byte in the array.
+   * @param length The number of bytes.
+   */
+  void write(byte[] bytes, int offset, int length) throws IOException;
+
+  /**
+   * Called once after the last bytes of the report file, to flush the output of the sink and make
+   * it available as complete.
+   */
+  void commit() throws IOException;
+
+  /**
+   * Called once at the end, after {@link #commit} if the download succeeded, to release the output
+   * of the sink. Output that was not committed is discarded where possible.
+   */
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,561 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The built-in {@link ReportSink}s, to stream a report file into the shapes it is needed in while
+ * it is downloaded, instead of copying the downloaded file.
+ *
+ * <p>Sinks are created from specs such as those passed to the samples with {@code
+ * --additionalOutputs}, see {@link #parse}, or with the factory methods of this class.
+ */
+public final class ReportSinks {
+
+  /** Size of the buffers used to write files. */
+  private static final int BUFFER_SIZE_IN_BYTES = 64 * 1024;
+
+  /** Default maximum number of chunks of bytes waiting for each sink of a fan-out. */
+  public static final int DEFAULT_MAX_QUEUED_CHUNKS = 64;
+
+  /** How long to wait for space in a queue before checking whether its sink has failed. */
+  private static final long OFFER_TIMEOUT_IN_MILLIS = 100;
+
+  /** How long to wait for the threads writing to sinks to stop when a fan-out is closed. */
+  private static final long CLOSE_TIMEOUT_IN_SECONDS = 10;
+
+  /** Marks the end of the bytes in the queue of a sink. */
+  private static final byte[] END_OF_BYTES = new byte[0];
+
+  private ReportSinks() {}
+
+  /**
+   * Creates a sink from a spec, one of:
+   *
+   * <ul>
+   *   <li>{@code stdout} to write the report to standard output, for example to pipe it into
+   *       another program.
+   *   <li>{@code file:PATH} to write the report to a file.
+   *   <li>{@code gzip:PATH} to write the report to a gzip compressed file.
+   *   <li>{@code split:PREFIX:MEGABYTES} to split the report into files of about {@code MEGABYTES}
+   *       each, see {@link #toSplitFiles}.
+   * </ul>
+   *
+   * @throws IllegalArgumentException If the spec is not one of the above.
+   */
+  public static ReportSink parse(String spec) throws IOException {
+    if (spec.equals("stdout")) {
+      return toStdout();
+    }
+    if (spec.startsWith("file:")) {
+      return toFile(spec.substring("file:".length()));
+    }
+    if (spec.startsWith("gzip:")) {
+      return toGzipFile(spec.substring("gzip:".length()));
+    }
+    if (spec.startsWith("split:")) {
+      int separator = spec.lastIndexOf(':');
+      if (separator > "split:".length()) {
+        try {
+          long maxBytesPerFile = Long.parseLong(spec.substring(separator + 1)) * 1024 * 1024;
+          return toSplitFiles(spec.substring("split:".length(), separator), maxBytesPerFile);
+        } catch (NumberFormatException e) {
+          // Fall through to the error below.
+        }
+      }
+    }
+    throw new IllegalArgumentException(
+        "Unknown output: "
+            + spec
+            + ". Use stdout, file:PATH, gzip:PATH or split:PREFIX:MEGABYTES.");
+  }
+
+  /**
+   * Returns the path a sink spec writes to, which is the prefix of the files for {@code split:}
+   * specs, or {@code null} for {@code stdout}.
+   *
+   * @throws IllegalArgumentException If the spec is not one of those accepted by {@link #parse}.
+   */
+  public static String getPath(String spec) {
+    if (spec.equals("stdout")) {
+      return null;
+    }
+    if (spec.startsWith("file:") || spec.startsWith("gzip:")) {
+      return spec.substring(spec.indexOf(':') + 1);
+    }
+    int separator = spec.lastIndexOf(':');
+    if (spec.startsWith("split:") && separator > "split:".length()) {
+      return spec.substring("split:".length(), separator);
+    }
+    throw new IllegalArgumentException("Unknown output: " + spec);
+  }
+
+  /** Returns a copy of a sink spec writing to another path, see {@link #getPath}. */
+  public static String withPath(String spec, String path) {
+    String oldPath = getPath(spec);
+    if (oldPath == null) {
+      throw new IllegalArgumentException("Output " + spec + " does not write to a path.");
+    }
+    int start = spec.indexOf(':') + 1;
+    return spec.substring(0, start) + path + spec.substring(start + oldPath.length());
+  }
+
+  /**
+   * Creates a sink writing the report to the output file of a sample and to additional outputs at
+   * once, see {@link #fanOut(List, int)}. The output file is written gzip compressed if its name
+   * ends with {@link CompressionUtils#GZIP_SUFFIX}.
+   *
+   * @param outputFile The path of the output file, or {@code null} to only write the additional
+   *     outputs.
+   * @param additionalOutputs The specs of the additional outputs, see {@link #parse}.
+   */
+  public static ReportSink forOutputs(String outputFile, List<String> additionalOutputs)
+      throws IOException {
+    List<ReportSink> sinks = new ArrayList<ReportSink>();
+    try {
+      if (outputFile != null) {
+        sinks.add(
+            outputFile.endsWith(CompressionUtils.GZIP_SUFFIX)
+                ? toGzipFile(outputFile)
+                : toFile(outputFile));
+      }
+      for (String spec : additionalOutputs) {
+        sinks.add(parse(spec));
+      }
+    } catch (IOException | RuntimeException e) {
+      for (ReportSink sink : sinks) {
+        try {
+          sink.close();
+        } catch (IOException closeError) {
+          e.addSuppressed(closeError);
+        }
+      }
+      throw e;
+    }
+    return sinks.size() == 1 ? sinks.get(0) : fanOut(sinks, DEFAULT_MAX_QUEUED_CHUNKS);
+  }
+
+  /**
+   * Writes a report file that was already downloaded to a sink, decompressing it if needed, and
+   * commits the sink. The sink is not closed.
+   */
+  public static void copyFile(String file, ReportSink sink) throws IOException {
+    try (InputStream input =
+        CompressionUtils.decompressIfGzipped(Files.newInputStream(Paths.get(file)))) {
+      byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        sink.write(buffer, 0, read);
+      }
+    }
+    sink.commit();
+  }
+
+  /**
+   * Creates a sink writing the report to the standard output of the process, for example to pipe
+   * it into another program. The report is written to the standard output file descriptor
+   * directly, whatever {@link System#out} is set to, so a sample writing a report to standard
+   * output can move its own messages to standard error with {@link System#setOut}.
+   */
+  public static ReportSink toStdout() {
+    return toStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE_IN_BYTES));
+  }
+
+  /**
+   * Creates a sink writing the report to a file, replacing it once the sink is committed. Until
+   * then, the report is written to a temporary file in the same directory.
+   */
+  public static ReportSink toFile(String file) throws IOException {
+    return new FileSink(file, false);
+  }
+
+  /**
+   * Creates a sink writing the report to a gzip compressed file, replacing it once the sink is
+   * committed. Until then, the report is written to a temporary file in the same directory.
+   */
+  public static ReportSink toGzipFile(String file) throws IOException {
+    return new FileSink(file, true);
+  }
+
+  /**
+   * Creates a sink writing the report to a stream. The stream is flushed but not closed when the
+   * sink is committed or closed, so a failed download leaves the bytes already written in it.
+   */
+  public static ReportSink toStream(OutputStream output) {
+    return new StreamSink(output);
+  }
+
+  /**
+   * Creates a sink splitting the report into files of about a maximum size, named {@code
+   * PREFIX-00000.csv}, {@code PREFIX-00001.csv} and so on, for example to load them in parallel.
+   * Files are only split between rows, taking line breaks inside quoted values into account, and
+   * every file starts with the header row of the report. The files are written with a {@code
+   * .tmp} suffix, which is removed once the sink is committed.
+   *
+   * @param filePrefix The path of the files, without their number and extension.
+   * @param maxBytesPerFile The size after which the next file is started at the end of the row.
+   */
+  public static ReportSink toSplitFiles(String filePrefix, long maxBytesPerFile) {
+    return new SplitFilesSink(filePrefix, maxBytesPerFile);
+  }
+
+  /** Creates a sink writing the report to several sinks, see {@link #fanOut(List, int)}. */
+  public static ReportSink fanOut(ReportSink... sinks) {
+    return fanOut(Arrays.asList(sinks), DEFAULT_MAX_QUEUED_CHUNKS);
+  }
+
+  /**
+   * Creates a sink writing the report to several sinks at once.
+   *
+   * <p>Every sink is written on its own thread from a queue of at most {@code maxQueuedChunks}
+   * chunks of bytes, so a slow sink does not hold up the others until its queue is full, and then
+   * slows the download down rather than buffering the report in memory. If a sink fails, writing
+   * to the fan-out fails. The sinks are only committed once all of them wrote the whole report.
+   *
+   * @param sinks The sinks to write the report to. They are closed when the fan-out is closed.
+   * @param maxQueuedChunks The maximum number of chunks of bytes waiting for each sink.
+   */
+  public static ReportSink fanOut(List<ReportSink> sinks, int maxQueuedChunks) {
+    return new FanOutSink(sinks, maxQueuedChunks);
+  }
+
+  /** Writes the report to an output stream that is left open. */
+  private static final class StreamSink implements ReportSink {
+    private final OutputStream output;
+
+    StreamSink(OutputStream output) {
+      this.output = output;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      output.write(bytes, offset, length);
+    }
+
+    @Override
+    public void commit() throws IOException {
+      output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      output.flush();
+    }
+  }
+
+  /** Writes the report to a temporary file that replaces the output file once committed. */
+  private static final class FileSink implements ReportSink {
+    private final Path file;
+    private final Path temporaryFile;
+    private final OutputStream output;
+    private boolean committed;
+
+    FileSink(String file, boolean compressed) throws IOException {
+      this.file = Paths.get(file);
+      Path directory = this.file.toAbsolutePath().getParent();
+      this.temporaryFile =
+          Files.createTempFile(directory, this.file.getFileName().toString(), ".tmp");
+      OutputStream fileOutput = Files.newOutputStream(temporaryFile);
+      try {
+        this.output =
+            compressed
+                ? new GZIPOutputStream(fileOutput, BUFFER_SIZE_IN_BYTES)
+                : new BufferedOutputStream(fileOutput, BUFFER_SIZE_IN_BYTES);
+      } catch (IOException e) {
+        fileOutput.close();
+        Files.deleteIfExists(temporaryFile);
+        throw e;
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      output.write(bytes, offset, length);
+    }
+
+    @Override
+    public void commit() throws IOException {
+      output.close();
+      Files.move(
+          temporaryFile,
+          file,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        try {
+          output.close();
+        } finally {
+          Files.deleteIfExists(temporaryFile);
+        }
+      }
+    }
+  }
+
+  /** Splits the report into files between rows, repeating the header row in every file. */
+  private static final class SplitFilesSink implements ReportSink {
+    private final String filePrefix;
+    private final long maxBytesPerFile;
+
+    /** The header row, including its line break, kept until it is complete. */
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+    /** The files written so far, with their temporary names. */
+    private final List<Path> files = new ArrayList<Path>();
+
+    private boolean headerComplete;
+    private boolean inQuotes;
+    private OutputStream output;
+    private long bytesInFile;
+    private boolean committed;
+
+    SplitFilesSink(String filePrefix, long maxBytesPerFile) {
+      this.filePrefix = filePrefix;
+      this.maxBytesPerFile = maxBytesPerFile;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      int end = offset + length;
+      int start = offset;
+      for (int i = offset; i < end; i++) {
+        byte b = bytes[i];
+        if (b == '"') {
+          inQuotes = !inQuotes;
+        } else if (b == '\n' && !inQuotes) {
+          if (!headerComplete) {
+            header.write(bytes, start, i + 1 - start);
+            headerComplete = true;
+            start = i + 1;
+          } else if (bytesInFile + (i + 1 - start) >= maxBytesPerFile) {
+            // The row ends the file, and the next row starts a new one.
+            writeToFile(bytes, start, i + 1 - start);
+            output.close();
+            output = null;
+            bytesInFile = header.size();
+            start = i + 1;
+          }
+        }
+      }
+      if (!headerComplete) {
+        header.write(bytes, start, end - start);
+      } else if (start < end) {
+        writeToFile(bytes, start, end - start);
+      }
+    }
+
+    private void writeToFile(byte[] bytes, int offset, int length) throws IOException {
+      if (output == null) {
+        Path file = Paths.get(String.format("%s-%05d.csv.tmp", filePrefix, files.size()));
+        files.add(file);
+        output = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE_IN_BYTES);
+        header.writeTo(output);
+        bytesInFile = header.size();
+      }
+      output.write(bytes, offset, length);
+      bytesInFile += length;
+    }
+
+    @Override
+    public void commit() throws IOException {
+      if (files.isEmpty()) {
+        // Write a report without rows, or without a complete header row, to a single file.
+        headerComplete = true;
+        writeToFile(new byte[0], 0, 0);
+      }
+      if (output != null) {
+        output.close();
+        output = null;
+      }
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        Files.move(
+            file,
+            file.resolveSibling(name.substring(0, name.length() - ".tmp".length())),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (committed) {
+        return;
+      }
+      try {
+        if (output != null) {
+          output.close();
+        }
+      } finally {
+        for (Path file : files) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+  /** Writes the report to several sinks, each on its own thread from a bounded queue. */
+  private static final class FanOutSink implements ReportSink {
+    private final List<ReportSink> sinks;
+    private final List<BlockingQueue<byte[]>> queues = new ArrayList<BlockingQueue<byte[]>>();
+    private final List<Future<Void>> results = new ArrayList<Future<Void>>();
+    private final ExecutorService executor;
+    private boolean committed;
+
+    FanOutSink(List<ReportSink> sinks, int maxQueuedChunks) {
+      this.sinks = sinks;
+      executor =
+          Executors.newFixedThreadPool(
+              sinks.size(),
+              new ThreadFactoryBuilder().setNameFormat("report-sink-%d").setDaemon(true).build());
+      for (final ReportSink sink : sinks) {
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(maxQueuedChunks);
+        queues.add(queue);
+        results.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                    byte[] chunk;
+                    while ((chunk = queue.take()) != END_OF_BYTES) {
+                      sink.write(chunk, 0, chunk.length);
+                    }
+                    return null;
+                  }
+                }));
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return;
+      }
+      // The chunk is shared by all sinks, which only read it.
+      byte[] chunk = Arrays.copyOfRange(bytes, offset, offset + length);
+      for (int i = 0; i < sinks.size(); i++) {
+        put(i, chunk);
+      }
+    }
+
+    @Override
+    public void commit() throws IOException {
+      for (int i = 0; i < sinks.size(); i++) {
+        put(i, END_OF_BYTES);
+      }
+      // Wait for every sink to write its remaining bytes before committing any of them.
+      for (int i = 0; i < sinks.size(); i++) {
+        checkSinkRunning(i, true);
+      }
+      for (ReportSink sink : sinks) {
+        sink.commit();
+      }
+      committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOException error = null;
+      executor.shutdownNow();
+      try {
+        if (!committed && !executor.awaitTermination(CLOSE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)) {
+          error = new IOException("Report sinks did not stop in time.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        error = new IOException("Interrupted while waiting for report sinks to stop.", e);
+      }
+      for (ReportSink sink : sinks) {
+        try {
+          sink.close();
+        } catch (IOException e) {
+          if (error == null) {
+            error = e;
+          }
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    /** Adds a chunk to the queue of a sink, waiting for space, unless the sink has failed. */
+    private void put(int sink, byte[] chunk) throws IOException {
+      checkSinkRunning(sink, false);
+      try {
+        while (!queues.get(sink).offer(chunk, OFFER_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS)) {
+          checkSinkRunning(sink, false);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a report sink.", e);
+      }
+    }
+
+    /**
+     * Throws the error raised by a sink if it failed.
+     *
+     * @param wait Whether to wait for the sink to write all the bytes in its queue.
+     */
+    private void checkSinkRunning(int sink, boolean wait) throws IOException {
+      Future<Void> result = results.get(sink);
+      if (!wait && !result.isDone()) {
+        return;
+      }
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        // The error is wrapped, as it is thrown again by every later call.
+        throw new IOException("Report sink failed: " + e.getCause().getMessage(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a report sink.", e);
+      }
+      if (!wait) {
+        throw new IOException("Report sink stopped before the end of the report.");
+      }
+    }
+  }
+}
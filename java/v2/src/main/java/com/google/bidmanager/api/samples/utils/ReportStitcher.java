@@ -0,0 +1,86 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stitches the reports of queries that only differ by their date range into a single report, such
+ * as the reports of the per-day queries a long date range is split into.
+ *
+ * <p>The header row is written once, followed by the data rows of every report in the given
+ * order. The summary row and the report information that follows the rows of every report are
+ * left out, as totals of derived metrics such as CTR cannot be added up across reports.
+ */
+public final class ReportStitcher {
+
+  /** Maximum number of parsed rows waiting to be written when reading a report. */
+  private static final int MAX_BUFFERED_ROWS = 1024;
+
+  private ReportStitcher() {}
+
+  /**
+   * Writes the rows of several reports into a single report.
+   *
+   * @param reportFiles The paths of the CSV reports, which may be gzip compressed.
+   * @param schema The schema of all reports.
+   * @param outputFile The path to write the report to, gzip compressed if it ends with {@code
+   *     .gz}.
+   * @return The number of data rows written.
+   * @throws IOException If the reports do not have the same columns.
+   */
+  public static long stitch(List<String> reportFiles, ReportSchema schema, String outputFile)
+      throws Exception {
+    final String[][] firstHeader = new String[1][];
+    final long[] rowCount = new long[1];
+    try (Writer writer = CompressionUtils.newBufferedWriter(outputFile)) {
+      for (final String reportFile : reportFiles) {
+        try (CsvParser parser = new CsvParser(CompressionUtils.newBufferedReader(reportFile))) {
+          ReportRowPipeline.run(
+              parser,
+              schema,
+              new ReportRowHandler() {
+                @Override
+                public void handleHeader(String[] header) throws IOException {
+                  if (firstHeader[0] == null) {
+                    firstHeader[0] = header;
+                    writer.write(CsvParser.formatRecord(header));
+                  } else if (!Arrays.equals(firstHeader[0], header)) {
+                    throw new IOException(
+                        String.format(
+                            "Report %s has columns %s instead of %s.",
+                            reportFile, Arrays.toString(header), Arrays.toString(firstHeader[0])));
+                  }
+                }
+
+                @Override
+                public void handleRow(String[] row) throws IOException {
+                  writer.write(CsvParser.formatRecord(row));
+                  rowCount[0]++;
+                }
+
+                @Override
+                public void handleEnd() {}
+              },
+              MAX_BUFFERED_ROWS);
+        }
+      }
+    }
+    return rowCount[0];
+  }
+}
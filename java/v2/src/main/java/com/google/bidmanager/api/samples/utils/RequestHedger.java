@@ -0,0 +1,152 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedges idempotent read requests to cut their tail latency: when a request takes longer than
+ * most requests to the same endpoint, an identical second request is sent, and whichever responds
+ * first is used.
+ *
+ * <p>A request is hedged once it takes longer than the 95th percentile of the latencies of the
+ * recent successful attempts to the same {@link ApiEndpoint}, as recorded by {@link
+ * RequestMetrics}, so about one request in twenty is sent twice. Requests are not hedged until
+ * enough latencies have been seen, nor while the endpoint is returning 429 or 5xx errors, since a
+ * second request would only add to its load. Once an attempt succeeds, the other one is cancelled.
+ *
+ * <p>At most {@link #MAX_CONCURRENT_ATTEMPTS} attempts run at a time. Requests sent while all of
+ * them are busy are not hedged.
+ */
+public final class RequestHedger {
+
+  /** Percentile of the recent latencies after which a request is hedged. */
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  /** Number of latencies that must be seen for an endpoint before its requests are hedged. */
+  private static final int MIN_SAMPLES = 20;
+
+  /** Time after a 429 or 5xx error of an endpoint during which its requests are not hedged. */
+  private static final long ERROR_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  /** Maximum number of attempts of hedged requests running at a time. */
+  private static final int MAX_CONCURRENT_ATTEMPTS = 32;
+
+  private static final RequestHedger INSTANCE = new RequestHedger();
+
+  private final ThreadPoolExecutor executor;
+
+  private volatile boolean enabled;
+
+  private RequestHedger() {
+    // Attempts are rejected rather than queued once all threads are busy.
+    executor =
+        new ThreadPoolExecutor(
+            MAX_CONCURRENT_ATTEMPTS,
+            MAX_CONCURRENT_ATTEMPTS,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("hedged-request-%d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Returns the hedger shared by all requests of the process. */
+  public static RequestHedger get() {
+    return INSTANCE;
+  }
+
+  /** Sets whether requests are hedged. If not, they are sent once, on the calling thread. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Sends a read request, hedging it if it is slow.
+   *
+   * @param endpoint The endpoint the request is sent to, whose recent latencies set when the
+   *     request is hedged.
+   * @param request Builds and executes the request. It is called a second time to hedge the
+   *     request, so it must be idempotent.
+   * @return The response of the attempt that succeeded first.
+   * @throws Exception The error raised by the request, if all its attempts failed.
+   */
+  public <T> T execute(ApiEndpoint endpoint, Callable<T> request) throws Exception {
+    RequestMetrics metrics = RequestMetrics.get();
+    long thresholdNanos =
+        enabled ? metrics.getAttemptLatencyPercentile(endpoint, HEDGE_PERCENTILE, MIN_SAMPLES) : -1;
+    if (thresholdNanos < 0 || metrics.hasRecentErrors(endpoint, ERROR_COOLDOWN_NANOS)) {
+      return request.call();
+    }
+
+    CompletionService<T> attempts = new ExecutorCompletionService<T>(executor);
+    List<Future<T>> futures = new ArrayList<Future<T>>(2);
+    try {
+      futures.add(attempts.submit(request));
+    } catch (RejectedExecutionException e) {
+      // Too many attempts are running to hedge this request.
+      return request.call();
+    }
+
+    try {
+      Future<T> attempt = attempts.poll(thresholdNanos, TimeUnit.NANOSECONDS);
+      if (attempt == null) {
+        if (!metrics.hasRecentErrors(endpoint, ERROR_COOLDOWN_NANOS)) {
+          try {
+            futures.add(attempts.submit(request));
+            System.out.printf(
+                "%s request slower than %s ms, sending it again.%n",
+                endpoint.getName(), TimeUnit.NANOSECONDS.toMillis(thresholdNanos));
+          } catch (RejectedExecutionException e) {
+            // Keep waiting for the first attempt.
+          }
+        }
+        attempt = attempts.take();
+      }
+
+      try {
+        return attempt.get();
+      } catch (ExecutionException e) {
+        if (futures.size() > 1) {
+          // The other attempt may still succeed.
+          try {
+            return attempts.take().get();
+          } catch (ExecutionException ignored) {
+            // Surface the error of the first attempt to fail.
+          }
+        }
+        Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+        throw e;
+      }
+    } finally {
+      // The attempt that lost is no longer needed.
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,522 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.client.googleapis.util.Utils;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records metrics about the HTTP requests sent by the samples, per {@link ApiEndpoint}.
+ *
+ * <p>Requests are instrumented by the {@link HttpRequestInitializer} returned by {@link
+ * #instrument}. For every call, the metrics record:
+ *
+ * <ul>
+ *   <li>The time from sending the request to receiving the headers of its final response,
+ *       including retries, as a histogram.
+ *   <li>The status code of the final response, or {@code IO_ERROR} if no response was received.
+ *   <li>The status code of every attempt, including those that were retried.
+ *   <li>The number of retries.
+ *   <li>The number of bytes sent and received, as reported by the Content-Length headers.
+ * </ul>
+ *
+ * <p>A call is recorded once, when it receives a response that is not retried, so retried
+ * requests do not inflate the call counts and latencies.
+ *
+ * <p>The time spent reading the content of report files is recorded separately, so the download
+ * bandwidth can be told apart from the latency of the requests. The metrics can be written in the
+ * Prometheus text format or as JSON.
+ *
+ * <p>The latencies of the recent successful attempts and the time of the last 429, 5xx or network
+ * error are also kept for every endpoint, for {@link RequestHedger} to decide when to hedge.
+ */
+public final class RequestMetrics {
+
+  /** Upper bounds of the latency histogram buckets, in seconds. */
+  private static final double[] BUCKET_BOUNDS_IN_SECONDS = {
+    0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300
+  };
+
+  private static final String IO_ERROR = "IO_ERROR";
+
+  /** Number of recent attempt latencies kept for every endpoint. */
+  private static final int MAX_LATENCY_SAMPLES = 200;
+
+  /** Value of the time of the last error of an endpoint that never had one. */
+  private static final long NO_ERROR = Long.MIN_VALUE;
+
+  private static final RequestMetrics INSTANCE = new RequestMetrics();
+
+  private final Map<ApiEndpoint, EndpointMetrics> endpoints =
+      new EnumMap<ApiEndpoint, EndpointMetrics>(ApiEndpoint.class);
+
+  private RequestMetrics() {
+    for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+      endpoints.put(endpoint, new EndpointMetrics());
+    }
+  }
+
+  /** Returns the metrics shared by all requests of the process. */
+  public static RequestMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Wraps a request initializer so the requests it initializes are recorded in these metrics.
+   *
+   * @param requestInitializer The initializer to wrap, such as a credential, or {@code null}.
+   * @return An initializer that applies {@code requestInitializer} and then instruments the
+   *     request.
+   */
+  public HttpRequestInitializer instrument(final HttpRequestInitializer requestInitializer) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (requestInitializer != null) {
+          requestInitializer.initialize(request);
+        }
+        new RecordedCall(request).install();
+      }
+    };
+  }
+
+  /** Records that a request was retried outside of the HTTP client, such as a download range. */
+  public void recordRetry(ApiEndpoint endpoint) {
+    endpoints.get(endpoint).retries.incrementAndGet();
+  }
+
+  /** Records the time spent reading the content of a response. */
+  public void recordTransferTime(ApiEndpoint endpoint, long nanos) {
+    endpoints.get(endpoint).transferNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Returns a percentile of the latencies of the recent successful attempts of requests to an
+   * endpoint, from sending the attempt to receiving its response headers.
+   *
+   * @param endpoint The endpoint.
+   * @param percentile The percentile, between 0 exclusive and 1 inclusive.
+   * @param minSamples The number of latencies that must have been recorded.
+   * @return The latency in nanoseconds, or -1 if fewer than {@code minSamples} were recorded.
+   */
+  public long getAttemptLatencyPercentile(ApiEndpoint endpoint, double percentile, int minSamples) {
+    return endpoints.get(endpoint).attemptLatencies.getPercentile(percentile, minSamples);
+  }
+
+  /**
+   * Returns whether an attempt of a request to an endpoint failed with a 429 or 5xx status code, or
+   * without a response, within the given amount of time.
+   */
+  public boolean hasRecentErrors(ApiEndpoint endpoint, long withinNanos) {
+    long lastErrorNanos = endpoints.get(endpoint).lastErrorNanos;
+    return lastErrorNanos != NO_ERROR && System.nanoTime() - lastErrorNanos < withinNanos;
+  }
+
+  /**
+   * Writes the metrics to a file, as JSON if the file name ends with {@code .json} and in the
+   * Prometheus text format otherwise.
+   */
+  public void writeTo(String file) throws IOException {
+    String content = file.endsWith(".json") ? toJson() : toPrometheusText();
+    Files.write(Paths.get(file), content.getBytes(UTF_8));
+    System.out.printf("Request metrics written to %s.%n", file);
+  }
+
+  /** Returns the metrics in the Prometheus text exposition format. */
+  public String toPrometheusText() {
+    StringBuilder text = new StringBuilder();
+
+    text.append("# HELP dbm_request_duration_seconds Time from sending a request to receiving")
+        .append(" its response headers, including retries.\n")
+        .append("# TYPE dbm_request_duration_seconds histogram\n");
+    for (Map.Entry<ApiEndpoint, EndpointMetrics> entry : endpoints.entrySet()) {
+      EndpointMetrics metrics = entry.getValue();
+      String endpoint = entry.getKey().getName();
+      long count = metrics.count.get();
+      if (count == 0) {
+        continue;
+      }
+      long cumulativeCount = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_IN_SECONDS.length; i++) {
+        cumulativeCount += metrics.buckets.get(i);
+        appendSample(
+            text,
+            "dbm_request_duration_seconds_bucket",
+            endpoint,
+            "le",
+            String.valueOf(BUCKET_BOUNDS_IN_SECONDS[i]),
+            cumulativeCount);
+      }
+      appendSample(text, "dbm_request_duration_seconds_bucket", endpoint, "le", "+Inf", count);
+      appendSample(
+          text, "dbm_request_duration_seconds_sum", endpoint, toSeconds(metrics.durationNanos));
+      appendSample(text, "dbm_request_duration_seconds_count", endpoint, count);
+    }
+
+    text.append("# HELP dbm_responses_total Final responses of requests, by status code.\n")
+        .append("# TYPE dbm_responses_total counter\n");
+    for (Map.Entry<ApiEndpoint, EndpointMetrics> entry : endpoints.entrySet()) {
+      for (Map.Entry<String, Long> code :
+          getCounts(entry.getValue().responseCodes).entrySet()) {
+        appendSample(
+            text,
+            "dbm_responses_total",
+            entry.getKey().getName(),
+            "code",
+            code.getKey(),
+            code.getValue());
+      }
+    }
+
+    text.append("# HELP dbm_attempt_responses_total Responses received for every attempt of a")
+        .append(" request, including retried attempts, by status code.\n")
+        .append("# TYPE dbm_attempt_responses_total counter\n");
+    for (Map.Entry<ApiEndpoint, EndpointMetrics> entry : endpoints.entrySet()) {
+      for (Map.Entry<String, Long> code : getCounts(entry.getValue().attemptCodes).entrySet()) {
+        appendSample(
+            text,
+            "dbm_attempt_responses_total",
+            entry.getKey().getName(),
+            "code",
+            code.getKey(),
+            code.getValue());
+      }
+    }
+
+    appendCounter(text, "dbm_request_retries_total", "Requests retried.", Counter.RETRIES);
+    appendCounter(
+        text, "dbm_request_bytes_total", "Bytes of request content sent.", Counter.REQUEST_BYTES);
+    appendCounter(
+        text,
+        "dbm_response_bytes_total",
+        "Bytes of response content received.",
+        Counter.RESPONSE_BYTES);
+    appendCounter(
+        text,
+        "dbm_transfer_seconds_total",
+        "Time spent reading the content of downloaded files.",
+        Counter.TRANSFER_TIME);
+    return text.toString();
+  }
+
+  /** Returns the metrics as a JSON object keyed by endpoint name. */
+  public String toJson() throws IOException {
+    Map<String, Object> json = new LinkedHashMap<String, Object>();
+    for (Map.Entry<ApiEndpoint, EndpointMetrics> entry : endpoints.entrySet()) {
+      EndpointMetrics metrics = entry.getValue();
+      if (!metrics.hasActivity()) {
+        continue;
+      }
+
+      Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+      for (int i = 0; i < BUCKET_BOUNDS_IN_SECONDS.length; i++) {
+        buckets.put(String.valueOf(BUCKET_BOUNDS_IN_SECONDS[i]), metrics.buckets.get(i));
+      }
+      buckets.put("+Inf", metrics.buckets.get(BUCKET_BOUNDS_IN_SECONDS.length));
+
+      Map<String, Object> endpoint = new LinkedHashMap<String, Object>();
+      endpoint.put("count", metrics.count.get());
+      endpoint.put("durationSeconds", toSeconds(metrics.durationNanos));
+      endpoint.put("durationBuckets", buckets);
+      endpoint.put("responseCodes", getCounts(metrics.responseCodes));
+      endpoint.put("attemptResponseCodes", getCounts(metrics.attemptCodes));
+      endpoint.put("retries", metrics.retries.get());
+      endpoint.put("requestBytes", metrics.requestBytes.get());
+      endpoint.put("responseBytes", metrics.responseBytes.get());
+      endpoint.put("transferSeconds", toSeconds(metrics.transferNanos));
+      json.put(entry.getKey().getName(), endpoint);
+    }
+    return Utils.getDefaultJsonFactory().toPrettyString(json);
+  }
+
+  private void appendCounter(StringBuilder text, String name, String help, Counter counter) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" counter\n");
+    for (Map.Entry<ApiEndpoint, EndpointMetrics> entry : endpoints.entrySet()) {
+      EndpointMetrics metrics = entry.getValue();
+      if (!metrics.hasActivity()) {
+        continue;
+      }
+      String endpoint = entry.getKey().getName();
+      switch (counter) {
+        case RETRIES:
+          appendSample(text, name, endpoint, metrics.retries.get());
+          break;
+        case REQUEST_BYTES:
+          appendSample(text, name, endpoint, metrics.requestBytes.get());
+          break;
+        case RESPONSE_BYTES:
+          appendSample(text, name, endpoint, metrics.responseBytes.get());
+          break;
+        case TRANSFER_TIME:
+          appendSample(text, name, endpoint, toSeconds(metrics.transferNanos));
+          break;
+      }
+    }
+  }
+
+  private static void appendSample(StringBuilder text, String name, String endpoint, Object value) {
+    text.append(name)
+        .append("{endpoint=\"")
+        .append(endpoint)
+        .append("\"} ")
+        .append(value)
+        .append('\n');
+  }
+
+  private static void appendSample(
+      StringBuilder text,
+      String name,
+      String endpoint,
+      String labelName,
+      String labelValue,
+      Object value) {
+    text.append(name)
+        .append("{endpoint=\"")
+        .append(endpoint)
+        .append("\",")
+        .append(labelName)
+        .append("=\"")
+        .append(labelValue)
+        .append("\"} ")
+        .append(value)
+        .append('\n');
+  }
+
+  private static Map<String, Long> getCounts(ConcurrentMap<String, AtomicLong> counters) {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  private static void increment(ConcurrentMap<String, AtomicLong> counters, String key) {
+    AtomicLong counter = counters.get(key);
+    if (counter == null) {
+      counters.putIfAbsent(key, new AtomicLong());
+      counter = counters.get(key);
+    }
+    counter.incrementAndGet();
+  }
+
+  private static double toSeconds(AtomicLong nanos) {
+    return nanos.get() / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+
+  /** The counters written for every endpoint. */
+  private enum Counter {
+    RETRIES,
+    REQUEST_BYTES,
+    RESPONSE_BYTES,
+    TRANSFER_TIME
+  }
+
+  /** The metrics of a single endpoint. */
+  private static class EndpointMetrics {
+    private final AtomicLongArray buckets =
+        new AtomicLongArray(BUCKET_BOUNDS_IN_SECONDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong durationNanos = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> responseCodes =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> attemptCodes =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong transferNanos = new AtomicLong();
+    private final LatencyWindow attemptLatencies = new LatencyWindow();
+    private volatile long lastErrorNanos = NO_ERROR;
+
+    void recordCall(long nanos, String responseCode) {
+      double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_IN_SECONDS.length
+          && seconds > BUCKET_BOUNDS_IN_SECONDS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      durationNanos.addAndGet(nanos);
+      increment(responseCodes, responseCode);
+    }
+
+    void recordAttempt(String responseCode) {
+      increment(attemptCodes, responseCode);
+    }
+
+    void recordError() {
+      lastErrorNanos = System.nanoTime();
+    }
+
+    boolean hasActivity() {
+      return count.get() > 0 || retries.get() > 0 || transferNanos.get() > 0;
+    }
+  }
+
+  /** The latencies of the most recent attempts to an endpoint. */
+  private static final class LatencyWindow {
+    private final long[] samples = new long[MAX_LATENCY_SAMPLES];
+    private long count;
+
+    synchronized void record(long latencyNanos) {
+      samples[(int) (count++ % samples.length)] = latencyNanos;
+    }
+
+    synchronized long getPercentile(double percentile, int minSamples) {
+      int size = (int) Math.min(count, samples.length);
+      if (size == 0 || size < minSamples) {
+        return -1;
+      }
+      long[] sorted = Arrays.copyOf(samples, size);
+      Arrays.sort(sorted);
+      return sorted[(int) Math.ceil(percentile * size) - 1];
+    }
+  }
+
+  /**
+   * Instruments a single call of {@link HttpRequest#execute}, which sends the request once and
+   * then once per retry.
+   *
+   * <p>Every unsuccessful attempt is seen by {@link #handleResponse}, or by {@link
+   * #handleIOException} if it received no response, whether it is retried or not. Only the final
+   * response of the call is seen by {@link #interceptResponse}, where the call is recorded.
+   */
+  private class RecordedCall
+      implements HttpExecuteInterceptor,
+          HttpResponseInterceptor,
+          HttpUnsuccessfulResponseHandler,
+          HttpIOExceptionHandler {
+    private final HttpRequest request;
+    private HttpExecuteInterceptor executeInterceptor;
+    private HttpResponseInterceptor responseInterceptor;
+    private HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler;
+    private HttpIOExceptionHandler ioExceptionHandler;
+    private EndpointMetrics metrics;
+    private long startNanos;
+    private long attemptStartNanos;
+    private int attempts;
+
+    RecordedCall(HttpRequest request) {
+      this.request = request;
+    }
+
+    /** Chains this call's handlers in front of those already set on the request. */
+    void install() {
+      executeInterceptor = request.getInterceptor();
+      responseInterceptor = request.getResponseInterceptor();
+      unsuccessfulResponseHandler = request.getUnsuccessfulResponseHandler();
+      ioExceptionHandler = request.getIOExceptionHandler();
+      request.setInterceptor(this);
+      request.setResponseInterceptor(this);
+      request.setUnsuccessfulResponseHandler(this);
+      request.setIOExceptionHandler(this);
+    }
+
+    @Override
+    public void intercept(HttpRequest request) throws IOException {
+      if (attempts++ == 0) {
+        // The URL and content of the request are final once it is executed.
+        metrics = endpoints.get(ApiEndpoint.of(request));
+        startNanos = System.nanoTime();
+      } else {
+        metrics.retries.incrementAndGet();
+      }
+      attemptStartNanos = System.nanoTime();
+      HttpContent content = request.getContent();
+      if (content != null && content.getLength() > 0) {
+        metrics.requestBytes.addAndGet(content.getLength());
+      }
+      if (executeInterceptor != null) {
+        executeInterceptor.intercept(request);
+      }
+    }
+
+    @Override
+    public void interceptResponse(HttpResponse response) throws IOException {
+      long nowNanos = System.nanoTime();
+      String responseCode = String.valueOf(response.getStatusCode());
+      if (response.isSuccessStatusCode()) {
+        // Unsuccessful attempts were recorded when they were handled.
+        metrics.recordAttempt(responseCode);
+        metrics.attemptLatencies.record(nowNanos - attemptStartNanos);
+      }
+      metrics.recordCall(nowNanos - startNanos, responseCode);
+      Long contentLength = response.getHeaders().getContentLength();
+      if (contentLength != null) {
+        metrics.responseBytes.addAndGet(contentLength);
+      }
+      if (responseInterceptor != null) {
+        responseInterceptor.interceptResponse(response);
+      }
+    }
+
+    @Override
+    public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+        throws IOException {
+      int statusCode = response.getStatusCode();
+      metrics.recordAttempt(String.valueOf(statusCode));
+      if (statusCode == 429 || statusCode / 100 == 5) {
+        metrics.recordError();
+      }
+      return unsuccessfulResponseHandler != null
+          && unsuccessfulResponseHandler.handleResponse(request, response, supportsRetry);
+    }
+
+    @Override
+    public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+        throws IOException {
+      if (metrics != null) {
+        metrics.recordAttempt(IO_ERROR);
+        // An attempt interrupted because it is no longer needed, such as the attempt of a hedged
+        // request that lost, says nothing about the endpoint.
+        if (!Thread.currentThread().isInterrupted()) {
+          metrics.recordError();
+        }
+      }
+      boolean retry =
+          ioExceptionHandler != null
+              && ioExceptionHandler.handleIOException(request, supportsRetry);
+      if (!retry && metrics != null) {
+        // The call fails without a response.
+        metrics.recordCall(System.nanoTime() - startNanos, IO_ERROR);
+      }
+      return retry;
+    }
+  }
+}
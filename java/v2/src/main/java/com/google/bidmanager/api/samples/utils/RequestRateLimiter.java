@@ -0,0 +1,186 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the requests sent by the samples, so a run sending requests on many threads
+ * stays just under the API quotas of its project instead of exceeding them and backing off.
+ *
+ * <p>Limits are set in requests per minute, for the whole project and for each {@link
+ * ApiEndpoint}, such as {@code queries.create} or {@code reports.get}. Each limit is enforced by a
+ * {@link TokenBucket} per project, shared by all threads and service objects of the process, that
+ * lets through bursts of up to a second worth of requests and is refilled slightly slower than the
+ * limit, so no minute exceeds it. Requests are held back by the {@link HttpRequestInitializer}
+ * returned by {@link #limit} until all the buckets that apply to them have a permit, including when
+ * they are retried. The calls of a batch request are counted one by one.
+ */
+public final class RequestRateLimiter {
+
+  /** Name of the limit that applies to the requests to all endpoints of the API. */
+  public static final String PROJECT_LIMIT = "project";
+
+  private static final RequestRateLimiter INSTANCE = new RequestRateLimiter();
+
+  /** The limits in requests per minute, by endpoint. */
+  private volatile Map<ApiEndpoint, Integer> endpointLimits = Collections.emptyMap();
+
+  /** The limit in requests per minute of the project, or 0 if not limited. */
+  private volatile int projectLimit;
+
+  /** The buckets enforcing the limits, by project and endpoint name. */
+  private final ConcurrentMap<String, TokenBucket> buckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+
+  private RequestRateLimiter() {}
+
+  /** Returns the limiter shared by all requests of the process. */
+  public static RequestRateLimiter get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Sets the limits, replacing those set before.
+   *
+   * @param limits Comma-separated limits in requests per minute, such as {@code
+   *     project=1500,queries.create=60,reports.get=600}, or {@code null} or an empty value to send
+   *     requests without limits.
+   * @throws IllegalArgumentException If a limit has an unknown name or is not a positive number.
+   */
+  public synchronized void setLimits(String limits) {
+    Map<ApiEndpoint, Integer> newEndpointLimits =
+        new EnumMap<ApiEndpoint, Integer>(ApiEndpoint.class);
+    int newProjectLimit = 0;
+    if (!Strings.isNullOrEmpty(limits)) {
+      Map<String, String> entries =
+          Splitter.on(',').trimResults().withKeyValueSeparator('=').split(limits);
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        int requestsPerMinute = Integer.parseInt(entry.getValue());
+        if (requestsPerMinute <= 0) {
+          throw new IllegalArgumentException("Rate limits must be positive: " + entry);
+        }
+        if (entry.getKey().equals(PROJECT_LIMIT)) {
+          newProjectLimit = requestsPerMinute;
+        } else {
+          newEndpointLimits.put(findEndpoint(entry.getKey()), requestsPerMinute);
+        }
+      }
+    }
+    endpointLimits = newEndpointLimits;
+    projectLimit = newProjectLimit;
+    buckets.clear();
+  }
+
+  /**
+   * Wraps a request initializer so the requests it initializes are held back to stay within the
+   * limits.
+   *
+   * @param requestInitializer The initializer to wrap, such as a credential, or {@code null}.
+   * @param project The project whose quotas the requests count towards.
+   * @return An initializer that applies {@code requestInitializer} and then limits the request.
+   */
+  public HttpRequestInitializer limit(
+      final HttpRequestInitializer requestInitializer, final String project) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        if (requestInitializer != null) {
+          requestInitializer.initialize(request);
+        }
+        final HttpExecuteInterceptor executeInterceptor = request.getInterceptor();
+        request.setInterceptor(
+            new HttpExecuteInterceptor() {
+              @Override
+              public void intercept(HttpRequest request) throws IOException {
+                // Wait before the interceptors chained after this one, so the time spent waiting
+                // is not counted as request latency.
+                acquire(project, ApiEndpoint.of(request));
+                if (executeInterceptor != null) {
+                  executeInterceptor.intercept(request);
+                }
+              }
+            });
+      }
+    };
+  }
+
+  /** Waits until a request to an endpoint can be sent within the limits. */
+  private void acquire(String project, ApiEndpoint endpoint) throws IOException {
+    long waitNanos = 0;
+    Integer endpointLimit = endpointLimits.get(endpoint);
+    if (endpointLimit != null) {
+      waitNanos = getBucket(project + "/" + endpoint.getName(), endpointLimit).reserve();
+    }
+    int currentProjectLimit = projectLimit;
+    if (currentProjectLimit > 0 && isApiCall(endpoint)) {
+      waitNanos = Math.max(waitNanos, getBucket(project, currentProjectLimit).reserve());
+    }
+
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to stay within rate limits.");
+      }
+    }
+  }
+
+  private TokenBucket getBucket(String key, int requestsPerMinute) {
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null) {
+      // Allow bursts of a second worth of requests, and refill the bucket so that the requests of
+      // a burst and those refilled within a minute stay within the limit.
+      int capacity = Math.max(1, requestsPerMinute / 60);
+      long intervalNanos =
+          TimeUnit.MINUTES.toNanos(1) / Math.max(1, requestsPerMinute - capacity);
+      buckets.putIfAbsent(key, new TokenBucket(intervalNanos, capacity));
+      bucket = buckets.get(key);
+    }
+    return bucket;
+  }
+
+  /**
+   * Returns whether requests to an endpoint count towards the quota of the project. Batch requests
+   * do not, as their calls are counted one by one, and neither do report file downloads.
+   */
+  private static boolean isApiCall(ApiEndpoint endpoint) {
+    return endpoint != ApiEndpoint.BATCH
+        && endpoint != ApiEndpoint.GCS_DOWNLOAD
+        && endpoint != ApiEndpoint.OTHER;
+  }
+
+  private static ApiEndpoint findEndpoint(String name) {
+    for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+      if (endpoint.getName().equals(name)) {
+        return endpoint;
+      }
+    }
+    throw new IllegalArgumentException("Unknown rate limit: " + name);
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Provides the {@link HttpTransport} shared by API requests and report downloads.
+ *
+ * <p>The transport keeps a pool of keep-alive connections, so concurrent requests to the same host
+ * reuse established TLS connections instead of opening new ones. Idle connections are closed after
+ * a while so the pool does not hold on to connections the server has already dropped.
+ */
+public final class SharedHttpTransport {
+
+  /** Default maximum number of pooled connections to a single host. */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+
+  /** Default maximum number of pooled connections across all hosts. */
+  public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+
+  /** Default amount of time an unused connection is kept open. Defaults to 60 seconds. */
+  public static final long DEFAULT_IDLE_TIMEOUT_IN_MILLIS = 60_000;
+
+  /**
+   * Default maximum amount of time a connection is kept alive between requests when the server
+   * does not specify one. Defaults to 5 minutes.
+   */
+  public static final long DEFAULT_KEEP_ALIVE_IN_MILLIS = 5 * 60_000;
+
+  private static HttpTransport transport;
+
+  private SharedHttpTransport() {}
+
+  /** Returns the shared transport, creating it with the default settings if needed. */
+  public static synchronized HttpTransport get() {
+    if (transport == null) {
+      transport =
+          create(
+              DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+              DEFAULT_MAX_CONNECTIONS_TOTAL,
+              DEFAULT_IDLE_TIMEOUT_IN_MILLIS,
+              DEFAULT_KEEP_ALIVE_IN_MILLIS);
+    }
+    return transport;
+  }
+
+  /**
+   * Configures the connection pool of the shared transport. Must be called before the transport
+   * is first used.
+   *
+   * @param maxConnectionsPerRoute The maximum number of pooled connections to a single host.
+   * @param maxConnectionsTotal The maximum number of pooled connections across all hosts.
+   * @param idleTimeoutMillis The amount of time an unused connection is kept open.
+   * @param keepAliveMillis The maximum amount of time a connection is kept alive between requests.
+   * @throws IllegalStateException If the shared transport is already in use.
+   */
+  public static synchronized void configure(
+      int maxConnectionsPerRoute,
+      int maxConnectionsTotal,
+      long idleTimeoutMillis,
+      long keepAliveMillis) {
+    if (transport != null) {
+      throw new IllegalStateException("The shared HTTP transport is already in use.");
+    }
+    transport =
+        create(maxConnectionsPerRoute, maxConnectionsTotal, idleTimeoutMillis, keepAliveMillis);
+  }
+
+  private static HttpTransport create(
+      int maxConnectionsPerRoute,
+      int maxConnectionsTotal,
+      long idleTimeoutMillis,
+      final long keepAliveMillis) {
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    connectionManager.setMaxTotal(Math.max(maxConnectionsTotal, maxConnectionsPerRoute));
+
+    // Keep connections alive for as long as the server allows, up to the configured maximum.
+    ConnectionKeepAliveStrategy keepAliveStrategy =
+        new ConnectionKeepAliveStrategy() {
+          @Override
+          public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long serverKeepAlive =
+                DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (serverKeepAlive > 0) {
+              return Math.min(serverKeepAlive, keepAliveMillis);
+            }
+            return keepAliveMillis;
+          }
+        };
+
+    return new ApacheHttpTransport(
+        ApacheHttpTransport.newDefaultHttpClientBuilder()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+            // Leave gzip handling to the client library, which decodes responses itself.
+            .disableContentCompression()
+            .build());
+  }
+}
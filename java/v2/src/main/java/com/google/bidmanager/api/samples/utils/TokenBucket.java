@@ -0,0 +1,63 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that any number of threads can take permits from without locking.
+ *
+ * <p>The bucket is implemented with the generic cell rate algorithm: its only state is the time at
+ * which it will be full again, which is updated with compare-and-set. Taking a permit reserves the
+ * next free slot and returns how long the caller has to wait for it, so callers waiting for
+ * permits are served in the order they arrived and never spin.
+ */
+final class TokenBucket {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+
+  /** The time at which the bucket will be full again, as returned by {@link System#nanoTime()}. */
+  private final AtomicLong fullAtNanos;
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param intervalNanos The time it takes to add a permit to the bucket.
+   * @param capacity The number of permits the bucket holds when full, which can be taken at once.
+   */
+  TokenBucket(long intervalNanos, int capacity) {
+    this.intervalNanos = intervalNanos;
+    this.burstNanos = (capacity - 1) * intervalNanos;
+    this.fullAtNanos = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Takes a permit from the bucket.
+   *
+   * @return The time in nanoseconds until the permit is available, or 0 if it is available now.
+   */
+  long reserve() {
+    while (true) {
+      long now = System.nanoTime();
+      long fullAt = fullAtNanos.get();
+      long base = fullAt - now > 0 ? fullAt : now;
+      if (fullAtNanos.compareAndSet(fullAt, base + intervalNanos)) {
+        // The permit is available once the bucket is less than full by the burst it allows.
+        return Math.max(0, fullAt - burstNanos - now);
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.bidmanager.api.samples.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors that run every task on its own virtual thread.
+ *
+ * <p>Virtual threads are available from Java 21. The samples are compiled for older versions of
+ * Java, so the executor is looked up at runtime and is only available when running on Java 21 or
+ * later.
+ */
+public final class VirtualThreads {
+
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+
+  private VirtualThreads() {}
+
+  /** Returns whether the running JVM supports virtual threads. */
+  public static boolean isSupported() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Creates an executor that starts a new virtual thread for every task.
+   *
+   * @throws UnsupportedOperationException if the running JVM does not support virtual threads.
+   */
+  public static ExecutorService newThreadPerTaskExecutor() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(
+          String.format(
+              "Virtual threads require Java 21 or later, but Java %s is running.",
+              System.getProperty("java.version")));
+    }
+    try {
+      return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Unable to create a virtual thread executor.", e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException("Unable to create a virtual thread executor.", e.getCause());
+    }
+  }
+
+  private static Method findFactoryMethod() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}